@@ -0,0 +1,101 @@
+package net.symbioquine.usbhidrelay.benchmarks;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.symbioquine.usbhidrelay.EnumeratedUsbHidRelay;
+import net.symbioquine.usbhidrelay.SimulatedRelayDevice;
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+import net.symbioquine.usbhidrelay.UsbHidRelaySwitchId;
+
+/**
+ * Measures the overhead {@link EnumeratedUsbHidRelay} adds to {@link UsbHidRelay}, such as
+ * building switch state maps, against a {@link SimulatedRelayDevice} without latency.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EnumeratedUsbHidRelayBenchmark {
+  enum Switch implements UsbHidRelaySwitchId {
+    S0, S1, S2, S3, S4, S5, S6, S7, S8, S9, S10, S11, S12, S13, S14, S15;
+
+    @Override
+    public int id() {
+      return ordinal();
+    }
+  }
+
+  EnumeratedUsbHidRelay<Switch> relay;
+  Map<Switch, Boolean> switchStates;
+  EnumSet<Switch> switchesOn;
+  boolean state;
+
+  @Setup
+  public void setUp() {
+    relay = EnumeratedUsbHidRelay.create(UsbHidRelay.create(SimulatedRelayDevice.create(), UsbHidRelaySize.SIXTEEN), Switch.class);
+
+    switchStates = new EnumMap<>(Switch.class);
+    switchesOn = EnumSet.noneOf(Switch.class);
+    for (Switch switchId : Switch.values()) {
+      switchStates.put(switchId, switchId.ordinal() % 2 == 0);
+      if (switchId.ordinal() % 3 == 0) {
+        switchesOn.add(switchId);
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    relay.close();
+  }
+
+  @Benchmark
+  public Map<Switch, Boolean> getSwitchStates() {
+    return relay.getSwitchStates();
+  }
+
+  @Benchmark
+  public EnumSet<Switch> getSwitchesOn() {
+    return relay.getSwitchesOn();
+  }
+
+  @Benchmark
+  public void setSwitchStates() {
+    relay.setSwitchStates(switchStates);
+  }
+
+  @Benchmark
+  public void setSwitchesOn() {
+    relay.setSwitchesOn(switchesOn);
+  }
+
+  @Benchmark
+  public void setSwitchState() {
+    state = !state;
+    relay.setSwitchState(Switch.S3, state);
+  }
+
+  @Benchmark
+  public boolean batch() {
+    state = !state;
+    return relay.batch().on(state ? Switch.S1 : Switch.S2).off(state ? Switch.S2 : Switch.S1).toggle(Switch.S4).commit();
+  }
+}
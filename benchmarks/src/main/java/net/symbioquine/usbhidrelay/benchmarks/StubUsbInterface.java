@@ -0,0 +1,207 @@
+package net.symbioquine.usbhidrelay.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbInterface;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.DefaultUsbIrp;
+
+import net.symbioquine.usbhidrelay.SimulatedRelayDevice;
+
+/**
+ * A {@link UsbInterface} whose endpoints behave like those of a 16 switch relay, so that the USB
+ * transports and pipe modes can be benchmarked without hardware. Frames written to the OUT
+ * endpoint are sent to a {@link SimulatedRelayDevice} and frames read from the IN endpoint are
+ * received from it.
+ *
+ * <p>
+ * Every transfer takes the configured latency. Asynchronous submissions complete on a single
+ * completion thread, like the IRP queue of a real pipe.
+ */
+class StubUsbInterface {
+  private static final int ENDPOINT_DIRECTION_IN = 0x80;
+
+  private static final ExecutorService COMPLETIONS = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "stub-usb-pipe-completions");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final long latencyNanos;
+  private final SimulatedRelayDevice device = SimulatedRelayDevice.create();
+  private final UsbEndpoint inEndpoint = endpoint(new StubUsbPipe(true));
+  private final UsbEndpoint outEndpoint = endpoint(new StubUsbPipe(false));
+
+  private StubUsbInterface(long latencyNanos) {
+    this.latencyNanos = latencyNanos;
+  }
+
+  /**
+   * @return a stub interface whose transfers each take the given number of microseconds.
+   */
+  static StubUsbInterface create(long latencyMicros) {
+    return new StubUsbInterface(latencyMicros * 1000);
+  }
+
+  /**
+   * @return the stub as a {@link UsbInterface}. Only endpoint lookup is supported.
+   */
+  UsbInterface usbInterface() {
+    return (UsbInterface) Proxy.newProxyInstance(UsbInterface.class.getClassLoader(), new Class<?>[] {UsbInterface.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("getUsbEndpoint")) {
+            return ((Byte) args[0] & ENDPOINT_DIRECTION_IN) != 0 ? inEndpoint : outEndpoint;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  private static UsbEndpoint endpoint(UsbPipe pipe) {
+    return (UsbEndpoint) Proxy.newProxyInstance(UsbEndpoint.class.getClassLoader(), new Class<?>[] {UsbEndpoint.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("getUsbPipe")) {
+            return pipe;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  private int transfer(boolean in, byte[] data) {
+    simulateLatency();
+
+    if (in) {
+      device.receive(data);
+    } else {
+      device.send(data);
+    }
+    return data.length;
+  }
+
+  private void simulateLatency() {
+    long deadline = System.nanoTime() + latencyNanos;
+    for (long remaining = latencyNanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+      LockSupport.parkNanos(remaining);
+    }
+  }
+
+  private class StubUsbPipe implements UsbPipe {
+    private final boolean in;
+    private final List<UsbPipeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile boolean open;
+
+    StubUsbPipe(boolean in) {
+      this.in = in;
+    }
+
+    @Override
+    public void open() {
+      open = true;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+
+    @Override
+    public boolean isActive() {
+      return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public UsbEndpoint getUsbEndpoint() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int syncSubmit(byte[] data) throws UsbNotOpenException {
+      checkOpen();
+      return transfer(in, data);
+    }
+
+    @Override
+    public UsbIrp asyncSubmit(byte[] data) throws UsbNotOpenException {
+      UsbIrp irp = new DefaultUsbIrp(data);
+      asyncSubmit(irp);
+      return irp;
+    }
+
+    @Override
+    public void syncSubmit(UsbIrp irp) throws UsbNotOpenException {
+      checkOpen();
+      irp.setActualLength(transfer(in, irp.getData()));
+      irp.complete();
+    }
+
+    @Override
+    public void asyncSubmit(UsbIrp irp) throws UsbNotOpenException {
+      checkOpen();
+      COMPLETIONS.execute(() -> {
+        irp.setActualLength(transfer(in, irp.getData()));
+        irp.complete();
+
+        UsbPipeDataEvent event = new UsbPipeDataEvent(this, irp);
+        listeners.forEach(listener -> listener.dataEventOccurred(event));
+      });
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void syncSubmit(List list) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void asyncSubmit(List list) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void abortAllSubmissions() {
+    }
+
+    @Override
+    public UsbIrp createUsbIrp() {
+      return new DefaultUsbIrp();
+    }
+
+    @Override
+    public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addUsbPipeListener(UsbPipeListener listener) {
+      listeners.add(listener);
+    }
+
+    @Override
+    public void removeUsbPipeListener(UsbPipeListener listener) {
+      listeners.remove(listener);
+    }
+
+    private void checkOpen() throws UsbNotOpenException {
+      if (!open) {
+        throw new UsbNotOpenException("Pipe is not open.");
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package net.symbioquine.usbhidrelay.benchmarks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.symbioquine.usbhidrelay.SimulatedRelayDevice;
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelayOptions;
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+
+/**
+ * Measures the commands of {@link UsbHidRelay} end to end against a {@link SimulatedRelayDevice}
+ * with a configurable transfer latency.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UsbHidRelayBenchmark {
+  @Param({"0", "100"})
+  long latencyMicros;
+
+  @Param({"false", "true"})
+  boolean cached;
+
+  UsbHidRelay relay;
+  int mask;
+
+  @Setup
+  public void setUp() {
+    SimulatedRelayDevice device = SimulatedRelayDevice.create();
+    device.setTransferLatency(Duration.ofNanos(latencyMicros * 1000));
+
+    UsbHidRelayOptions options = cached
+        ? UsbHidRelayOptions.builder().switchStateCacheMaxAge(Duration.ofDays(1)).build()
+        : UsbHidRelayOptions.defaults();
+    relay = UsbHidRelay.create(device, UsbHidRelaySize.SIXTEEN, options);
+  }
+
+  @TearDown
+  public void tearDown() {
+    relay.close();
+  }
+
+  @Benchmark
+  public int readMask() {
+    return relay.readMask();
+  }
+
+  @Benchmark
+  public List<Boolean> getSwitchStates() {
+    return relay.getSwitchStates();
+  }
+
+  @Benchmark
+  public void writeMask() {
+    mask = (mask + 1) & 0xFFFF;
+    relay.writeMask(mask);
+  }
+
+  @Benchmark
+  public void setSwitchState() {
+    mask ^= 1;
+    relay.setSwitchState(0, (mask & 1) != 0);
+  }
+
+  @Benchmark
+  public void applyMask() {
+    mask ^= 1;
+    relay.applyMask(mask & 1, ~mask & 1);
+  }
+
+  @Benchmark
+  public void writeMaskAsync() {
+    mask = (mask + 1) & 0xFFFF;
+    relay.writeMaskAsync(mask).join();
+  }
+}
@@ -0,0 +1,98 @@
+package net.symbioquine.usbhidrelay.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.symbioquine.usbhidrelay.FrameTransport;
+import net.symbioquine.usbhidrelay.SimulatedRelayDevice;
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+
+/**
+ * Measures the cost of framing commands and decoding responses, without any transfers. The relay
+ * talks to a transport which drops the frames it is sent and answers with a response recorded from
+ * a {@link SimulatedRelayDevice}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UsbHidRelayFramesBenchmark {
+  @Param({"8", "16"})
+  int switches;
+
+  UsbHidRelay relay;
+  int mask;
+
+  @Setup
+  public void setUp() {
+    ReplayingTransport transport = new ReplayingTransport();
+    relay = UsbHidRelay.create(transport, UsbHidRelaySize.of(switches));
+    mask = 0xA5A5 & ((1 << switches) - 1);
+
+    relay.writeMask(mask);
+    relay.readMask();
+    transport.replaying = true;
+  }
+
+  @TearDown
+  public void tearDown() {
+    relay.close();
+  }
+
+  @Benchmark
+  public void writeMask() {
+    relay.writeMask(mask);
+  }
+
+  @Benchmark
+  public int readMask() {
+    return relay.readMask();
+  }
+
+  /**
+   * Passes frames to a simulated relay until it is replaying, then drops the frames it is sent and
+   * answers with the last response the relay gave.
+   */
+  private static class ReplayingTransport implements FrameTransport {
+    final SimulatedRelayDevice device = SimulatedRelayDevice.create();
+    byte[] response;
+    boolean replaying;
+
+    @Override
+    public void send(byte[] frame) {
+      if (!replaying) {
+        device.send(frame);
+      }
+    }
+
+    @Override
+    public void receive(byte[] frame) {
+      if (replaying) {
+        System.arraycopy(response, 0, frame, 0, frame.length);
+        return;
+      }
+      device.receive(frame);
+      response = frame.clone();
+    }
+
+    @Override
+    public void close() {
+      device.close();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package net.symbioquine.usbhidrelay.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelayOptions;
+import net.symbioquine.usbhidrelay.UsbHidRelayPipeMode;
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+
+/**
+ * Measures the USB transport in each {@link UsbHidRelayPipeMode} against stub pipes with a
+ * configurable transfer latency, to show the cost of opening and closing pipes around every
+ * command.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UsbHidRelayPipeModeBenchmark {
+  @Param({"PER_COMMAND", "PERSISTENT"})
+  UsbHidRelayPipeMode pipeMode;
+
+  @Param({"0", "100"})
+  long latencyMicros;
+
+  UsbHidRelay relay;
+  int mask;
+
+  @Setup
+  public void setUp() {
+    StubUsbInterface usbInterface = StubUsbInterface.create(latencyMicros);
+    relay = UsbHidRelay.create(usbInterface.usbInterface(), UsbHidRelaySize.SIXTEEN,
+        UsbHidRelayOptions.builder().pipeMode(pipeMode).build());
+  }
+
+  @TearDown
+  public void tearDown() {
+    relay.close();
+  }
+
+  @Benchmark
+  public int readMask() {
+    return relay.readMask();
+  }
+
+  @Benchmark
+  public void writeMask() {
+    mask = (mask + 1) & 0xFFFF;
+    relay.writeMask(mask);
+  }
+
+  @Benchmark
+  public int readMaskAsync() {
+    return relay.readMaskAsync().join();
+  }
+
+  @Benchmark
+  public void writeMaskAsync() {
+    mask = (mask + 1) & 0xFFFF;
+    relay.writeMaskAsync(mask).join();
+  }
+}
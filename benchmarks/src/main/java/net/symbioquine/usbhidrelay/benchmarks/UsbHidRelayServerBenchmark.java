@@ -0,0 +1,94 @@
+package net.symbioquine.usbhidrelay.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.symbioquine.usbhidrelay.SimulatedRelayDevice;
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+import net.symbioquine.usbhidrelay.server.UsbHidRelayClient;
+import net.symbioquine.usbhidrelay.server.UsbHidRelayServer;
+
+/**
+ * Measures requests to a {@link UsbHidRelayServer} over loopback, sharing a
+ * {@link SimulatedRelayDevice} without latency so that the protocol and network dominate.
+ *
+ * <p>
+ * The pipelined benchmarks send {@code pipelineDepth} requests per operation before waiting for
+ * the last response, so their throughput in requests per second is the reported operations per
+ * second times the depth.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UsbHidRelayServerBenchmark {
+  @Param({"1", "16", "64"})
+  int pipelineDepth;
+
+  UsbHidRelayServer server;
+  UsbHidRelayClient client;
+  UsbHidRelay relay;
+  int mask;
+
+  @Setup
+  public void setUp() {
+    server = UsbHidRelayServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+        UsbHidRelay.create(SimulatedRelayDevice.create(), UsbHidRelaySize.SIXTEEN));
+    client = UsbHidRelayClient.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+    relay = client.relay(0);
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.close();
+    server.close();
+  }
+
+  @Benchmark
+  public int readMask() {
+    return relay.readMask();
+  }
+
+  @Benchmark
+  public void writeMask() {
+    mask = (mask + 1) & 0xFFFF;
+    relay.writeMask(mask);
+  }
+
+  @Benchmark
+  public void applyMaskPipelined() {
+    CompletableFuture<Void> last = null;
+    for (int i = 0; i < pipelineDepth; i++) {
+      mask = (mask + 1) & 0x7;
+      last = client.applyMaskAsync(0, 1 << mask, 1 << (mask + 8));
+    }
+    last.join();
+  }
+
+  @Benchmark
+  public int readMaskPipelined() {
+    CompletableFuture<Integer> last = null;
+    for (int i = 0; i < pipelineDepth; i++) {
+      last = client.readMaskAsync(0);
+    }
+    return last.join();
+  }
+}
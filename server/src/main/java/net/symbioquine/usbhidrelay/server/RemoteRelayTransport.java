@@ -0,0 +1,49 @@
+package net.symbioquine.usbhidrelay.server;
+
+import java.util.concurrent.CompletableFuture;
+
+import net.symbioquine.usbhidrelay.RelayMaskTransport;
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+
+/**
+ * Carries the commands of a {@link UsbHidRelay} to a relay shared by a {@link UsbHidRelayServer},
+ * sending each as the equivalent request. Changes to a subset of the switches are sent as apply
+ * requests, so the server changes only those switches and changes made by other clients to the
+ * other switches are kept.
+ */
+class RemoteRelayTransport implements RelayMaskTransport {
+  private final UsbHidRelayClient client;
+  private final int relayIndex;
+
+  RemoteRelayTransport(UsbHidRelayClient client, int relayIndex) {
+    this.client = client;
+    this.relayIndex = relayIndex;
+  }
+
+  @Override
+  public CompletableFuture<Integer> readMaskAsync() {
+    return client.readMaskAsync(relayIndex);
+  }
+
+  @Override
+  public CompletableFuture<Void> writeMaskAsync(int mask) {
+    return client.writeMaskAsync(relayIndex, mask);
+  }
+
+  @Override
+  public CompletableFuture<Void> applyMaskAsync(int setBits, int clearBits) {
+    return client.applyMaskAsync(relayIndex, setBits, clearBits);
+  }
+
+  @Override
+  public CompletableFuture<Void> resetAsync() {
+    return client.resetAsync(relayIndex);
+  }
+
+  /**
+   * The connection is shared with the other relays of the client, so it is left open.
+   */
+  @Override
+  public void close() {
+  }
+}
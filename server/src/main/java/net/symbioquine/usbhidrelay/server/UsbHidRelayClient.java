@@ -0,0 +1,286 @@
+package net.symbioquine.usbhidrelay.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import net.symbioquine.usbhidrelay.RelayTransport;
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelayDisconnectedException;
+import net.symbioquine.usbhidrelay.UsbHidRelayOptions;
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+
+/**
+ * Controls the relays shared by a {@link UsbHidRelayServer}.
+ *
+ * <p>
+ * {@link #relay(int)} returns a {@link UsbHidRelay} for a remote relay, so code written against a
+ * local relay works unchanged;
+ *
+ * <pre>
+ * try (UsbHidRelayClient client = UsbHidRelayClient.connect(new InetSocketAddress("localhost", 5020))) {
+ *   UsbHidRelay relay = client.relay(0);
+ *
+ *   relay.setSwitchOn(3);
+ * }
+ * </pre>
+ *
+ * <p>
+ * The asynchronous methods of the client send requests without waiting for the responses to
+ * earlier ones, so many requests can be in flight on the one connection. Requests complete in the
+ * order they were sent. Every relay returned by the client shares its connection.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayClient implements AutoCloseable {
+  private static final int BUFFER_SIZE = 8192;
+
+  Socket socket;
+  DataInputStream in;
+  DataOutputStream out;
+  Queue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<>();
+  Thread receivingThread;
+
+  @NonFinal
+  int nextRequestId;
+  @NonFinal
+  volatile boolean closed;
+
+  private UsbHidRelayClient(Socket socket) throws IOException {
+    this.socket = socket;
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+
+    this.receivingThread = new Thread(this::receiveResponses, "usb-hid-relay-client-" + socket.getRemoteSocketAddress());
+    receivingThread.setDaemon(true);
+  }
+
+  /**
+   * @return a client connected to the server at the given address.
+   */
+  public static UsbHidRelayClient connect(@NonNull InetSocketAddress address) {
+    Socket socket = new Socket();
+    UsbHidRelayClient client;
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(address);
+      client = new UsbHidRelayClient(socket);
+    } catch (IOException e) {
+      try {
+        socket.close();
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw new RuntimeException("Failed to connect to relay server at " + address + ".", e);
+    }
+
+    client.receivingThread.start();
+    return client;
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} which controls the relay with the given index on the server.
+   *         Closing it does not close the client.
+   */
+  public UsbHidRelay relay(int relayIndex) {
+    return relay(relayIndex, UsbHidRelayOptions.defaults());
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} with the given options which controls the relay with the given
+   *         index on the server. Closing it does not close the client.
+   */
+  public UsbHidRelay relay(int relayIndex, @NonNull UsbHidRelayOptions options) {
+    UsbHidRelaySize relaySize = UsbHidRelayProtocol.relaySize(join(relaySizeAsync(relayIndex)));
+    return UsbHidRelay.create(transport(relayIndex), relaySize, options);
+  }
+
+  /**
+   * @return a {@link RelayTransport} which carries the commands of a {@link UsbHidRelay} to the
+   *         relay with the given index on the server. Changes to a subset of the switches are sent
+   *         as {@link #applyMaskAsync(int, int, int)} requests.
+   */
+  public RelayTransport transport(int relayIndex) {
+    return new RemoteRelayTransport(this, checkRelayIndex(relayIndex));
+  }
+
+  /**
+   * @return a future which completes with the number of switches on the relay with the given index.
+   */
+  public CompletableFuture<Integer> relaySizeAsync(int relayIndex) {
+    return send(UsbHidRelayProtocol.OP_SIZE, relayIndex, 0, 0);
+  }
+
+  /**
+   * @return a future which completes with a mask of the switch states of the relay with the given
+   *         index.
+   * @see UsbHidRelay#readMask()
+   */
+  public CompletableFuture<Integer> readMaskAsync(int relayIndex) {
+    return send(UsbHidRelayProtocol.OP_READ, relayIndex, 0, 0);
+  }
+
+  /**
+   * @return a future which completes once the switches of the relay with the given index are in the
+   *         states of the given mask.
+   * @see UsbHidRelay#writeMask(int)
+   */
+  public CompletableFuture<Void> writeMaskAsync(int relayIndex, int mask) {
+    return send(UsbHidRelayProtocol.OP_WRITE, relayIndex, mask, 0).thenApply(value -> null);
+  }
+
+  /**
+   * @return a future which completes once the given switches of the relay with the given index have
+   *         been turned on and off.
+   * @see UsbHidRelay#applyMask(int, int)
+   */
+  public CompletableFuture<Void> applyMaskAsync(int relayIndex, int setBits, int clearBits) {
+    return send(UsbHidRelayProtocol.OP_APPLY, relayIndex, setBits, clearBits).thenApply(value -> null);
+  }
+
+  /**
+   * @return a future which completes once the HID interface of the relay with the given index has
+   *         been reset.
+   * @see UsbHidRelay#reset()
+   */
+  public CompletableFuture<Void> resetAsync(int relayIndex) {
+    return send(UsbHidRelayProtocol.OP_RESET, relayIndex, 0, 0).thenApply(value -> null);
+  }
+
+  /**
+   * Disconnect from the server. Requests still in flight fail with a
+   * {@link UsbHidRelayDisconnectedException}.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    closeSocket();
+
+    if (Thread.currentThread() != receivingThread) {
+      try {
+        receivingThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private CompletableFuture<Integer> send(int opcode, int relayIndex, int argument0, int argument1) {
+    checkRelayIndex(relayIndex);
+
+    PendingRequest request = new PendingRequest();
+    synchronized (out) {
+      if (closed) {
+        return disconnected(request.completion);
+      }
+
+      request.requestId = nextRequestId++;
+      pendingRequests.add(request);
+      try {
+        out.writeByte(opcode);
+        out.writeInt(request.requestId);
+        out.writeByte(relayIndex);
+        int argumentsLength = UsbHidRelayProtocol.argumentsLength(opcode);
+        if (argumentsLength >= 4) {
+          out.writeInt(argument0);
+        }
+        if (argumentsLength >= 8) {
+          out.writeInt(argument1);
+        }
+        out.flush();
+      } catch (IOException e) {
+        // The receiving thread fails every pending request once the socket is closed.
+        closeSocket();
+      }
+    }
+    return request.completion;
+  }
+
+  private void receiveResponses() {
+    try {
+      while (true) {
+        int requestId = in.readInt();
+        int status = in.readUnsignedByte();
+        int value = in.readInt();
+        String message = status != UsbHidRelayProtocol.STATUS_OK ? in.readUTF() : null;
+
+        PendingRequest request = pendingRequests.poll();
+        if (request == null || request.requestId != requestId) {
+          throw new IOException("Received a response to request " + requestId + " out of order.");
+        }
+
+        switch (status) {
+          case UsbHidRelayProtocol.STATUS_OK:
+            request.completion.complete(value);
+            break;
+          case UsbHidRelayProtocol.STATUS_INVALID:
+            request.completion.completeExceptionally(new IllegalArgumentException(message));
+            break;
+          default:
+            request.completion.completeExceptionally(new RuntimeException(message));
+            break;
+        }
+      }
+    } catch (IOException e) {
+      synchronized (out) {
+        closed = true;
+      }
+      closeSocket();
+
+      for (PendingRequest request = pendingRequests.poll(); request != null; request = pendingRequests.poll()) {
+        disconnected(request.completion);
+      }
+    }
+  }
+
+  private void closeSocket() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // The receiving thread stops either way.
+    }
+  }
+
+  private static int checkRelayIndex(int relayIndex) {
+    if (relayIndex < 0 || relayIndex > 0xFF) {
+      throw new IllegalArgumentException("Relay index must be in the range 0 to 255. Instead got: " + relayIndex);
+    }
+    return relayIndex;
+  }
+
+  /**
+   * @return the result of the given future once it completes, throwing the exception it failed with
+   *         if it is unchecked.
+   */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static <T> CompletableFuture<T> disconnected(CompletableFuture<T> completion) {
+    completion.completeExceptionally(new UsbHidRelayDisconnectedException("Not connected to the relay server."));
+    return completion;
+  }
+
+  private static class PendingRequest {
+    final CompletableFuture<Integer> completion = new CompletableFuture<>();
+    int requestId;
+  }
+}
@@ -0,0 +1,75 @@
+package net.symbioquine.usbhidrelay.server;
+
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+
+/**
+ * The binary protocol spoken between {@link UsbHidRelayServer} and {@link UsbHidRelayClient}.
+ *
+ * <p>
+ * All integers are big-endian. Every request starts with a one byte opcode, a four byte request id
+ * and a one byte relay index, followed by the arguments of the opcode;
+ *
+ * <pre>
+ * SIZE   0x01 id relay                 -&gt; the number of switches on the relay
+ * READ   0x02 id relay                 -&gt; the switch mask
+ * WRITE  0x03 id relay mask:i32        -&gt; 0
+ * APPLY  0x04 id relay set:i32 clr:i32 -&gt; 0
+ * RESET  0x05 id relay                 -&gt; 0
+ * </pre>
+ *
+ * <p>
+ * Every response is the request id, a one byte status and a four byte value. Responses with a
+ * status other than {@link #STATUS_OK} are followed by an error message in modified UTF-8, as
+ * written by {@link java.io.DataOutput#writeUTF(String)}.
+ *
+ * <p>
+ * Clients may send any number of requests without waiting for their responses. The server answers
+ * the requests of a connection in the order they were sent.
+ */
+final class UsbHidRelayProtocol {
+  static final int OP_SIZE = 0x01;
+  static final int OP_READ = 0x02;
+  static final int OP_WRITE = 0x03;
+  static final int OP_APPLY = 0x04;
+  static final int OP_RESET = 0x05;
+
+  static final int STATUS_OK = 0;
+  /**
+   * The command was valid but the relay failed to carry it out.
+   */
+  static final int STATUS_FAILED = 1;
+  /**
+   * The request named a relay which does not exist or had arguments which the relay rejected.
+   */
+  static final int STATUS_INVALID = 2;
+
+  private UsbHidRelayProtocol() {
+  }
+
+  /**
+   * @return the number of bytes of arguments which follow the header of a request with the given
+   *         opcode, or -1 if the opcode is unknown.
+   */
+  static int argumentsLength(int opcode) {
+    switch (opcode) {
+      case OP_SIZE:
+      case OP_READ:
+      case OP_RESET:
+        return 0;
+      case OP_WRITE:
+        return 4;
+      case OP_APPLY:
+        return 8;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * @return the relay size with the given number of switches.
+   * @throws IllegalArgumentException if there is no such size.
+   */
+  static UsbHidRelaySize relaySize(int switches) {
+    return UsbHidRelaySize.of(switches);
+  }
+}
@@ -0,0 +1,521 @@
+package net.symbioquine.usbhidrelay.server;
+
+import static java.util.Collections.unmodifiableList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import net.symbioquine.usbhidrelay.DiscoveredUsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelay;
+import net.symbioquine.usbhidrelay.UsbHidRelayDiscovery;
+import net.symbioquine.usbhidrelay.UsbHidRelayOptions;
+import net.symbioquine.usbhidrelay.UsbHidRelayPipeMode;
+import net.symbioquine.usbhidrelay.UsbHidRelaySize;
+
+/**
+ * Shares relays with other processes over TCP. The server owns the relays, and clients on the
+ * network control them through {@link UsbHidRelayClient};
+ *
+ * <pre>
+ * UsbHidRelayServer server = UsbHidRelayServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 5020), relay);
+ * </pre>
+ *
+ * <p>
+ * Each connection is served by its own thread, which reads every request already sent by the
+ * client before executing any of them. Consecutive writes to the same relay within such a batch are
+ * merged, the last write to each switch winning, and carried out as a single mask write. Reads and
+ * resets see the writes sent before them. The responses to a batch are sent together.
+ *
+ * @see UsbHidRelayProtocol
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayServer implements AutoCloseable {
+  /**
+   * The port the server listens on when run from the command line without one.
+   */
+  public static final int DEFAULT_PORT = 5020;
+
+  private static final int MAX_BATCH_SIZE = 256;
+  private static final int BUFFER_SIZE = 8192;
+
+  List<UsbHidRelay> relays;
+  ServerSocket serverSocket;
+  Thread acceptingThread;
+  Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+  LongAdder acceptedConnections = new LongAdder();
+  LongAdder requests = new LongAdder();
+  LongAdder batches = new LongAdder();
+  LongAdder writeRequests = new LongAdder();
+  LongAdder writes = new LongAdder();
+
+  @NonFinal
+  volatile boolean closed;
+
+  private UsbHidRelayServer(List<UsbHidRelay> relays, ServerSocket serverSocket) {
+    if (relays.size() > 0xFF) {
+      throw new IllegalArgumentException("A server can share at most 255 relays. Instead got: " + relays.size());
+    }
+    this.relays = unmodifiableList(new ArrayList<>(relays));
+    this.serverSocket = serverSocket;
+
+    this.acceptingThread = new Thread(this::acceptConnections, "usb-hid-relay-server");
+    acceptingThread.setDaemon(true);
+  }
+
+  /**
+   * @return a running server which shares the given relays on the given address. Clients refer to
+   *         the relays by their index in the given list. The server takes ownership of the relays
+   *         and closes them when it is closed.
+   */
+  public static UsbHidRelayServer create(@NonNull InetSocketAddress address, @NonNull List<UsbHidRelay> relays) {
+    ServerSocket serverSocket;
+    try {
+      serverSocket = new ServerSocket();
+      serverSocket.setReuseAddress(true);
+      serverSocket.bind(address);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to listen on " + address + ".", e);
+    }
+
+    UsbHidRelayServer server = new UsbHidRelayServer(relays, serverSocket);
+    server.acceptingThread.start();
+    return server;
+  }
+
+  /**
+   * @return a running server which shares the given relays on the given address.
+   * @see #create(InetSocketAddress, List)
+   */
+  public static UsbHidRelayServer create(@NonNull InetSocketAddress address, @NonNull UsbHidRelay... relays) {
+    return create(address, Arrays.asList(relays));
+  }
+
+  /**
+   * Share every attached relay on the given port, or {@link #DEFAULT_PORT}, until the process is
+   * stopped. Without a relay size each relay is shared with as many switches as it has. With one,
+   * relays with fewer switches are left out.
+   *
+   * <pre>
+   * java -jar usb-hid-relay-server-standalone.jar [relay size [port]]
+   * </pre>
+   */
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length > 2) {
+      System.err.println("Usage: UsbHidRelayServer [relay size [port]]");
+      System.exit(2);
+    }
+
+    UsbHidRelaySize relaySize = args.length > 0 ? UsbHidRelayProtocol.relaySize(Integer.parseInt(args[0])) : null;
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+
+    UsbHidRelayOptions options = UsbHidRelayOptions.builder().pipeMode(UsbHidRelayPipeMode.PERSISTENT).build();
+    List<UsbHidRelay> relays = new ArrayList<>();
+    for (DiscoveredUsbHidRelay relay : UsbHidRelayDiscovery.findAllRelays()) {
+      if (relaySize == null) {
+        relays.add(relay.acquire(relay.relaySize(), options));
+      } else if (relay.relaySize().asInt() < relaySize.asInt()) {
+        System.err.println("Skipping relay " + relay + " which has only " + relay.relaySize().asInt() + " switches.");
+      } else {
+        relays.add(relay.acquire(relaySize, options));
+      }
+    }
+
+    UsbHidRelayServer server = create(new InetSocketAddress(port), relays);
+    Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+    System.out.println("Sharing " + relays.size() + " relay(s) on port " + server.port() + ".");
+
+    server.acceptingThread.join();
+  }
+
+  /**
+   * @return the port the server is listening on, useful when it was created with port 0.
+   */
+  public int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return the relays shared by the server, in the order clients refer to them.
+   */
+  public List<UsbHidRelay> relays() {
+    return relays;
+  }
+
+  /**
+   * @return the number of clients currently connected.
+   */
+  public int connectionCount() {
+    return connections.size();
+  }
+
+  /**
+   * @return the number of connections accepted since the server started.
+   */
+  public long acceptedConnectionCount() {
+    return acceptedConnections.sum();
+  }
+
+  /**
+   * @return the number of requests received.
+   */
+  public long requestCount() {
+    return requests.sum();
+  }
+
+  /**
+   * @return the number of batches the requests were read in. The ratio of requests to batches is
+   *         the average number of requests clients had in flight.
+   */
+  public long batchCount() {
+    return batches.sum();
+  }
+
+  /**
+   * @return the number of write and apply requests received.
+   */
+  public long writeRequestCount() {
+    return writeRequests.sum();
+  }
+
+  /**
+   * @return the number of writes made to the relays on behalf of clients. Less than
+   *         {@link #writeRequestCount()} when requests were merged.
+   */
+  public long writeCount() {
+    return writes.sum();
+  }
+
+  /**
+   * Stop accepting connections, disconnect every client and close the relays.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      // The accepting thread stops either way.
+    }
+    connections.forEach(Connection::close);
+
+    if (Thread.currentThread() != acceptingThread) {
+      try {
+        acceptingThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    relays.forEach(UsbHidRelay::close);
+  }
+
+  private void acceptConnections() {
+    while (!closed) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+      } catch (IOException e) {
+        if (closed) {
+          return;
+        }
+        continue;
+      }
+
+      Connection connection;
+      try {
+        connection = new Connection(socket);
+      } catch (IOException e) {
+        closeQuietly(socket);
+        continue;
+      }
+      acceptedConnections.increment();
+      connections.add(connection);
+      if (closed) {
+        connection.close();
+        return;
+      }
+
+      Thread connectionThread = new Thread(connection, "usb-hid-relay-server-" + socket.getRemoteSocketAddress());
+      connectionThread.setDaemon(true);
+      connectionThread.start();
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing more can be done with the socket.
+    }
+  }
+
+  /**
+   * Reads, executes and answers the requests of a single client.
+   */
+  private class Connection implements Runnable {
+    private static final int PENDING = -1;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private final int[] opcodes = new int[MAX_BATCH_SIZE];
+    private final int[] requestIds = new int[MAX_BATCH_SIZE];
+    private final int[] relayIndexes = new int[MAX_BATCH_SIZE];
+    private final int[] arguments = new int[MAX_BATCH_SIZE * 2];
+    private final int[] statuses = new int[MAX_BATCH_SIZE];
+    private final int[] values = new int[MAX_BATCH_SIZE];
+    private final String[] messages = new String[MAX_BATCH_SIZE];
+    private int batchSize;
+    private boolean malformed;
+
+    private final int[] pendingSetBits;
+    private final int[] pendingClearBits;
+    private final boolean[] pendingWholeMask;
+    private final int[] firstPendingWrite;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+
+      this.pendingSetBits = new int[relays.size()];
+      this.pendingClearBits = new int[relays.size()];
+      this.pendingWholeMask = new boolean[relays.size()];
+      this.firstPendingWrite = new int[relays.size()];
+      Arrays.fill(firstPendingWrite, PENDING);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!malformed && readBatch()) {
+          executeBatch();
+          writeResponses();
+        }
+      } catch (IOException e) {
+        // The client disconnected.
+      } finally {
+        close();
+      }
+    }
+
+    void close() {
+      connections.remove(this);
+      closeQuietly(socket);
+    }
+
+    /**
+     * Block until a request arrives, then read every further request which has already arrived.
+     *
+     * @return false if the client closed the connection.
+     */
+    private boolean readBatch() throws IOException {
+      batchSize = 0;
+
+      int opcode = in.read();
+      if (opcode < 0) {
+        return false;
+      }
+      readRequest(opcode);
+
+      while (!malformed && batchSize < MAX_BATCH_SIZE && in.available() > 0) {
+        readRequest(in.readUnsignedByte());
+      }
+
+      requests.add(batchSize);
+      batches.increment();
+      return true;
+    }
+
+    private void readRequest(int opcode) throws IOException {
+      int i = batchSize++;
+      opcodes[i] = opcode;
+      requestIds[i] = in.readInt();
+      relayIndexes[i] = in.readUnsignedByte();
+      statuses[i] = PENDING;
+      messages[i] = null;
+      values[i] = 0;
+
+      int argumentsLength = UsbHidRelayProtocol.argumentsLength(opcode);
+      if (argumentsLength < 0) {
+        // The length of the request is unknown, so nothing after it can be read.
+        malformed = true;
+        fail(i, UsbHidRelayProtocol.STATUS_INVALID, "Unknown opcode: 0x" + Integer.toHexString(opcode));
+        return;
+      }
+      if (argumentsLength >= 4) {
+        arguments[i * 2] = in.readInt();
+      }
+      if (argumentsLength >= 8) {
+        arguments[i * 2 + 1] = in.readInt();
+      }
+    }
+
+    private void executeBatch() {
+      for (int i = 0; i < batchSize; i++) {
+        if (statuses[i] != PENDING) {
+          continue;
+        }
+
+        int relayIndex = relayIndexes[i];
+        if (relayIndex >= relays.size()) {
+          fail(i, UsbHidRelayProtocol.STATUS_INVALID, "No relay with index " + relayIndex + ". There are " + relays.size() + " relay(s).");
+          continue;
+        }
+        UsbHidRelay relay = relays.get(relayIndex);
+
+        switch (opcodes[i]) {
+          case UsbHidRelayProtocol.OP_SIZE:
+            succeed(i, relay.relaySize().asInt());
+            break;
+          case UsbHidRelayProtocol.OP_READ:
+            flushWrites(relayIndex, i);
+            try {
+              succeed(i, relay.readMask());
+            } catch (RuntimeException e) {
+              fail(i, e);
+            }
+            break;
+          case UsbHidRelayProtocol.OP_RESET:
+            flushWrites(relayIndex, i);
+            try {
+              relay.reset();
+              succeed(i, 0);
+            } catch (RuntimeException e) {
+              fail(i, e);
+            }
+            break;
+          case UsbHidRelayProtocol.OP_WRITE:
+            mergeWrite(i, relay, arguments[i * 2], ~arguments[i * 2], true);
+            break;
+          case UsbHidRelayProtocol.OP_APPLY:
+            mergeWrite(i, relay, arguments[i * 2], arguments[i * 2 + 1], false);
+            break;
+          default:
+            throw new IllegalStateException("Unknown opcode: " + opcodes[i]);
+        }
+      }
+
+      for (int relayIndex = 0; relayIndex < relays.size(); relayIndex++) {
+        flushWrites(relayIndex, batchSize);
+      }
+    }
+
+    private void mergeWrite(int i, UsbHidRelay relay, int setBits, int clearBits, boolean wholeMask) {
+      writeRequests.increment();
+
+      int allSwitchesMask = (1 << relay.relaySize().asInt()) - 1;
+      int invalidBits = (wholeMask ? setBits : setBits | clearBits) & ~allSwitchesMask;
+      if (invalidBits != 0) {
+        fail(i, UsbHidRelayProtocol.STATUS_INVALID, "Mask must only have bits set for switches 0 to " + (relay.relaySize().asInt() - 1)
+            + " instead got bits: 0x" + Integer.toHexString(invalidBits));
+        return;
+      }
+      clearBits &= allSwitchesMask;
+
+      int relayIndex = relayIndexes[i];
+      if (firstPendingWrite[relayIndex] == PENDING) {
+        firstPendingWrite[relayIndex] = i;
+        pendingSetBits[relayIndex] = setBits;
+        pendingClearBits[relayIndex] = clearBits;
+        pendingWholeMask[relayIndex] = wholeMask;
+        return;
+      }
+
+      // A switch in both masks is turned on, as by UsbHidRelay#applyMask
+      pendingSetBits[relayIndex] = (pendingSetBits[relayIndex] & ~clearBits) | setBits;
+      pendingClearBits[relayIndex] = (pendingClearBits[relayIndex] & ~setBits) | clearBits;
+      pendingWholeMask[relayIndex] |= wholeMask;
+    }
+
+    /**
+     * Carry out the writes to the given relay merged from the requests before the given index.
+     */
+    private void flushWrites(int relayIndex, int end) {
+      int first = firstPendingWrite[relayIndex];
+      if (first == PENDING) {
+        return;
+      }
+      firstPendingWrite[relayIndex] = PENDING;
+
+      UsbHidRelay relay = relays.get(relayIndex);
+      int status = UsbHidRelayProtocol.STATUS_OK;
+      String message = null;
+      try {
+        if (pendingWholeMask[relayIndex]) {
+          relay.writeMask(pendingSetBits[relayIndex]);
+        } else {
+          relay.applyMask(pendingSetBits[relayIndex], pendingClearBits[relayIndex] & ~pendingSetBits[relayIndex]);
+        }
+      } catch (RuntimeException e) {
+        status = statusOf(e);
+        message = messageOf(e);
+      }
+      writes.increment();
+
+      for (int i = first; i < end; i++) {
+        if (statuses[i] == PENDING && relayIndexes[i] == relayIndex) {
+          statuses[i] = status;
+          messages[i] = message;
+        }
+      }
+    }
+
+    private void writeResponses() throws IOException {
+      for (int i = 0; i < batchSize; i++) {
+        out.writeInt(requestIds[i]);
+        out.writeByte(statuses[i]);
+        out.writeInt(values[i]);
+        if (statuses[i] != UsbHidRelayProtocol.STATUS_OK) {
+          out.writeUTF(messages[i]);
+        }
+      }
+      out.flush();
+    }
+
+    private void succeed(int i, int value) {
+      statuses[i] = UsbHidRelayProtocol.STATUS_OK;
+      values[i] = value;
+    }
+
+    private void fail(int i, RuntimeException e) {
+      fail(i, statusOf(e), messageOf(e));
+    }
+
+    private void fail(int i, int status, String message) {
+      statuses[i] = status;
+      messages[i] = message;
+    }
+
+    private int statusOf(RuntimeException e) {
+      return e instanceof IllegalArgumentException ? UsbHidRelayProtocol.STATUS_INVALID : UsbHidRelayProtocol.STATUS_FAILED;
+    }
+
+    private String messageOf(RuntimeException e) {
+      return e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+    }
+  }
+}
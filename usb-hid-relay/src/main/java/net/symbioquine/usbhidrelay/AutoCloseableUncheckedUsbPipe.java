@@ -0,0 +1,155 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+
+/**
+ * Wrap a {@link UsbPipe} to make it {@link AutoCloseable} and avoid checked exceptions.
+ */
+class AutoCloseableUncheckedUsbPipe implements AutoCloseable {
+  private final UsbPipe pipe;
+  private final int endpointAddress;
+  private final UsbHidRelayMetricsListener metricsListener;
+  private final RelayTransferPhases transferPhases;
+  private final Map<UsbIrp, PendingIrp> pendingIrps = new ConcurrentHashMap<>();
+  private final UsbPipeListener irpCompletionListener = new IrpCompletionListener();
+
+  public AutoCloseableUncheckedUsbPipe(UsbPipe pipe, int endpointAddress, UsbHidRelayMetricsListener metricsListener,
+      RelayTransferPhases transferPhases) {
+    this.pipe = requireNonNull(pipe);
+    this.endpointAddress = endpointAddress;
+    this.metricsListener = requireNonNull(metricsListener);
+    this.transferPhases = requireNonNull(transferPhases);
+    this.pipe.addUsbPipeListener(irpCompletionListener);
+  }
+
+  public void syncSubmit(byte[] data) {
+    long startedAtNanos = transferPhases.phaseStarted();
+    try {
+      int result = pipe.syncSubmit(data);
+      if (result != data.length) {
+        metricsListener.shortTransfer(endpointAddress, data.length, result);
+        throw new RuntimeException("Failed to read or write data on pipe. Expected " + data.length + " bytes to be transferred. Instead "
+            + result + " were transferred.");
+      }
+      metricsListener.transferCompleted(endpointAddress, result);
+    } catch (UsbNotActiveException | UsbNotOpenException | IllegalArgumentException | UsbDisconnectedException | UsbException e) {
+      metricsListener.transferFailed(endpointAddress, e);
+      throw new RuntimeException(e);
+    } finally {
+      transferPhases.dataSubmitted(startedAtNanos);
+    }
+  }
+
+  /**
+   * Submit the data on the pipe without waiting for the transfer to complete.
+   *
+   * @return a future which completes once the transfer completes, or completes exceptionally if the
+   *         transfer fails or transfers fewer bytes than expected.
+   */
+  public CompletableFuture<Void> asyncSubmit(byte[] data) {
+    PendingIrp pending = new PendingIrp(transferPhases.phaseStarted());
+
+    UsbIrp irp = pipe.createUsbIrp();
+    irp.setData(data);
+
+    pendingIrps.put(irp, pending);
+    try {
+      pipe.asyncSubmit(irp);
+    } catch (UsbNotActiveException | UsbNotOpenException | IllegalArgumentException | UsbDisconnectedException | UsbException e) {
+      pendingIrps.remove(irp);
+      metricsListener.transferFailed(endpointAddress, e);
+      pending.fail(new RuntimeException(e));
+    }
+    return pending.completion;
+  }
+
+  @Override
+  public void close() {
+    pipe.removeUsbPipeListener(irpCompletionListener);
+
+    boolean hadPendingIrps = !pendingIrps.isEmpty();
+
+    RuntimeException abandoned = new RuntimeException("Pipe was closed before the transfer completed.");
+    pendingIrps.values().forEach(pending -> pending.fail(abandoned));
+    pendingIrps.clear();
+
+    long startedAtNanos = transferPhases.phaseStarted();
+    try {
+      if (hadPendingIrps) {
+        pipe.abortAllSubmissions();
+      }
+      pipe.close();
+    } catch (UsbNotActiveException | UsbNotOpenException | IllegalArgumentException | UsbDisconnectedException | UsbException e) {
+      throw new RuntimeException(e);
+    } finally {
+      transferPhases.pipeClosed(startedAtNanos);
+    }
+  }
+
+  private class IrpCompletionListener implements UsbPipeListener {
+    @Override
+    public void dataEventOccurred(UsbPipeDataEvent event) {
+      PendingIrp pending = pendingIrps.remove(event.getUsbIrp());
+      if (pending == null) {
+        return;
+      }
+
+      UsbIrp irp = event.getUsbIrp();
+      if (irp.getActualLength() != irp.getLength()) {
+        metricsListener.shortTransfer(endpointAddress, irp.getLength(), irp.getActualLength());
+        pending.fail(new RuntimeException("Failed to read or write data on pipe. Expected " + irp.getLength()
+            + " bytes to be transferred. Instead " + irp.getActualLength() + " were transferred."));
+      } else {
+        metricsListener.transferCompleted(endpointAddress, irp.getActualLength());
+        pending.succeed();
+      }
+    }
+
+    @Override
+    public void errorEventOccurred(UsbPipeErrorEvent event) {
+      PendingIrp pending = pendingIrps.remove(event.getUsbIrp());
+      if (pending != null) {
+        metricsListener.transferFailed(endpointAddress, event.getUsbException());
+        pending.fail(new RuntimeException(event.getUsbException()));
+      }
+    }
+  }
+
+  /**
+   * The completion of a submitted transfer and when it was submitted. The time spent submitting is
+   * recorded before the completion completes, so that it is part of any command trace which ends
+   * when the transfer does.
+   */
+  private class PendingIrp {
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final long startedAtNanos;
+
+    PendingIrp(long startedAtNanos) {
+      this.startedAtNanos = startedAtNanos;
+    }
+
+    void succeed() {
+      transferPhases.dataSubmitted(startedAtNanos);
+      completion.complete(null);
+    }
+
+    void fail(RuntimeException failure) {
+      transferPhases.dataSubmitted(startedAtNanos);
+      completion.completeExceptionally(failure);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package net.symbioquine.usbhidrelay;
+
+import static net.symbioquine.usbhidrelay.RelayCommandQueue.await;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Blocking view of a {@link UsbHidRelay} built on its asynchronous commands.
+ *
+ * <p>
+ * Callers wait on a future rather than inside the USB stack while a transfer is in progress and no
+ * monitors are held while waiting, so large numbers of threads, including virtual threads, may
+ * share a relay this way without each occupying a platform thread. Rather than being rejected, callers
+ * wait when the relay already has the maximum number of pending asynchronous commands.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class BlockingUsbHidRelay {
+  UsbHidRelay hidRelay;
+
+  private BlockingUsbHidRelay(@NonNull UsbHidRelay hidRelay) {
+    this.hidRelay = hidRelay;
+  }
+
+  /**
+   * @return a blocking view of the specified {@link UsbHidRelay}.
+   */
+  public static BlockingUsbHidRelay create(@NonNull UsbHidRelay hidRelay) {
+    return new BlockingUsbHidRelay(hidRelay);
+  }
+
+  /**
+   * @return an object representing the number of switches on the relay.
+   */
+  public UsbHidRelaySize relaySize() {
+    return hidRelay.relaySize();
+  }
+
+  /**
+   * @see UsbHidRelay#readMask()
+   */
+  public int readMask() {
+    return await(hidRelay.readMaskAsync(true));
+  }
+
+  /**
+   * @see UsbHidRelay#writeMask(int)
+   */
+  public void writeMask(int mask) {
+    await(hidRelay.writeMaskAsync(mask, true));
+  }
+
+  /**
+   * @see UsbHidRelay#applyMask(int, int)
+   */
+  public void applyMask(int setBits, int clearBits) {
+    await(hidRelay.applyMaskAsync(setBits, clearBits, true));
+  }
+
+  /**
+   * @see UsbHidRelay#setSwitchState(int, boolean)
+   */
+  public void setSwitchState(int switchId, boolean state) {
+    if (switchId < 0 || switchId >= relaySize().asInt()) {
+      throw new IllegalArgumentException("Switch id must be in the range 0 to " + (relaySize().asInt() - 1) + " instead got: " + switchId);
+    }
+
+    int bit = 1 << switchId;
+
+    applyMask(state ? bit : 0, state ? 0 : bit);
+  }
+
+  /**
+   * @see UsbHidRelay#setSwitchOn(int)
+   */
+  public void setSwitchOn(int switchId) {
+    setSwitchState(switchId, true);
+  }
+
+  /**
+   * @see UsbHidRelay#setSwitchOff(int)
+   */
+  public void setSwitchOff(int switchId) {
+    setSwitchState(switchId, false);
+  }
+
+  /**
+   * @see UsbHidRelay#reset()
+   */
+  public void reset() {
+    await(hidRelay.resetAsync(true));
+  }
+}
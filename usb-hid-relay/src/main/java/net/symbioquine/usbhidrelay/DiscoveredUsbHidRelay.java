@@ -0,0 +1,113 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.Optional;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbInterface;
+import javax.usb.UsbNotActiveException;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * A relay device found by {@link UsbHidRelayDiscovery} which has not necessarily been acquired yet.
+ */
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class DiscoveredUsbHidRelay {
+  @Getter
+  UsbHidRelayDeviceId id;
+  @Getter
+  UsbDevice usbDevice;
+  @Getter
+  RelayProtocol protocol;
+  /**
+   * The number of switches of the device, as far as it reports them, otherwise the largest size of
+   * relay talking its protocol.
+   */
+  @Getter
+  UsbHidRelaySize relaySize;
+
+  DiscoveredUsbHidRelay(@NonNull UsbHidRelayDeviceId id, @NonNull UsbDevice usbDevice, @NonNull RelayProtocol protocol,
+      @NonNull UsbHidRelaySize relaySize) {
+    this.id = id;
+    this.usbDevice = usbDevice;
+    this.protocol = protocol;
+    this.relaySize = relaySize;
+  }
+
+  /**
+   * Claim the HID interface of the device.
+   *
+   * @return the claimed interface, which should be released once it is no longer needed.
+   */
+  public UsbInterface claimInterface() {
+    UsbConfiguration configuration = usbDevice.getUsbConfiguration((byte) 1);
+    Optional<UsbInterface> usbInterface = Optional.ofNullable(configuration.getUsbInterface((byte) 0));
+
+    if (!usbInterface.isPresent()) {
+      throw new RuntimeException("Could not get relay usb interface.");
+    }
+
+    try {
+      usbInterface.get().claim(iface -> true);
+    } catch (UsbNotActiveException | UsbDisconnectedException | UsbException e) {
+      throw new RuntimeException("Failed to claim relay usb device.", e);
+    }
+
+    return usbInterface.get();
+  }
+
+  /**
+   * Claim the HID interface of the device and wrap it with a {@link UsbHidRelay}.
+   *
+   * @return a {@link UsbHidRelay} with the given size and options controlling this device in its
+   *         protocol. If the options have a journal, the relay has been restored to the last mask
+   *         recorded for this device.
+   *         If the relay cannot be created or restored, the interface is released again.
+   * @throws IllegalArgumentException if the device does not have that many switches.
+   * @see UsbHidRelayOptions#journal()
+   */
+  public UsbHidRelay acquire(@NonNull UsbHidRelaySize relaySize, @NonNull UsbHidRelayOptions options) {
+    if (relaySize.asInt() > this.relaySize.asInt()) {
+      throw new IllegalArgumentException("Relay " + id + " has at most " + this.relaySize.asInt() + " switches. Instead got: " + relaySize.asInt());
+    }
+    UsbInterface usbInterface = claimInterface();
+    try {
+      return UsbHidRelay.create(UsbHidRelay.createUsbTransport(usbInterface, protocol, options), protocol, relaySize, options, id);
+    } catch (RuntimeException e) {
+      releaseAfterFailure(usbInterface, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Release an interface claimed for a relay which could not be created, keeping any failure to
+   * release it with the failure which prevented the relay being created.
+   */
+  static void releaseAfterFailure(UsbInterface usbInterface, RuntimeException failure) {
+    try {
+      usbInterface.release();
+    } catch (UsbException | RuntimeException e) {
+      failure.addSuppressed(e);
+    }
+  }
+
+  /**
+   * @return the given size, or the size of the device if it is smaller.
+   */
+  UsbHidRelaySize fitRelaySize(UsbHidRelaySize relaySize) {
+    return relaySize.asInt() > this.relaySize.asInt() ? this.relaySize : relaySize;
+  }
+
+  @Override
+  public String toString() {
+    return id.toString();
+  }
+}
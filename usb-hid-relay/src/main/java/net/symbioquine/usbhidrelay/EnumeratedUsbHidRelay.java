@@ -4,13 +4,13 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.unmodifiableList;
 import static java.util.Collections.unmodifiableMap;
 import static java.util.function.Function.identity;
-import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.IntStream;
 
 import lombok.AccessLevel;
 import lombok.NonNull;
@@ -23,13 +23,18 @@ import lombok.experimental.FieldDefaults;
  * @param <T> the enumeration type
  */
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
-public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
+public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> implements AutoCloseable {
   UsbHidRelay hidRelay;
+  Class<T> enumClass;
   List<T> switchIds;
   Map<Integer, T> switchIdsByValue;
+  int[] masksByOrdinal;
+  int switchIdsMask;
 
+  @SuppressWarnings("unchecked")
   private EnumeratedUsbHidRelay(@NonNull UsbHidRelay hidRelay, @NonNull Class<? extends T> clazz) {
     this.hidRelay = hidRelay;
+    this.enumClass = (Class<T>) clazz;
     this.switchIds = unmodifiableList(asList(clazz.getEnumConstants()));
     this.switchIdsByValue = unmodifiableMap(switchIds.stream().collect(toMap(switchId -> switchId.id(), identity())));
 
@@ -47,6 +52,14 @@ public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
       }
     });
 
+    this.masksByOrdinal = new int[switchIds.size()];
+    int mask = 0;
+    for (T switchId : switchIds) {
+      masksByOrdinal[switchId.ordinal()] = 1 << switchId.id();
+      mask |= masksByOrdinal[switchId.ordinal()];
+    }
+    this.switchIdsMask = mask;
+
   }
 
   /**
@@ -78,6 +91,21 @@ public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
     return new EnumeratedUsbHidRelay<T>(UsbHidRelay.findAndAcquireFirstRelay(relaySize), clazz);
   }
 
+  /**
+   * Create an instance of {@link EnumeratedUsbHidRelay} by acquiring the first {@link UsbHidRelay}
+   * with the given options and wrapping it.
+   * 
+   * @param relaySize the size of the relay which is expected to be found.
+   * @param options the options controlling how the acquired relay talks to the device.
+   * @param clazz a reference to an enumeration implementing the {@link UsbHidRelaySwitchId} interface
+   *        which will be used to refer to specific relay switches.
+   * @return an instance of {@link EnumeratedUsbHidRelay} wrapping the acquired {@link UsbHidRelay}.
+   */
+  public static <T extends Enum<T> & UsbHidRelaySwitchId> EnumeratedUsbHidRelay<T> findAndAcquireFirstRelay(@NonNull UsbHidRelaySize relaySize,
+      @NonNull UsbHidRelayOptions options, Class<? extends T> clazz) {
+    return new EnumeratedUsbHidRelay<T>(UsbHidRelay.findAndAcquireFirstRelay(relaySize, options), clazz);
+  }
+
   /**
    * @return an object representing the number of switches on the relay.
    */
@@ -91,9 +119,13 @@ public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
    *         (circuit open).
    */
   public Map<T, Boolean> getSwitchStates() {
-    List<Boolean> switchStates = hidRelay.getSwitchStates();
+    int mask = hidRelay.readMask();
 
-    return switchIds.stream().collect(toMap(identity(), switchId -> switchStates.get(switchId.id())));
+    Map<T, Boolean> switchStates = new EnumMap<>(enumClass);
+    for (T switchId : switchIds) {
+      switchStates.put(switchId, (mask & maskOf(switchId)) != 0);
+    }
+    return switchStates;
   }
 
   /**
@@ -102,7 +134,53 @@ public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
    *         false indicates the switch is off (circuit open).
    */
   public boolean getSwitchState(@NonNull T switchId) {
-    return getSwitchStates().get(switchId);
+    return (hidRelay.readMask() & maskOf(switchId)) != 0;
+  }
+
+  /**
+   * @return the set of enumerated relay switches which are on (circuit closed).
+   */
+  public EnumSet<T> getSwitchesOn() {
+    int mask = hidRelay.readMask();
+
+    EnumSet<T> switchesOn = EnumSet.noneOf(enumClass);
+    for (T switchId : switchIds) {
+      if ((mask & maskOf(switchId)) != 0) {
+        switchesOn.add(switchId);
+      }
+    }
+    return switchesOn;
+  }
+
+  /**
+   * Read the states of all the switches on the relay as a mask, including any switches not
+   * represented in the enumeration.
+   *
+   * @return a mask of the switch states where bit n is set if the switch with id n is on.
+   * @see UsbHidRelay#readMask()
+   */
+  public int readMask() {
+    return hidRelay.readMask();
+  }
+
+  /**
+   * @param switchId an enumerated relay switch.
+   * @return a mask with only the bit for the given switch set.
+   */
+  public int maskOf(@NonNull T switchId) {
+    return masksByOrdinal[switchId.ordinal()];
+  }
+
+  /**
+   * @param switchIds a collection of enumerated relay switches.
+   * @return a mask with the bits for all the given switches set.
+   */
+  public int maskOf(@NonNull Collection<T> switchIds) {
+    int mask = 0;
+    for (T switchId : switchIds) {
+      mask |= maskOf(switchId);
+    }
+    return mask;
   }
 
   /**
@@ -121,17 +199,43 @@ public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
    *        be on (circuit closed) and false indicates the switch should be off (circuit open).
    */
   public void setSwitchStates(@NonNull Map<T, Boolean> switchStates) {
-    List<Boolean> currentSwitchStates = hidRelay.getSwitchStates();
+    int setBits = 0;
+    int clearBits = 0;
+
+    for (Map.Entry<T, Boolean> switchState : switchStates.entrySet()) {
+      if (switchState.getValue() == null) {
+        continue;
+      }
 
-    List<Boolean> newSwitchStates = IntStream.range(0, currentSwitchStates.size()).mapToObj(switchIdValue -> {
-      Optional<T> switchId = Optional.ofNullable(switchIdsByValue.get(switchIdValue));
+      if (switchState.getValue()) {
+        setBits |= maskOf(switchState.getKey());
+      } else {
+        clearBits |= maskOf(switchState.getKey());
+      }
+    }
 
-      Optional<Boolean> newSwitchState = switchId.map(switchStates::get);
+    hidRelay.applyMask(setBits, clearBits);
+  }
 
-      return newSwitchState.orElseGet(() -> currentSwitchStates.get(switchIdValue));
-    }).collect(toList());
+  /**
+   * Set the states of all the switches in the enumeration simultaneously. Switches in the given set
+   * will be turned on and all other switches in the enumeration will be turned off. Switches not
+   * represented in the enumeration will not be changed.
+   *
+   * @param switchesOn the set of enumerated relay switches which should be on (circuit closed).
+   */
+  public void setSwitchesOn(@NonNull Collection<T> switchesOn) {
+    int setBits = maskOf(switchesOn);
 
-    hidRelay.setSwitchStates(newSwitchStates);
+    hidRelay.applyMask(setBits, switchIdsMask & ~setBits);
+  }
+
+  /**
+   * @return a new, empty, batch of changes to the switches which are written together when
+   *         committed.
+   */
+  public EnumeratedUsbHidRelayBatch<T> batch() {
+    return new EnumeratedUsbHidRelayBatch<>(this);
   }
 
   /**
@@ -172,7 +276,7 @@ public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
    * enumeration will not be changed.
    */
   public void setAllSwitchesOn() {
-    setSwitchStates(switchIds.stream().collect(toMap(identity(), s -> true)));
+    hidRelay.applyMask(switchIdsMask, 0);
   }
 
   /**
@@ -181,6 +285,28 @@ public class EnumeratedUsbHidRelay<T extends Enum<T> & UsbHidRelaySwitchId> {
    * will not be changed.
    */
   public void setAllSwitchesOff() {
-    setSwitchStates(switchIds.stream().collect(toMap(identity(), s -> false)));
+    hidRelay.applyMask(0, switchIdsMask);
+  }
+
+  /**
+   * @return the enumerated switch with the given id, or null if the switch is not represented in
+   *         the enumeration.
+   */
+  T switchIdOf(int switchId) {
+    return switchIdsByValue.get(switchId);
+  }
+
+  UsbHidRelay hidRelay() {
+    return hidRelay;
+  }
+
+  /**
+   * Close the wrapped {@link UsbHidRelay}.
+   *
+   * @see UsbHidRelay#close()
+   */
+  @Override
+  public void close() {
+    hidRelay.close();
   }
 }
@@ -0,0 +1,140 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.Collection;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * A set of changes to the switches of an {@link EnumeratedUsbHidRelay} which are written together
+ * in a single write when committed.
+ *
+ * <pre>
+ * boolean applied = relay.batch().on(LIGHTS).off(CAMERA).toggle(ACTION).expect(DOOR, false).commit();
+ * </pre>
+ *
+ * <p>
+ * The changes are accumulated as masks so a batch may be built once and committed repeatedly. When
+ * a switch is changed more than once in a batch the last change applies.
+ *
+ * @param <T> the enumeration type
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class EnumeratedUsbHidRelayBatch<T extends Enum<T> & UsbHidRelaySwitchId> {
+  EnumeratedUsbHidRelay<T> relay;
+
+  @NonFinal
+  int setBits;
+  @NonFinal
+  int clearBits;
+  @NonFinal
+  int toggleBits;
+  @NonFinal
+  int expectedBits;
+  @NonFinal
+  int expectedMask;
+
+  EnumeratedUsbHidRelayBatch(EnumeratedUsbHidRelay<T> relay) {
+    this.relay = relay;
+  }
+
+  /**
+   * Turn the given switch on (circuit closed).
+   */
+  public EnumeratedUsbHidRelayBatch<T> on(@NonNull T switchId) {
+    return on(relay.maskOf(switchId));
+  }
+
+  /**
+   * Turn the given switches on (circuit closed).
+   */
+  public EnumeratedUsbHidRelayBatch<T> on(@NonNull Collection<T> switchIds) {
+    return on(relay.maskOf(switchIds));
+  }
+
+  /**
+   * Turn the given switch off (circuit open).
+   */
+  public EnumeratedUsbHidRelayBatch<T> off(@NonNull T switchId) {
+    return off(relay.maskOf(switchId));
+  }
+
+  /**
+   * Turn the given switches off (circuit open).
+   */
+  public EnumeratedUsbHidRelayBatch<T> off(@NonNull Collection<T> switchIds) {
+    return off(relay.maskOf(switchIds));
+  }
+
+  /**
+   * Invert the state of the given switch.
+   */
+  public EnumeratedUsbHidRelayBatch<T> toggle(@NonNull T switchId) {
+    return toggle(relay.maskOf(switchId));
+  }
+
+  /**
+   * Invert the states of the given switches.
+   */
+  public EnumeratedUsbHidRelayBatch<T> toggle(@NonNull Collection<T> switchIds) {
+    return toggle(relay.maskOf(switchIds));
+  }
+
+  /**
+   * Only commit the batch if the given switch is in the given state.
+   */
+  public EnumeratedUsbHidRelayBatch<T> expect(@NonNull T switchId, boolean state) {
+    int bit = relay.maskOf(switchId);
+
+    expectedBits |= bit;
+    expectedMask = state ? expectedMask | bit : expectedMask & ~bit;
+    return this;
+  }
+
+  /**
+   * Only commit the batch if the states of every switch on the relay, including any not represented
+   * in the enumeration, match the given mask.
+   *
+   * @param mask the expected switch states where bit n is set if the switch with id n is on.
+   */
+  public EnumeratedUsbHidRelayBatch<T> expectMask(int mask) {
+    expectedBits = (1 << relay.relaySize().asInt()) - 1;
+    expectedMask = mask;
+    return this;
+  }
+
+  /**
+   * Write the changes in a single write. Switches not changed by the batch keep their states.
+   *
+   * @return true if the changes were written, or false if the switch states did not match those
+   *         expected, in which case nothing was written.
+   * @throws UnsupportedOperationException if the batch expects switch states and the relay is rate
+   *         limited.
+   */
+  public boolean commit() {
+    return relay.hidRelay().compareAndUpdateMask(expectedBits, expectedMask, setBits, clearBits, toggleBits);
+  }
+
+  private EnumeratedUsbHidRelayBatch<T> on(int mask) {
+    setBits |= mask;
+    clearBits &= ~mask;
+    toggleBits &= ~mask;
+    return this;
+  }
+
+  private EnumeratedUsbHidRelayBatch<T> off(int mask) {
+    clearBits |= mask;
+    setBits &= ~mask;
+    toggleBits &= ~mask;
+    return this;
+  }
+
+  private EnumeratedUsbHidRelayBatch<T> toggle(int mask) {
+    toggleBits |= mask;
+    setBits &= ~mask;
+    clearBits &= ~mask;
+    return this;
+  }
+}
@@ -0,0 +1,424 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Presents the switches of several relays as a single enumeration, so that outputs spread across
+ * several boards can be controlled together;
+ *
+ * <pre>
+ * EnumeratedUsbHidRelayGroup&lt;Output&gt; outputs = EnumeratedUsbHidRelayGroup.create(asList(board0, board1, board2), Output.class);
+ *
+ * outputs.setSwitchesOn(EnumSet.of(Output.PUMP, Output.VALVE_12, Output.VALVE_40));
+ * </pre>
+ *
+ * <p>
+ * A change spanning several relays is split into a single mask write per affected relay, which are
+ * ordered according to the {@link UsbHidRelayGroupOrdering} of the group. The writes to different
+ * relays are not atomic. If one fails the others may still have been made. Concurrent writes are
+ * only in flight together on transports which complete their transfers asynchronously, as the USB
+ * transport does.
+ *
+ * <p>
+ * The skew of every change spanning more than one relay, from the first of its writes completing
+ * to the last, is recorded in {@link #skewHistogram()}.
+ *
+ * @param <T> the enumeration type
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class EnumeratedUsbHidRelayGroup<T extends Enum<T> & UsbHidRelayGroupSwitchId> implements AutoCloseable {
+  List<UsbHidRelay> relays;
+  Class<T> enumClass;
+  List<T> switchIds;
+  UsbHidRelayGroupOrdering ordering;
+  long skewBoundNanos;
+  int[] boardsByOrdinal;
+  int[] masksByOrdinal;
+  int[] switchIdsMasks;
+
+  UsbHidRelayLatencyHistogram skewHistogram = new UsbHidRelayLatencyHistogram();
+  LongAdder skewBoundExceeded = new LongAdder();
+  AtomicLong lastSkewNanos = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  private EnumeratedUsbHidRelayGroup(@NonNull List<UsbHidRelay> relays, @NonNull UsbHidRelayGroupOrdering ordering, long skewBoundNanos,
+      @NonNull Class<? extends T> clazz) {
+    if (relays.isEmpty()) {
+      throw new IllegalArgumentException("Expected at least one relay in the group.");
+    }
+
+    this.relays = unmodifiableList(new ArrayList<>(relays));
+    this.enumClass = (Class<T>) clazz;
+    this.switchIds = unmodifiableList(asList(clazz.getEnumConstants()));
+    this.ordering = ordering;
+    this.skewBoundNanos = skewBoundNanos;
+
+    this.boardsByOrdinal = new int[switchIds.size()];
+    this.masksByOrdinal = new int[switchIds.size()];
+    this.switchIdsMasks = new int[relays.size()];
+
+    Set<String> boardSwitches = new HashSet<>();
+    for (T switchId : switchIds) {
+      int board = switchId.board();
+      if (board < 0 || board >= relays.size()) {
+        throw new IllegalArgumentException(String.format(
+            "Expected all entries in enum to have a board greater than or equal to zero and less than %s. Instead got a board of %s for %s.",
+            relays.size(), board, switchId));
+      }
+
+      UsbHidRelaySize relaySize = relays.get(board).relaySize();
+      if (switchId.id() < 0 || switchId.id() >= relaySize.asInt()) {
+        throw new IllegalArgumentException(String.format(
+            "Expected all entries in enum to have a id value greater than or equal to zero and less than %s. Instead got a value of %s for %s.",
+            relaySize, switchId.id(), switchId));
+      }
+
+      if (!boardSwitches.add(board + "/" + switchId.id())) {
+        throw new IllegalArgumentException(
+            String.format("Expected each entry in enum to refer to a different switch. Instead found %s shared by more than one entry in %s.",
+                switchId, clazz));
+      }
+
+      boardsByOrdinal[switchId.ordinal()] = board;
+      masksByOrdinal[switchId.ordinal()] = 1 << switchId.id();
+      switchIdsMasks[board] |= masksByOrdinal[switchId.ordinal()];
+    }
+  }
+
+  /**
+   * Create a group whose changes are written to all the affected relays concurrently.
+   *
+   * @param relays the relays in the group, in the order referred to by
+   *        {@link UsbHidRelayGroupSwitchId#board()}.
+   * @param clazz a reference to an enumeration implementing the {@link UsbHidRelayGroupSwitchId}
+   *        interface which will be used to refer to specific relay switches.
+   */
+  public static <T extends Enum<T> & UsbHidRelayGroupSwitchId> EnumeratedUsbHidRelayGroup<T> create(@NonNull List<UsbHidRelay> relays,
+      @NonNull Class<? extends T> clazz) {
+    return new EnumeratedUsbHidRelayGroup<T>(relays, UsbHidRelayGroupOrdering.CONCURRENT, Long.MAX_VALUE, clazz);
+  }
+
+  /**
+   * Create a group whose changes are written in the given order.
+   *
+   * @param relays the relays in the group, in the order referred to by
+   *        {@link UsbHidRelayGroupSwitchId#board()}.
+   * @param ordering how the writes of a change spanning several relays are ordered.
+   * @param skewBound the skew changes are expected to stay within. Changes which exceed it are
+   *        counted by {@link #skewBoundExceededCount()}.
+   * @param clazz a reference to an enumeration implementing the {@link UsbHidRelayGroupSwitchId}
+   *        interface which will be used to refer to specific relay switches.
+   */
+  public static <T extends Enum<T> & UsbHidRelayGroupSwitchId> EnumeratedUsbHidRelayGroup<T> create(@NonNull List<UsbHidRelay> relays,
+      @NonNull UsbHidRelayGroupOrdering ordering, @NonNull Duration skewBound, @NonNull Class<? extends T> clazz) {
+    return new EnumeratedUsbHidRelayGroup<T>(relays, ordering, skewBound.toNanos(), clazz);
+  }
+
+  /**
+   * @return the relays in the group, in the order referred to by
+   *         {@link UsbHidRelayGroupSwitchId#board()}.
+   */
+  public List<UsbHidRelay> relays() {
+    return relays;
+  }
+
+  /**
+   * @return how the writes of a change spanning several relays are ordered.
+   */
+  public UsbHidRelayGroupOrdering ordering() {
+    return ordering;
+  }
+
+  /**
+   * @return a map of the enumerated switches to their respective states where true indicates a
+   *         given switch is on (circuit closed). The relays are read concurrently.
+   */
+  public Map<T, Boolean> getSwitchStates() {
+    int[] masks = readMasks();
+
+    Map<T, Boolean> switchStates = new EnumMap<>(enumClass);
+    for (T switchId : switchIds) {
+      switchStates.put(switchId, (masks[boardOf(switchId)] & maskOf(switchId)) != 0);
+    }
+    return switchStates;
+  }
+
+  /**
+   * @param switchId the id of the switch to get the state of.
+   * @return the state of the switch where true indicates the switch is on (circuit closed).
+   */
+  public boolean getSwitchState(@NonNull T switchId) {
+    return (relays.get(boardOf(switchId)).readMask() & maskOf(switchId)) != 0;
+  }
+
+  /**
+   * @return the set of enumerated switches which are on (circuit closed). The relays are read
+   *         concurrently.
+   */
+  public EnumSet<T> getSwitchesOn() {
+    int[] masks = readMasks();
+
+    EnumSet<T> switchesOn = EnumSet.noneOf(enumClass);
+    for (T switchId : switchIds) {
+      if ((masks[boardOf(switchId)] & maskOf(switchId)) != 0) {
+        switchesOn.add(switchId);
+      }
+    }
+    return switchesOn;
+  }
+
+  /**
+   * Set the states of multiple switches together, with a single write to each affected relay.
+   * Unspecified switches will not be changed.
+   *
+   * @param switchStates a map of the desired switch states where true indicates the switch should
+   *        be on (circuit closed) and false indicates the switch should be off (circuit open).
+   */
+  public void setSwitchStates(@NonNull Map<T, Boolean> switchStates) {
+    RelayCommandQueue.await(setSwitchStatesAsync(switchStates));
+  }
+
+  /**
+   * Asynchronously set the states of multiple switches together.
+   *
+   * @return a future which completes once every affected relay has been written, or fails if any
+   *         write fails.
+   * @see #setSwitchStates(Map)
+   */
+  public CompletableFuture<Void> setSwitchStatesAsync(@NonNull Map<T, Boolean> switchStates) {
+    int[] setBits = new int[relays.size()];
+    int[] clearBits = new int[relays.size()];
+
+    for (Map.Entry<T, Boolean> switchState : switchStates.entrySet()) {
+      if (switchState.getValue() == null) {
+        continue;
+      }
+
+      T switchId = switchState.getKey();
+      if (switchState.getValue()) {
+        setBits[boardOf(switchId)] |= maskOf(switchId);
+      } else {
+        clearBits[boardOf(switchId)] |= maskOf(switchId);
+      }
+    }
+
+    return applyMasksAsync(setBits, clearBits);
+  }
+
+  /**
+   * Set the states of all the switches in the enumeration together. Switches in the given set will
+   * be turned on and all other switches in the enumeration will be turned off. Switches not
+   * represented in the enumeration will not be changed.
+   *
+   * @param switchesOn the set of enumerated switches which should be on (circuit closed).
+   */
+  public void setSwitchesOn(@NonNull Collection<T> switchesOn) {
+    RelayCommandQueue.await(setSwitchesOnAsync(switchesOn));
+  }
+
+  /**
+   * Asynchronously set the states of all the switches in the enumeration together.
+   *
+   * @return a future which completes once every affected relay has been written, or fails if any
+   *         write fails.
+   * @see #setSwitchesOn(Collection)
+   */
+  public CompletableFuture<Void> setSwitchesOnAsync(@NonNull Collection<T> switchesOn) {
+    int[] setBits = new int[relays.size()];
+    for (T switchId : switchesOn) {
+      setBits[boardOf(switchId)] |= maskOf(switchId);
+    }
+
+    int[] clearBits = new int[relays.size()];
+    for (int board = 0; board < relays.size(); board++) {
+      clearBits[board] = switchIdsMasks[board] & ~setBits[board];
+    }
+
+    return applyMasksAsync(setBits, clearBits);
+  }
+
+  /**
+   * Set the state of a single switch. If the switch is already in the specified state it will not
+   * be changed.
+   *
+   * @param switchId the id of the switch to set the state of.
+   * @param state the desired switch state where true indicates the switch should be on (circuit
+   *        closed) and false indicates the switch should be off (circuit open).
+   */
+  public void setSwitchState(@NonNull T switchId, boolean state) {
+    relays.get(boardOf(switchId)).setSwitchState(switchId.id(), state);
+  }
+
+  /**
+   * Set the state of a single switch to on (circuit closed).
+   *
+   * @param switchId the id of the switch to be turned on.
+   */
+  public void setSwitchOn(@NonNull T switchId) {
+    setSwitchState(switchId, true);
+  }
+
+  /**
+   * Set the state of a single switch to off (circuit open).
+   *
+   * @param switchId the id of the switch to be turned off.
+   */
+  public void setSwitchOff(@NonNull T switchId) {
+    setSwitchState(switchId, false);
+  }
+
+  /**
+   * Set the states of all the switches in the enumeration to on (circuit closed). Switches not
+   * represented in the enumeration will not be changed.
+   */
+  public void setAllSwitchesOn() {
+    RelayCommandQueue.await(applyMasksAsync(switchIdsMasks, new int[relays.size()]));
+  }
+
+  /**
+   * Set the states of all the switches in the enumeration to off (circuit open). Switches not
+   * represented in the enumeration will not be changed.
+   */
+  public void setAllSwitchesOff() {
+    RelayCommandQueue.await(applyMasksAsync(new int[relays.size()], switchIdsMasks));
+  }
+
+  /**
+   * @return a histogram of the time from the first to the last of the writes of each change which
+   *         spanned more than one relay completing.
+   */
+  public UsbHidRelayLatencyHistogram skewHistogram() {
+    return skewHistogram;
+  }
+
+  /**
+   * @return the skew of the most recent change which spanned more than one relay.
+   */
+  public Duration lastSkew() {
+    return Duration.ofNanos(lastSkewNanos.get());
+  }
+
+  /**
+   * @return the number of changes whose skew exceeded the skew bound of the group.
+   */
+  public long skewBoundExceededCount() {
+    return skewBoundExceeded.sum();
+  }
+
+  /**
+   * Close every relay in the group.
+   *
+   * @see UsbHidRelay#close()
+   */
+  @Override
+  public void close() {
+    RuntimeException failure = null;
+    for (UsbHidRelay relay : relays) {
+      try {
+        relay.close();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private int boardOf(T switchId) {
+    return boardsByOrdinal[switchId.ordinal()];
+  }
+
+  private int maskOf(T switchId) {
+    return masksByOrdinal[switchId.ordinal()];
+  }
+
+  private int[] readMasks() {
+    List<CompletableFuture<Integer>> reads = new ArrayList<>(relays.size());
+    for (int board = 0; board < relays.size(); board++) {
+      reads.add(switchIdsMasks[board] != 0 ? relays.get(board).readMaskAsync() : CompletableFuture.completedFuture(0));
+    }
+
+    int[] masks = new int[relays.size()];
+    for (int board = 0; board < relays.size(); board++) {
+      masks[board] = RelayCommandQueue.await(reads.get(board));
+    }
+    return masks;
+  }
+
+  /**
+   * Write the given changes with a single write to each relay with any, ordered according to the
+   * ordering of the group.
+   */
+  private CompletableFuture<Void> applyMasksAsync(int[] setBits, int[] clearBits) {
+    long[] completedAtNanos = new long[relays.size()];
+    List<CompletableFuture<Void>> writes = new ArrayList<>(relays.size());
+
+    CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+    for (int board = 0; board < relays.size(); board++) {
+      if ((setBits[board] | clearBits[board]) == 0) {
+        continue;
+      }
+
+      UsbHidRelay relay = relays.get(board);
+      int boardSetBits = setBits[board];
+      int boardClearBits = clearBits[board];
+      int writtenBoard = board;
+
+      CompletableFuture<Void> write = ordering == UsbHidRelayGroupOrdering.SEQUENTIAL
+          ? previous.thenCompose(ignored -> relay.applyMaskAsync(boardSetBits, boardClearBits))
+          : relay.applyMaskAsync(boardSetBits, boardClearBits);
+      write = write.whenComplete((ignored, failure) -> completedAtNanos[writtenBoard] = System.nanoTime());
+
+      writes.add(write);
+      previous = write;
+    }
+
+    if (writes.size() < 2) {
+      return previous;
+    }
+
+    return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).thenRun(() -> recordSkew(completedAtNanos));
+  }
+
+  private void recordSkew(long[] completedAtNanos) {
+    long firstNanos = Long.MAX_VALUE;
+    long lastNanos = Long.MIN_VALUE;
+    for (long nanos : completedAtNanos) {
+      if (nanos != 0) {
+        firstNanos = Math.min(firstNanos, nanos);
+        lastNanos = Math.max(lastNanos, nanos);
+      }
+    }
+
+    long skewNanos = lastNanos - firstNanos;
+    skewHistogram.record(skewNanos);
+    lastSkewNanos.set(skewNanos);
+    if (skewNanos > skewBoundNanos) {
+      skewBoundExceeded.increment();
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Notified by a {@link UsbHidRelayMonitor} when an enumerated switch of a relay changes state.
+ *
+ * @param <T> the enumeration type
+ */
+@FunctionalInterface
+public interface EnumeratedUsbHidRelaySwitchListener<T extends Enum<T> & UsbHidRelaySwitchId> {
+  /**
+   * Called on the polling thread of the monitor once for every enumerated switch which changed
+   * state, so should return quickly.
+   *
+   * @param switchId the switch which changed state.
+   * @param state the new state of the switch where true indicates the switch is on (circuit closed).
+   * @param change the change the switch was part of.
+   */
+  void switchChanged(T switchId, boolean state, UsbHidRelaySwitchChange change);
+}
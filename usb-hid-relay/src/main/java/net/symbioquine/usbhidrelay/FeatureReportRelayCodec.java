@@ -0,0 +1,122 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * Talks the {@link RelayProtocol#USB_RELAY} protocol with the feature reports encoded by
+ * {@link UsbRelayFeatureReports}.
+ *
+ * <p>
+ * These relays change one switch per report unless every switch is turned on or off at once. A
+ * write which turns every switch of a full size relay on or off is sent as a single report. Other
+ * writes send an on or off report for each switch they cover, which is known from the masks being
+ * written, so the switch states never need to be read first. Changes to a subset of the switches are
+ * applied the same way, leaving the other switches untouched.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+class FeatureReportRelayCodec implements MaskApplyingRelayCodec {
+  int switchesMask;
+  boolean fullSize;
+  byte[] stateReport = UsbRelayFeatureReports.newReport();
+  @NonFinal
+  int setBits;
+  @NonFinal
+  int clearBits;
+
+  FeatureReportRelayCodec(UsbHidRelaySize relaySize) {
+    this.switchesMask = (1 << relaySize.asInt()) - 1;
+    this.fullSize = relaySize.asInt() == UsbRelayFeatureReports.MAX_SWITCHES;
+  }
+
+  @Override
+  public void encodeWrite(int mask) {
+    this.setBits = mask & switchesMask;
+    this.clearBits = ~mask & switchesMask;
+  }
+
+  @Override
+  public void encodeApply(int setBits, int clearBits) {
+    this.setBits = setBits & switchesMask;
+    this.clearBits = clearBits & ~setBits & switchesMask;
+  }
+
+  @Override
+  public void write(Transfers transfers) {
+    byte[] allReport = allReport();
+    if (allReport != null) {
+      transfers.setFeatureReport(allReport);
+      return;
+    }
+
+    for (int switches = setBits | clearBits; switches != 0; switches &= switches - 1) {
+      transfers.setFeatureReport(switchReport(Integer.numberOfTrailingZeros(switches)));
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> writeAsync(Transfers transfers) {
+    byte[] allReport = allReport();
+    if (allReport != null) {
+      return transfers.setFeatureReportAsync(allReport);
+    }
+
+    CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+    for (int switches = setBits | clearBits; switches != 0; switches &= switches - 1) {
+      byte[] report = switchReport(Integer.numberOfTrailingZeros(switches));
+      written = written.thenCompose(previous -> transfers.setFeatureReportAsync(report));
+    }
+    return written;
+  }
+
+  @Override
+  public void read(Transfers transfers) {
+    transfers.getFeatureReport(stateReport);
+  }
+
+  @Override
+  public CompletableFuture<Void> readAsync(Transfers transfers) {
+    return transfers.getFeatureReportAsync(stateReport);
+  }
+
+  @Override
+  public int decodeRead() {
+    return UsbRelayFeatureReports.decodeStates(stateReport) & switchesMask;
+  }
+
+  /**
+   * These relays have no reset command, so resetting does nothing.
+   */
+  @Override
+  public void reset(Transfers transfers) {
+  }
+
+  @Override
+  public CompletableFuture<Void> resetAsync(Transfers transfers) {
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * @return the single report which makes the last encoded write, or null if it needs a report per
+   *         switch.
+   */
+  private byte[] allReport() {
+    if (!fullSize) {
+      return null;
+    }
+    if (setBits == switchesMask) {
+      return UsbRelayFeatureReports.allOnReport();
+    }
+    if (clearBits == switchesMask) {
+      return UsbRelayFeatureReports.allOffReport();
+    }
+    return null;
+  }
+
+  private byte[] switchReport(int switchId) {
+    return UsbRelayFeatureReports.switchReport(switchId, (setBits & (1 << switchId)) != 0);
+  }
+}
@@ -0,0 +1,63 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link RelayTransport} which moves HID feature reports between a {@link UsbHidRelay} and a
+ * relay talking {@link RelayProtocol#USB_RELAY}.
+ *
+ * <p>
+ * The asynchronous methods default to performing the transfer synchronously on the calling thread.
+ * Transports which can submit transfers without blocking should override them.
+ */
+public interface FeatureReportTransport extends RelayTransport {
+  /**
+   * Send a feature report to the relay.
+   *
+   * @param report the complete feature report.
+   */
+  void setFeatureReport(byte[] report);
+
+  /**
+   * Read a feature report from the relay.
+   *
+   * @param report the buffer to be filled with the feature report.
+   */
+  void getFeatureReport(byte[] report);
+
+  /**
+   * Send a feature report to the relay without waiting for the transfer to complete.
+   *
+   * @param report the complete feature report. It must not be modified until the returned future
+   *        completes.
+   * @return a future which completes once the report has been sent.
+   */
+  default CompletableFuture<Void> setFeatureReportAsync(byte[] report) {
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    try {
+      setFeatureReport(report);
+      completion.complete(null);
+    } catch (RuntimeException e) {
+      completion.completeExceptionally(e);
+    }
+    return completion;
+  }
+
+  /**
+   * Read a feature report from the relay without waiting for the transfer to complete.
+   *
+   * @param report the buffer to be filled with the feature report. It must not be accessed until
+   *        the returned future completes.
+   * @return a future which completes once the report has been read.
+   */
+  default CompletableFuture<Void> getFeatureReportAsync(byte[] report) {
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    try {
+      getFeatureReport(report);
+      completion.complete(null);
+    } catch (RuntimeException e) {
+      completion.completeExceptionally(e);
+    }
+    return completion;
+  }
+}
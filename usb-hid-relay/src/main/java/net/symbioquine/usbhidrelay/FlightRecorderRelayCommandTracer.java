@@ -0,0 +1,65 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletionException;
+
+import jdk.jfr.EventType;
+
+/**
+ * Traces the commands of a relay as {@link RelayCommandEvent}s, timing the phases of their
+ * transfers while a recording has the event enabled.
+ */
+class FlightRecorderRelayCommandTracer implements RelayCommandTracer {
+  private static final EventType EVENT_TYPE = EventType.getEventType(RelayCommandEvent.class);
+
+  private final RelayTransport transport;
+  private final String protocol;
+  private final String device;
+
+  FlightRecorderRelayCommandTracer(RelayTransport transport, RelayProtocol protocol, UsbHidRelayDeviceId deviceId) {
+    this.transport = transport;
+    this.protocol = protocol.name();
+    this.device = deviceId == null ? null : deviceId.toString();
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return EVENT_TYPE.isEnabled();
+  }
+
+  @Override
+  public RelayCommandTrace begin(UsbHidRelayCommandType commandType, int maskBefore, long waitNanos) {
+    if (!EVENT_TYPE.isEnabled()) {
+      return RelayCommandTrace.NONE;
+    }
+
+    RelayCommandEvent event = new RelayCommandEvent();
+    event.command = commandType.name();
+    event.device = device;
+    event.protocol = protocol;
+    event.maskBefore = maskBefore;
+    event.waitTime = waitNanos;
+
+    RelayTransferPhases phases = RelayTransferPhases.of(transport);
+    phases.startRecording();
+    event.begin();
+
+    return (maskAfter, failure) -> {
+      event.end();
+      phases.stopRecording();
+
+      if (!event.shouldCommit()) {
+        return;
+      }
+      event.maskAfter = failure == null ? maskAfter : UsbHidRelay.NO_MASK;
+      event.openTime = phases.openNanos();
+      event.submitTime = phases.submitNanos();
+      event.closeTime = phases.closeNanos();
+      event.transfers = phases.submits();
+      if (failure != null) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        event.failure = cause.toString();
+      }
+      event.commit();
+    };
+  }
+}
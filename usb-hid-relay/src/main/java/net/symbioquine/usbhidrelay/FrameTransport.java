@@ -0,0 +1,63 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link RelayTransport} which moves command and response frames between a {@link UsbHidRelay}
+ * and a relay talking {@link RelayProtocol#SAINSMART}.
+ *
+ * <p>
+ * The asynchronous methods default to performing the transfer synchronously on the calling thread.
+ * Transports which can submit transfers without blocking should override them.
+ */
+public interface FrameTransport extends RelayTransport {
+  /**
+   * Send a command frame to the relay.
+   *
+   * @param frame the complete command frame.
+   */
+  void send(byte[] frame);
+
+  /**
+   * Receive a response frame from the relay.
+   *
+   * @param frame the buffer to be filled with the response frame.
+   */
+  void receive(byte[] frame);
+
+  /**
+   * Send a command frame to the relay without waiting for the transfer to complete.
+   *
+   * @param frame the complete command frame. It must not be modified until the returned future
+   *        completes.
+   * @return a future which completes once the frame has been sent.
+   */
+  default CompletableFuture<Void> sendAsync(byte[] frame) {
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    try {
+      send(frame);
+      completion.complete(null);
+    } catch (RuntimeException e) {
+      completion.completeExceptionally(e);
+    }
+    return completion;
+  }
+
+  /**
+   * Receive a response frame from the relay without waiting for the transfer to complete.
+   *
+   * @param frame the buffer to be filled with the response frame. It must not be accessed until the
+   *        returned future completes.
+   * @return a future which completes once the frame has been received.
+   */
+  default CompletableFuture<Void> receiveAsync(byte[] frame) {
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    try {
+      receive(frame);
+      completion.complete(null);
+    } catch (RuntimeException e) {
+      completion.completeExceptionally(e);
+    }
+    return completion;
+  }
+}
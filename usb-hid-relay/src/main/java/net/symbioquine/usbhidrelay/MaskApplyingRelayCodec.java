@@ -0,0 +1,14 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * A {@link RelayCodec} which can turn switches on and off without knowing the states of the other
+ * switches, so changes to a subset of the switches are encoded with
+ * {@link #encodeApply(int, int)} instead of reading the switch states and encoding a write.
+ */
+interface MaskApplyingRelayCodec extends RelayCodec {
+  /**
+   * Encode a write turning the switches of the first mask on and those of the second off, leaving
+   * the other switches as they are. If a switch is in both masks it is turned on.
+   */
+  void encodeApply(int setBits, int clearBits);
+}
@@ -0,0 +1,81 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * Passes the commands of a {@link UsbHidRelay} to a {@link RelayMaskTransport} as they are.
+ *
+ * <p>
+ * Writes which cover every switch are sent as mask writes, while other writes are sent as the
+ * switches to turn on and off, so the relay changes only those switches.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+class MaskRelayCodec implements MaskApplyingRelayCodec {
+  RelayMaskTransport transport;
+  int switchesMask;
+  @NonFinal
+  int setBits;
+  @NonFinal
+  int clearBits;
+  @NonFinal
+  int readMask;
+
+  MaskRelayCodec(RelayMaskTransport transport, UsbHidRelaySize relaySize) {
+    this.transport = transport;
+    this.switchesMask = (1 << relaySize.asInt()) - 1;
+  }
+
+  @Override
+  public void encodeWrite(int mask) {
+    this.setBits = mask & switchesMask;
+    this.clearBits = ~mask & switchesMask;
+  }
+
+  @Override
+  public void encodeApply(int setBits, int clearBits) {
+    this.setBits = setBits & switchesMask;
+    this.clearBits = clearBits & ~setBits & switchesMask;
+  }
+
+  @Override
+  public void write(Transfers transfers) {
+    RelayCommandQueue.await(writeAsync(transfers));
+  }
+
+  @Override
+  public CompletableFuture<Void> writeAsync(Transfers transfers) {
+    if ((setBits | clearBits) == switchesMask) {
+      return transfers.timed(transport.writeMaskAsync(setBits));
+    }
+    return transfers.timed(transport.applyMaskAsync(setBits, clearBits));
+  }
+
+  @Override
+  public void read(Transfers transfers) {
+    RelayCommandQueue.await(readAsync(transfers));
+  }
+
+  @Override
+  public CompletableFuture<Void> readAsync(Transfers transfers) {
+    return transfers.timed(transport.readMaskAsync()).thenAccept(mask -> readMask = mask);
+  }
+
+  @Override
+  public int decodeRead() {
+    return readMask & switchesMask;
+  }
+
+  @Override
+  public void reset(Transfers transfers) {
+    RelayCommandQueue.await(resetAsync(transfers));
+  }
+
+  @Override
+  public CompletableFuture<Void> resetAsync(Transfers transfers) {
+    return transfers.timed(transport.resetAsync());
+  }
+}
@@ -0,0 +1,86 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens a pipe for every transfer and closes it again immediately afterwards.
+ */
+class PerCommandUsbPipes implements UsbPipes {
+  private final UncheckedUsbInterface usbInterface;
+  private final Set<AutoCloseableUncheckedUsbPipe> inFlightPipes = ConcurrentHashMap.newKeySet();
+
+  public PerCommandUsbPipes(UncheckedUsbInterface usbInterface) {
+    this.usbInterface = requireNonNull(usbInterface);
+  }
+
+  @Override
+  public void submit(int endpointAddress, byte[] data) {
+    try (AutoCloseableUncheckedUsbPipe pipe = usbInterface.openPipeForEndpoint(endpointAddress)) {
+      pipe.syncSubmit(data);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> submitAsync(int endpointAddress, byte[] data) {
+    AutoCloseableUncheckedUsbPipe pipe = usbInterface.openPipeForEndpoint(endpointAddress);
+    inFlightPipes.add(pipe);
+
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    pipe.asyncSubmit(data).whenComplete((result, failure) -> {
+      try {
+        if (inFlightPipes.remove(pipe)) {
+          pipe.close();
+        }
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          completion.completeExceptionally(e);
+          return;
+        }
+        failure.addSuppressed(e);
+      }
+      if (failure != null) {
+        completion.completeExceptionally(failure);
+      } else {
+        completion.complete(null);
+      }
+    });
+    return completion;
+  }
+
+  @Override
+  public void abort() {
+    RuntimeException failure = null;
+    for (AutoCloseableUncheckedUsbPipe pipe : inFlightPipes) {
+      if (!inFlightPipes.remove(pipe)) {
+        continue;
+      }
+      try {
+        pipe.close();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public RelayTransferPhases transferPhases() {
+    return usbInterface.transferPhases();
+  }
+
+  @Override
+  public void close() {
+    // Nothing is held open between transfers.
+  }
+}
@@ -0,0 +1,140 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a pipe open for each endpoint between transfers. A pipe which fails a transfer is closed
+ * and discarded so that the next transfer on the same endpoint reopens it.
+ */
+class PersistentUsbPipes implements UsbPipes {
+  private final UncheckedUsbInterface usbInterface;
+  private final Map<Integer, AutoCloseableUncheckedUsbPipe> openPipes = new HashMap<>();
+  private final Lock lock = new ReentrantLock();
+  private boolean closed;
+
+  public PersistentUsbPipes(UncheckedUsbInterface usbInterface) {
+    this.usbInterface = requireNonNull(usbInterface);
+  }
+
+  @Override
+  public void submit(int endpointAddress, byte[] data) {
+    lock.lock();
+    try {
+      AutoCloseableUncheckedUsbPipe pipe = openPipe(endpointAddress);
+
+      try {
+        pipe.syncSubmit(data);
+      } catch (RuntimeException e) {
+        discardPipe(endpointAddress, pipe, e);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> submitAsync(int endpointAddress, byte[] data) {
+    AutoCloseableUncheckedUsbPipe pipe;
+
+    lock.lock();
+    try {
+      pipe = openPipe(endpointAddress);
+    } finally {
+      lock.unlock();
+    }
+
+    CompletableFuture<Void> completion = pipe.asyncSubmit(data);
+    completion.whenComplete((result, failure) -> {
+      if (failure != null) {
+        lock.lock();
+        try {
+          if (openPipes.get(endpointAddress) == pipe) {
+            discardPipe(endpointAddress, pipe, failure);
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    });
+    return completion;
+  }
+
+  @Override
+  public void abort() {
+    lock.lock();
+    try {
+      closeOpenPipes();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public RelayTransferPhases transferPhases() {
+    return usbInterface.transferPhases();
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      closeOpenPipes();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private AutoCloseableUncheckedUsbPipe openPipe(int endpointAddress) {
+    if (closed) {
+      throw new IllegalStateException("Cannot submit data on pipes which have been closed.");
+    }
+
+    AutoCloseableUncheckedUsbPipe pipe = openPipes.get(endpointAddress);
+    if (pipe == null) {
+      pipe = usbInterface.openPipeForEndpoint(endpointAddress);
+      openPipes.put(endpointAddress, pipe);
+    }
+    return pipe;
+  }
+
+  private void discardPipe(int endpointAddress, AutoCloseableUncheckedUsbPipe pipe, Throwable cause) {
+    openPipes.remove(endpointAddress);
+    try {
+      pipe.close();
+    } catch (RuntimeException e) {
+      cause.addSuppressed(e);
+    }
+  }
+
+  private void closeOpenPipes() {
+    List<AutoCloseableUncheckedUsbPipe> pipes = new ArrayList<>(openPipes.values());
+    openPipes.clear();
+
+    RuntimeException failure = null;
+    for (AutoCloseableUncheckedUsbPipe pipe : pipes) {
+      try {
+        pipe.close();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
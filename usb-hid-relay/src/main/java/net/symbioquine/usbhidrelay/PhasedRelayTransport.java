@@ -0,0 +1,11 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * A {@link RelayTransport} which times the phases of its transfers for traced commands.
+ */
+interface PhasedRelayTransport {
+  /**
+   * @return the phases of the transfers currently made by the transport.
+   */
+  RelayTransferPhases transferPhases();
+}
@@ -0,0 +1,166 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link RelayTransport} whose underlying transport can be replaced when the device is unplugged
+ * and plugged back in, so that the {@link UsbHidRelay} using it survives the outage. While
+ * disconnected every transfer fails with a {@link UsbHidRelayDisconnectedException}.
+ *
+ * <p>
+ * It carries both frames and feature reports, passing them to the underlying transport, which
+ * supports the transfers of the protocol of the relay.
+ */
+class ReconnectableRelayTransport implements FrameTransport, FeatureReportTransport, PhasedRelayTransport {
+  private volatile String deviceDescription;
+  private volatile RelayTransport delegate;
+  private volatile boolean closed;
+
+  ReconnectableRelayTransport(String deviceDescription, RelayTransport delegate) {
+    this.deviceDescription = deviceDescription;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void send(byte[] frame) {
+    ((FrameTransport) connected()).send(frame);
+  }
+
+  @Override
+  public void receive(byte[] frame) {
+    ((FrameTransport) connected()).receive(frame);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendAsync(byte[] frame) {
+    RelayTransport current = delegate;
+    if (current == null) {
+      return disconnectedFuture();
+    }
+    return ((FrameTransport) current).sendAsync(frame);
+  }
+
+  @Override
+  public CompletableFuture<Void> receiveAsync(byte[] frame) {
+    RelayTransport current = delegate;
+    if (current == null) {
+      return disconnectedFuture();
+    }
+    return ((FrameTransport) current).receiveAsync(frame);
+  }
+
+  @Override
+  public void setFeatureReport(byte[] report) {
+    ((FeatureReportTransport) connected()).setFeatureReport(report);
+  }
+
+  @Override
+  public void getFeatureReport(byte[] report) {
+    ((FeatureReportTransport) connected()).getFeatureReport(report);
+  }
+
+  @Override
+  public CompletableFuture<Void> setFeatureReportAsync(byte[] report) {
+    RelayTransport current = delegate;
+    if (current == null) {
+      return disconnectedFuture();
+    }
+    return ((FeatureReportTransport) current).setFeatureReportAsync(report);
+  }
+
+  @Override
+  public CompletableFuture<Void> getFeatureReportAsync(byte[] report) {
+    RelayTransport current = delegate;
+    if (current == null) {
+      return disconnectedFuture();
+    }
+    return ((FeatureReportTransport) current).getFeatureReportAsync(report);
+  }
+
+  /**
+   * @return the phases of the transport currently connected, or {@link RelayTransferPhases#NONE}
+   *         while disconnected.
+   */
+  @Override
+  public RelayTransferPhases transferPhases() {
+    RelayTransport current = delegate;
+    return current == null ? RelayTransferPhases.NONE : RelayTransferPhases.of(current);
+  }
+
+  @Override
+  public void abort() {
+    RelayTransport current = delegate;
+    if (current != null) {
+      current.abort();
+    }
+  }
+
+  boolean isConnected() {
+    return delegate != null;
+  }
+
+  /**
+   * Drop the underlying transport after the device has been unplugged.
+   */
+  synchronized void disconnect() {
+    RelayTransport previous = delegate;
+    delegate = null;
+    closeQuietly(previous);
+  }
+
+  /**
+   * Replace the underlying transport after the device has been plugged back in, possibly at another
+   * port.
+   */
+  synchronized void reconnect(String deviceDescription, RelayTransport transport) {
+    if (closed) {
+      transport.close();
+      throw new IllegalStateException("Cannot reconnect a transport which has been closed.");
+    }
+
+    RelayTransport previous = delegate;
+    this.deviceDescription = deviceDescription;
+    delegate = transport;
+    closeQuietly(previous);
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+
+    RelayTransport previous = delegate;
+    delegate = null;
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  private RelayTransport connected() {
+    RelayTransport current = delegate;
+    if (current == null) {
+      throw disconnectedException();
+    }
+    return current;
+  }
+
+  private CompletableFuture<Void> disconnectedFuture() {
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    completion.completeExceptionally(disconnectedException());
+    return completion;
+  }
+
+  private UsbHidRelayDisconnectedException disconnectedException() {
+    return new UsbHidRelayDisconnectedException("Relay " + deviceDescription + " is " + (closed ? "closed." : "disconnected."));
+  }
+
+  private static void closeQuietly(RelayTransport transport) {
+    if (transport == null) {
+      return;
+    }
+    try {
+      transport.close();
+    } catch (RuntimeException e) {
+      // The device is gone, so failing to release its pipes is expected.
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Encodes the commands of a {@link RelayProtocol} and performs the transfers they need, decoding
+ * the switch states the relay reports.
+ *
+ * <p>
+ * A codec holds the buffers of a single relay and is only used by one command at a time. Writes are
+ * encoded before they are transferred so that the transfer may be retried without encoding them
+ * again.
+ *
+ * <p>
+ * Codecs which can change some switches without knowing the states of the others implement
+ * {@link MaskApplyingRelayCodec}.
+ */
+interface RelayCodec {
+  /**
+   * Encode a write putting the switches in the states of the given mask.
+   */
+  void encodeWrite(int mask);
+
+  /**
+   * Perform the transfers of the last encoded write.
+   */
+  void write(Transfers transfers);
+
+  CompletableFuture<Void> writeAsync(Transfers transfers);
+
+  /**
+   * Perform the transfers which ask the relay for its switch states.
+   */
+  void read(Transfers transfers);
+
+  CompletableFuture<Void> readAsync(Transfers transfers);
+
+  /**
+   * @return a mask of the switch states reported by the last read, where bit n is set if switch n
+   *         is on.
+   */
+  int decodeRead();
+
+  /**
+   * Perform the transfers which reset the HID interface of the relay, if it has any.
+   */
+  void reset(Transfers transfers);
+
+  CompletableFuture<Void> resetAsync(Transfers transfers);
+
+  /**
+   * The transfers a codec may perform on the {@link RelayTransport} of a relay, each subject to the
+   * timeout of the command it belongs to. Frames may only be transferred on a {@link FrameTransport}
+   * and feature reports on a {@link FeatureReportTransport}.
+   */
+  interface Transfers {
+    void send(byte[] frame);
+
+    void receive(byte[] frame);
+
+    CompletableFuture<Void> sendAsync(byte[] frame);
+
+    CompletableFuture<Void> receiveAsync(byte[] frame);
+
+    void setFeatureReport(byte[] report);
+
+    void getFeatureReport(byte[] report);
+
+    CompletableFuture<Void> setFeatureReportAsync(byte[] report);
+
+    CompletableFuture<Void> getFeatureReportAsync(byte[] report);
+
+    /**
+     * @return the given transfer, failed if it does not complete within the timeout of the command.
+     */
+    <T> CompletableFuture<T> timed(CompletableFuture<T> transfer);
+  }
+}
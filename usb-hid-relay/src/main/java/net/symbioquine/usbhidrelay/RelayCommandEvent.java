@@ -0,0 +1,67 @@
+package net.symbioquine.usbhidrelay;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JDK Flight Recorder event for a command sent by a {@link UsbHidRelay}, lasting from when the
+ * command started holding the device until its transfers completed, including any retries.
+ *
+ * <p>
+ * The pipe open, submit and close times are summed over every transfer of the command and are only
+ * recorded for relays talking to a device over USB.
+ */
+@Name(RelayCommandEvent.NAME)
+@Label("Relay Command")
+@Category("USB HID Relay")
+@Description("A command sent to a USB HID relay")
+@StackTrace(false)
+class RelayCommandEvent extends Event {
+  static final String NAME = "net.symbioquine.usbhidrelay.RelayCommand";
+
+  @Label("Command")
+  String command;
+
+  @Label("Device")
+  @Description("The id of the relay device, if it was acquired through discovery")
+  String device;
+
+  @Label("Protocol")
+  String protocol;
+
+  @Label("Mask Before")
+  @Description("The last mask written to the relay before the command, or -1 if none had been")
+  int maskBefore;
+
+  @Label("Mask After")
+  @Description("The mask written or read by the command, or -1 if it failed")
+  int maskAfter;
+
+  @Label("Wait Time")
+  @Description("How long the command waited for other commands to free the device")
+  @Timespan
+  long waitTime;
+
+  @Label("Pipe Open Time")
+  @Timespan
+  long openTime;
+
+  @Label("Submit Time")
+  @Timespan
+  long submitTime;
+
+  @Label("Pipe Close Time")
+  @Timespan
+  long closeTime;
+
+  @Label("Transfers")
+  long transfers;
+
+  @Label("Failure")
+  String failure;
+}
@@ -0,0 +1,246 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the attempts of the commands sent by a {@link UsbHidRelay}, applying the configured metrics,
+ * retries, transfer timeouts and circuit breaker.
+ *
+ * <p>
+ * When none of those are configured commands are attempted directly, so the policy costs a single
+ * branch per command.
+ */
+class RelayCommandPolicy {
+  private final RelayTransport transport;
+  private final UsbHidRelayMetricsListener metricsListener;
+  private final boolean metricsEnabled;
+  private final UsbHidRelayRetryPolicy retryPolicy;
+  private final long transferTimeoutNanos;
+  private final int circuitBreakerThreshold;
+  private final long circuitBreakerOpenNanos;
+  private final boolean enabled;
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private volatile boolean circuitOpen;
+  private volatile long circuitOpenUntilNanos;
+
+  RelayCommandPolicy(RelayTransport transport, UsbHidRelayOptions options) {
+    if (options.retryPolicy().maxRetries() < 0) {
+      throw new IllegalArgumentException("Maximum retries must not be negative. Instead got: " + options.retryPolicy().maxRetries());
+    }
+    if (options.circuitBreakerThreshold() < 0) {
+      throw new IllegalArgumentException("Circuit breaker threshold must not be negative. Instead got: " + options.circuitBreakerThreshold());
+    }
+    if (options.transferTimeout() != null && (options.transferTimeout().isNegative() || options.transferTimeout().isZero())) {
+      throw new IllegalArgumentException("Transfer timeout must be positive. Instead got: " + options.transferTimeout());
+    }
+
+    this.transport = transport;
+    this.metricsListener = options.metricsListener();
+    this.metricsEnabled = metricsListener != UsbHidRelayMetricsListener.NOOP;
+    this.retryPolicy = options.retryPolicy();
+    this.transferTimeoutNanos = options.transferTimeout() == null ? 0 : options.transferTimeout().toNanos();
+    this.circuitBreakerThreshold = options.circuitBreakerThreshold();
+    this.circuitBreakerOpenNanos = options.circuitBreakerOpenDuration().toNanos();
+    this.enabled = metricsEnabled || retryPolicy.maxRetries() > 0 || circuitBreakerThreshold > 0;
+  }
+
+  /**
+   * @return whether transfers must be submitted asynchronously so that they can time out.
+   */
+  boolean hasTransferTimeout() {
+    return transferTimeoutNanos != 0;
+  }
+
+  /**
+   * Attempt a command, retrying it while it fails and may be retried. Must be called while holding
+   * the device.
+   */
+  void execute(UsbHidRelayCommandType commandType, Runnable attempt) {
+    if (!enabled) {
+      attempt.run();
+      return;
+    }
+
+    checkCircuit(commandType);
+
+    long startedAtNanos = commandStarted(commandType);
+    for (int retry = 0;; retry++) {
+      try {
+        attempt.run();
+      } catch (RuntimeException e) {
+        if (retry >= retryPolicy.maxRetries() || !isDeviceFailure(e)) {
+          commandFailed(commandType, startedAtNanos, e);
+          throw e;
+        }
+
+        metricsListener.commandRetried(commandType);
+        try {
+          TimeUnit.NANOSECONDS.sleep(retryPolicy.backoffNanos(retry));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          e.addSuppressed(interrupted);
+          commandFailed(commandType, startedAtNanos, e);
+          throw e;
+        }
+        continue;
+      }
+
+      commandCompleted(commandType, startedAtNanos);
+      return;
+    }
+  }
+
+  /**
+   * Asynchronously attempt a command, retrying it while it fails and may be retried. Must be called
+   * while holding the device, which must not be freed until the returned future completes.
+   */
+  CompletableFuture<Void> executeAsync(UsbHidRelayCommandType commandType, Supplier<CompletableFuture<Void>> attempt) {
+    if (!enabled) {
+      return invoke(attempt);
+    }
+
+    try {
+      checkCircuit(commandType);
+    } catch (UsbHidRelayCircuitOpenException e) {
+      return failed(e);
+    }
+
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    attemptAsync(commandType, attempt, 0, commandStarted(commandType), completion);
+    return completion;
+  }
+
+  /**
+   * Abort the given transfer if it does not complete within the transfer timeout.
+   *
+   * @return a future which completes with the transfer, or fails with a
+   *         {@link UsbHidRelayTimeoutException} once the timeout has been counted and the transfer
+   *         aborted, so that the next command cannot be caught up in the abort.
+   */
+  <T> CompletableFuture<T> withTimeout(UsbHidRelayCommandType commandType, CompletableFuture<T> transfer) {
+    if (transferTimeoutNanos == 0 || transfer.isDone()) {
+      return transfer;
+    }
+
+    CompletableFuture<T> completion = new CompletableFuture<>();
+    AtomicBoolean settled = new AtomicBoolean();
+    ScheduledFuture<?> timeout = RelayTimer.schedule(() -> {
+      if (settled.compareAndSet(false, true)) {
+        metricsListener.commandTimedOut(commandType);
+        transport.abort();
+        completion.completeExceptionally(
+            new UsbHidRelayTimeoutException("Transfer did not complete within " + Duration.ofNanos(transferTimeoutNanos) + "."));
+      }
+    }, transferTimeoutNanos);
+    transfer.whenComplete((result, failure) -> {
+      if (!settled.compareAndSet(false, true)) {
+        return;
+      }
+      timeout.cancel(false);
+      if (failure != null) {
+        completion.completeExceptionally(failure);
+      } else {
+        completion.complete(result);
+      }
+    });
+    return completion;
+  }
+
+  void writeVerificationFailed(int expectedMask, int actualMask) {
+    metricsListener.writeVerificationFailed(expectedMask, actualMask);
+  }
+
+  private void attemptAsync(UsbHidRelayCommandType commandType, Supplier<CompletableFuture<Void>> attempt, int retry, long startedAtNanos,
+      CompletableFuture<Void> completion) {
+    invoke(attempt).whenComplete((result, failure) -> {
+      if (failure == null) {
+        commandCompleted(commandType, startedAtNanos);
+        completion.complete(null);
+        return;
+      }
+
+      Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+      if (retry >= retryPolicy.maxRetries() || !isDeviceFailure(cause)) {
+        commandFailed(commandType, startedAtNanos, cause);
+        completion.completeExceptionally(cause);
+        return;
+      }
+
+      metricsListener.commandRetried(commandType);
+      RelayTimer.schedule(() -> attemptAsync(commandType, attempt, retry + 1, startedAtNanos, completion), retryPolicy.backoffNanos(retry));
+    });
+  }
+
+  private void checkCircuit(UsbHidRelayCommandType commandType) {
+    if (circuitOpen && System.nanoTime() - circuitOpenUntilNanos < 0) {
+      metricsListener.commandRejected(commandType);
+      throw new UsbHidRelayCircuitOpenException(
+          "Relay failed " + consecutiveFailures.get() + " consecutive commands. Failing fast until it has had time to recover.");
+    }
+  }
+
+  private long commandStarted(UsbHidRelayCommandType commandType) {
+    if (!metricsEnabled) {
+      return 0;
+    }
+    metricsListener.commandStarted(commandType);
+    return System.nanoTime();
+  }
+
+  private void commandCompleted(UsbHidRelayCommandType commandType, long startedAtNanos) {
+    if (metricsEnabled) {
+      metricsListener.commandCompleted(commandType, System.nanoTime() - startedAtNanos);
+    }
+
+    if (circuitBreakerThreshold > 0) {
+      consecutiveFailures.set(0);
+      circuitOpen = false;
+    }
+  }
+
+  private void commandFailed(UsbHidRelayCommandType commandType, long startedAtNanos, Throwable failure) {
+    if (metricsEnabled) {
+      metricsListener.commandFailed(commandType, System.nanoTime() - startedAtNanos, failure);
+    }
+
+    if (circuitBreakerThreshold > 0 && isDeviceFailure(failure) && consecutiveFailures.incrementAndGet() >= circuitBreakerThreshold) {
+      circuitOpenUntilNanos = System.nanoTime() + circuitBreakerOpenNanos;
+      circuitOpen = true;
+      metricsListener.circuitOpened();
+    }
+  }
+
+  /**
+   * @return false for failures which say nothing about whether the device is responsive and which
+   *         retrying cannot fix, such as the relay being closed or unplugged.
+   */
+  private static boolean isDeviceFailure(Throwable failure) {
+    return !(failure instanceof UsbHidRelayDisconnectedException) && !(failure instanceof UsbHidRelayCircuitOpenException)
+        && !(failure instanceof IllegalArgumentException) && !(failure instanceof IllegalStateException)
+        && !(failure instanceof CancellationException) && !(failure instanceof RejectedExecutionException);
+  }
+
+  private static CompletableFuture<Void> invoke(Supplier<CompletableFuture<Void>> attempt) {
+    try {
+      return attempt.get();
+    } catch (RuntimeException e) {
+      return failed(e);
+    }
+  }
+
+  private static CompletableFuture<Void> failed(Throwable failure) {
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+    completion.completeExceptionally(failure);
+    return completion;
+  }
+}
@@ -0,0 +1,309 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Serializes access to the transport of a relay between blocking callers and asynchronous
+ * commands.
+ *
+ * <p>
+ * Blocking callers hold the device for the duration of their transfers between {@link #lock()} and
+ * {@link #unlock()}. Asynchronous commands are queued and started one at a time, in the order they
+ * were submitted, whenever the device is free. No thread is held while an asynchronous command
+ * waits for its transfers to complete.
+ *
+ * <p>
+ * Consecutive queued mask updates are merged into a single update when they are started, so a
+ * burst of changes to different switches costs a single write once the device is free.
+ *
+ * <p>
+ * While commands are traced, the queue measures how long each command waited for the device.
+ */
+class RelayCommandQueue {
+  /**
+   * Applies a mask update to the device.
+   */
+  interface MaskUpdater {
+    /**
+     * Turn on the switches in the set mask and off the switches in the clear mask, leaving all other
+     * switches unchanged. Switches in both masks are turned on.
+     *
+     * @return a future which completes once the update has been written.
+     */
+    CompletableFuture<Void> apply(int setBits, int clearBits);
+  }
+
+  private final Semaphore device = new Semaphore(1, true);
+  private final Queue<PendingCommand<?>> pending = new ConcurrentLinkedQueue<>();
+  private final Semaphore capacity;
+  private final int maxPendingCommands;
+  private final Executor completionExecutor;
+  private final MaskUpdater maskUpdater;
+  private final RelayCommandTracer tracer;
+
+  private volatile boolean closed;
+  private long waitNanos;
+
+  RelayCommandQueue(int maxPendingCommands, Executor completionExecutor, MaskUpdater maskUpdater, RelayCommandTracer tracer) {
+    if (maxPendingCommands <= 0) {
+      throw new IllegalArgumentException("Maximum pending commands must be greater than zero. Instead got: " + maxPendingCommands);
+    }
+    this.capacity = new Semaphore(maxPendingCommands);
+    this.maxPendingCommands = maxPendingCommands;
+    this.completionExecutor = completionExecutor;
+    this.maskUpdater = maskUpdater;
+    this.tracer = tracer;
+  }
+
+  /**
+   * Wait for a future to complete, rethrowing the cause if it fails with an unchecked exception.
+   */
+  static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Wait until the device is free and hold it.
+   */
+  void lock() {
+    long startedAtNanos = waitStarted();
+    device.acquireUninterruptibly();
+    waitNanos = waitedSince(startedAtNanos);
+  }
+
+  /**
+   * Free the device, starting any asynchronous commands which were queued while it was held.
+   */
+  void unlock() {
+    device.release();
+    drain();
+  }
+
+  /**
+   * @return how long the command holding the device waited for it, or zero if the wait was not
+   *         measured or has already been taken. Must only be called while holding the device.
+   */
+  long takeWaitNanos() {
+    long wait = waitNanos;
+    waitNanos = 0;
+    return wait;
+  }
+
+  /**
+   * Queue an asynchronous command.
+   *
+   * @param command starts the transfers of the command once the device is free and returns a future
+   *        which completes once they have completed.
+   * @param awaitCapacity whether to wait for other commands to complete if the maximum number of
+   *        pending commands has been reached. Otherwise the returned future fails with a
+   *        {@link RejectedExecutionException}.
+   * @return a future with the result of the command. It is completed using the completion executor
+   *         so that dependent actions may safely issue further commands.
+   */
+  <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> command, boolean awaitCapacity) {
+    return enqueue(new PendingCommand<>(command, 0, 0, waitStarted()), awaitCapacity);
+  }
+
+  /**
+   * Queue an asynchronous mask update which may be merged with adjacent queued mask updates.
+   *
+   * @see MaskUpdater#apply(int, int)
+   * @see #submit(Supplier, boolean)
+   */
+  CompletableFuture<Void> submitMaskUpdate(int setBits, int clearBits, boolean awaitCapacity) {
+    return enqueue(new PendingCommand<Void>(null, setBits, clearBits, waitStarted()), awaitCapacity);
+  }
+
+  /**
+   * Fail any commands which have not yet been started. Commands submitted later fail immediately.
+   */
+  void close() {
+    closed = true;
+
+    IllegalStateException failure = new IllegalStateException("Relay was closed before the command was started.");
+    PendingCommand<?> command;
+    while ((command = pending.poll()) != null) {
+      command.fail(failure);
+    }
+  }
+
+  private <T> CompletableFuture<T> enqueue(PendingCommand<T> command, boolean awaitCapacity) {
+    if (closed) {
+      command.result.completeExceptionally(new IllegalStateException("Cannot submit commands to a relay which has been closed."));
+      return command.result;
+    }
+
+    if (awaitCapacity) {
+      capacity.acquireUninterruptibly();
+    } else if (!capacity.tryAcquire()) {
+      command.result.completeExceptionally(new RejectedExecutionException("Relay already has " + maxPendingCommands + " pending commands."));
+      return command.result;
+    }
+
+    pending.add(command);
+    drain();
+
+    return command.result;
+  }
+
+  private void drain() {
+    while (!pending.isEmpty() && tryAcquireDevice()) {
+      if (!runPending()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Try to hold the device without jumping ahead of any blocking callers waiting for it.
+   */
+  private boolean tryAcquireDevice() {
+    try {
+      return device.tryAcquire(0, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return device.tryAcquire();
+    }
+  }
+
+  /**
+   * Run the pending commands while holding the device. Frees the device once there are no more
+   * pending commands or a blocking caller is waiting for it.
+   *
+   * @return false if a command is still running, in which case it will resume running the pending
+   *         commands once it completes.
+   */
+  private boolean runPending() {
+    PendingCommand<?> command;
+    while (!device.hasQueuedThreads() && (command = pending.poll()) != null) {
+      waitNanos = waitedSince(command.submittedAtNanos);
+      CompletableFuture<?> completion = command.isMaskUpdate() ? startMaskUpdates(command) : command.start();
+
+      if (!completion.isDone()) {
+        completion.whenComplete((result, failure) -> {
+          if (runPending()) {
+            drain();
+          }
+        });
+        return false;
+      }
+    }
+
+    device.release();
+    return true;
+  }
+
+  /**
+   * Merge the given mask update with any mask updates queued immediately after it and start a
+   * single update for all of them.
+   */
+  @SuppressWarnings("unchecked")
+  private CompletableFuture<Void> startMaskUpdates(PendingCommand<?> first) {
+    List<PendingCommand<Void>> merged = new ArrayList<>();
+    merged.add((PendingCommand<Void>) first);
+
+    int setBits = first.setBits;
+    int clearBits = first.clearBits;
+
+    PendingCommand<?> next;
+    while ((next = pending.peek()) != null && next.isMaskUpdate()) {
+      pending.poll();
+      merged.add((PendingCommand<Void>) next);
+
+      setBits = (setBits & ~next.clearBits) | next.setBits;
+      clearBits |= next.clearBits;
+    }
+
+    int mergedSetBits = setBits;
+    int mergedClearBits = clearBits;
+
+    CompletableFuture<Void> completion = invoke(() -> maskUpdater.apply(mergedSetBits, mergedClearBits));
+    for (PendingCommand<Void> command : merged) {
+      command.completeWith(completion);
+    }
+    return completion;
+  }
+
+  private long waitStarted() {
+    return tracer.isEnabled() ? System.nanoTime() : 0;
+  }
+
+  private static long waitedSince(long startedAtNanos) {
+    return startedAtNanos == 0 ? 0 : System.nanoTime() - startedAtNanos;
+  }
+
+  private static <T> CompletableFuture<T> invoke(Supplier<CompletableFuture<T>> command) {
+    try {
+      return command.get();
+    } catch (RuntimeException e) {
+      CompletableFuture<T> completion = new CompletableFuture<>();
+      completion.completeExceptionally(e);
+      return completion;
+    }
+  }
+
+  private class PendingCommand<T> {
+    private final Supplier<CompletableFuture<T>> command;
+    private final int setBits;
+    private final int clearBits;
+    private final long submittedAtNanos;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    PendingCommand(Supplier<CompletableFuture<T>> command, int setBits, int clearBits, long submittedAtNanos) {
+      this.command = command;
+      this.setBits = setBits;
+      this.clearBits = clearBits;
+      this.submittedAtNanos = submittedAtNanos;
+    }
+
+    boolean isMaskUpdate() {
+      return command == null;
+    }
+
+    CompletableFuture<T> start() {
+      CompletableFuture<T> completion = invoke(command);
+      completeWith(completion);
+      return completion;
+    }
+
+    void completeWith(CompletableFuture<T> completion) {
+      completion.whenComplete((value, failure) -> {
+        capacity.release();
+        completionExecutor.execute(() -> {
+          if (failure instanceof CompletionException && failure.getCause() != null) {
+            result.completeExceptionally(failure.getCause());
+          } else if (failure != null) {
+            result.completeExceptionally(failure);
+          } else {
+            result.complete(value);
+          }
+        });
+      });
+    }
+
+    void fail(Throwable failure) {
+      capacity.release();
+      completionExecutor.execute(() -> result.completeExceptionally(failure));
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * The trace of a single command sent by a {@link UsbHidRelay}.
+ */
+interface RelayCommandTrace {
+  /**
+   * A trace which records nothing, used while tracing is off.
+   */
+  RelayCommandTrace NONE = (maskAfter, failure) -> {
+  };
+
+  /**
+   * End the trace once the command has completed.
+   *
+   * @param maskAfter the mask written or read by the command.
+   * @param failure what the command failed with, or null if it succeeded.
+   */
+  void end(int maskAfter, Throwable failure);
+}
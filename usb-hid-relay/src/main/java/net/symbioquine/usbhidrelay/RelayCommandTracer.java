@@ -0,0 +1,72 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Traces the commands sent by a {@link UsbHidRelay} as JDK Flight Recorder events, see
+ * {@link RelayCommandEvent}.
+ *
+ * <p>
+ * While no recording has the event enabled, starting a trace costs a single check and returns
+ * {@link RelayCommandTrace#NONE}. On runtimes without the Flight Recorder commands are never
+ * traced and its classes are never loaded.
+ */
+interface RelayCommandTracer {
+  /**
+   * A tracer which never traces.
+   */
+  RelayCommandTracer NONE = new RelayCommandTracer() {
+    @Override
+    public boolean isEnabled() {
+      return false;
+    }
+
+    @Override
+    public RelayCommandTrace begin(UsbHidRelayCommandType commandType, int maskBefore, long waitNanos) {
+      return RelayCommandTrace.NONE;
+    }
+  };
+
+  /**
+   * @return a tracer for the commands of a relay, or {@link #NONE} if the Flight Recorder is not
+   *         available.
+   * @param deviceId the id of the relay device, or null if it is not known.
+   */
+  static RelayCommandTracer create(RelayTransport transport, RelayProtocol protocol, UsbHidRelayDeviceId deviceId) {
+    if (!FlightRecorderSupport.AVAILABLE) {
+      return NONE;
+    }
+    return new FlightRecorderRelayCommandTracer(transport, protocol, deviceId);
+  }
+
+  /**
+   * @return whether commands are currently being traced.
+   */
+  boolean isEnabled();
+
+  /**
+   * Start tracing a command which has just started holding the device.
+   *
+   * @param maskBefore the last mask written to the relay, or {@link UsbHidRelay#NO_MASK}.
+   * @param waitNanos how long the command waited for the device.
+   * @return the trace of the command, or {@link RelayCommandTrace#NONE} if it is not being traced.
+   */
+  RelayCommandTrace begin(UsbHidRelayCommandType commandType, int maskBefore, long waitNanos);
+
+  /**
+   * Checks once whether the Flight Recorder API is present.
+   */
+  final class FlightRecorderSupport {
+    static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderSupport() {
+    }
+
+    private static boolean isAvailable() {
+      try {
+        Class.forName("jdk.jfr.Event", false, RelayCommandTracer.class.getClassLoader());
+        return true;
+      } catch (ClassNotFoundException | LinkageError e) {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link RelayTransport} which carries whole commands, rather than frames or feature reports, to
+ * a relay which carries them out itself, such as a relay shared by another process. A
+ * {@link UsbHidRelay} created with such a transport sends changes to a subset of the switches with
+ * {@link #applyMaskAsync(int, int)}, so they never overwrite changes made to the other switches by
+ * others.
+ *
+ * <p>
+ * The protocol a {@link UsbHidRelay} is created with only describes such relays, since the frames
+ * and feature reports of the protocol are never used.
+ */
+public interface RelayMaskTransport extends RelayTransport {
+  /**
+   * @return a future which completes with a mask of the switch states of the relay, where bit n is
+   *         set if switch n is on.
+   */
+  CompletableFuture<Integer> readMaskAsync();
+
+  /**
+   * @return a future which completes once the switches of the relay are in the states of the given
+   *         mask.
+   */
+  CompletableFuture<Void> writeMaskAsync(int mask);
+
+  /**
+   * @return a future which completes once the given switches of the relay have been turned on and
+   *         off. Switches in neither mask are not changed.
+   */
+  CompletableFuture<Void> applyMaskAsync(int setBits, int clearBits);
+
+  /**
+   * @return a future which completes once the HID interface of the relay has been reset.
+   */
+  CompletableFuture<Void> resetAsync();
+}
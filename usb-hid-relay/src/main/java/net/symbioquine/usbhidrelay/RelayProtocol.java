@@ -0,0 +1,144 @@
+package net.symbioquine.usbhidrelay;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Optional;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+/**
+ * The families of USB HID relays which can be controlled, each identified by the vendor and product
+ * ids of its devices and talking its own protocol. Discovery picks the protocol of every relay it
+ * finds from its ids, so the same {@link UsbHidRelay} API drives relays of every family.
+ */
+public enum RelayProtocol {
+  /**
+   * Relays with vendor id 0x416 and product id 0x5020, such as the SainSmart 16 channel boards,
+   * which exchange 64 byte checksummed frames over their interrupt endpoints. Every write sets all
+   * the switches at once.
+   */
+  SAINSMART(0x416, 0x5020, UsbHidRelaySize.SIXTEEN),
+
+  /**
+   * Relays with vendor id 0x16c0 and product id 0x05df, commonly sold as "USBRelay" boards with one
+   * to eight switches, which are controlled with 8 byte HID feature reports. Writes turning every
+   * switch on or off are sent as a single report, other writes send one report per switch they
+   * cover, so changes to a subset of the switches leave the others untouched.
+   */
+  USB_RELAY(0x16c0, 0x05df, UsbHidRelaySize.EIGHT);
+
+  private static final String USB_RELAY_PRODUCT_PREFIX = "USBRelay";
+
+  private final int vendorId;
+  private final int productId;
+  private final UsbHidRelaySize maxRelaySize;
+
+  private RelayProtocol(int vendorId, int productId, UsbHidRelaySize maxRelaySize) {
+    this.vendorId = vendorId;
+    this.productId = productId;
+    this.maxRelaySize = maxRelaySize;
+  }
+
+  /**
+   * @return the USB vendor id of relays talking this protocol.
+   */
+  public int vendorId() {
+    return vendorId;
+  }
+
+  /**
+   * @return the USB product id of relays talking this protocol.
+   */
+  public int productId() {
+    return productId;
+  }
+
+  /**
+   * @return the largest size of relay talking this protocol.
+   */
+  public UsbHidRelaySize maxRelaySize() {
+    return maxRelaySize;
+  }
+
+  /**
+   * @return the protocol of the relay device, or empty if the device is not a known relay.
+   */
+  public static Optional<RelayProtocol> of(UsbDevice device) {
+    UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
+
+    for (RelayProtocol protocol : values()) {
+      if (desc.idVendor() == (short) protocol.vendorId && desc.idProduct() == (short) protocol.productId) {
+        return Optional.of(protocol);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * @return the size of the relay device. {@link #USB_RELAY} boards name their number of switches in
+   *         their product string, such as "USBRelay4", while the size of other relays, or of boards
+   *         without such a product string, is taken to be the largest size of their protocol.
+   */
+  UsbHidRelaySize relaySize(UsbDevice device) {
+    if (this != USB_RELAY) {
+      return maxRelaySize;
+    }
+
+    String product;
+    try {
+      product = device.getProductString();
+    } catch (UsbException | UnsupportedEncodingException | UsbDisconnectedException e) {
+      return maxRelaySize;
+    }
+    if (product == null || !product.startsWith(USB_RELAY_PRODUCT_PREFIX)) {
+      return maxRelaySize;
+    }
+
+    int switches;
+    try {
+      switches = Integer.parseInt(product.substring(USB_RELAY_PRODUCT_PREFIX.length()).trim());
+    } catch (NumberFormatException e) {
+      return maxRelaySize;
+    }
+    if (switches <= 0 || switches > maxRelaySize.asInt()) {
+      return maxRelaySize;
+    }
+    // Relay sizes are powers of two, so a board with any other number of switches gets the next size up.
+    int size = 1;
+    while (size < switches) {
+      size <<= 1;
+    }
+    return UsbHidRelaySize.of(size);
+  }
+
+  /**
+   * @return a new codec for a relay of the given size talking this protocol through the given
+   *         transport.
+   * @throws IllegalArgumentException if no relay talking this protocol is that large, or the
+   *         transport cannot carry the transfers of this protocol.
+   */
+  RelayCodec createCodec(RelayTransport transport, UsbHidRelaySize relaySize) {
+    if (relaySize.asInt() > maxRelaySize.asInt()) {
+      throw new IllegalArgumentException(
+          "Relays talking the " + this + " protocol have at most " + maxRelaySize.asInt() + " switches. Instead got: " + relaySize.asInt());
+    }
+
+    switch (this) {
+      case USB_RELAY:
+        if (!(transport instanceof FeatureReportTransport)) {
+          throw new IllegalArgumentException("Relays talking the " + this + " protocol need a " + FeatureReportTransport.class.getSimpleName()
+              + ". Instead got: " + transport.getClass().getName());
+        }
+        return new FeatureReportRelayCodec(relaySize);
+      case SAINSMART:
+      default:
+        if (!(transport instanceof FrameTransport)) {
+          throw new IllegalArgumentException("Relays talking the " + this + " protocol need a " + FrameTransport.class.getSimpleName()
+              + ". Instead got: " + transport.getClass().getName());
+        }
+        return new SainSmartRelayCodec(relaySize);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.IntSupplier;
+
+/**
+ * Holds back the mask updates of a {@link UsbHidRelay} which would break its
+ * {@link UsbHidRelayRateLimit}, merging them with later updates until they can be written.
+ *
+ * <p>
+ * Updates which are held back are merged, the last update to each switch winning. Updates which
+ * would leave every switch they change in its current state are dropped without being written.
+ * The current states are those confirmed by the relay, so once a write fails nothing is dropped
+ * until the states are known again.
+ * Each update completes once a write carrying its changes, or the later changes which replaced
+ * them, completes.
+ */
+class RelayRateLimiter {
+  private final long minEdgeIntervalNanos;
+  private final long minWriteIntervalNanos;
+  private final int allSwitchesMask;
+  private final RelayCommandQueue.MaskUpdater maskUpdater;
+  private final IntSupplier confirmedMask;
+  private final Executor completionExecutor;
+  private final UsbHidRelayMetricsListener metricsListener;
+
+  private final long[] lastEdgeNanos;
+  private final List<PendingUpdate> pendingUpdates = new ArrayList<>();
+  private int changedSwitches;
+  private int pendingSetBits;
+  private int pendingClearBits;
+  private boolean written;
+  private long lastWriteNanos;
+  private int outstandingWrites;
+  private int issuedMask = UsbHidRelay.NO_MASK;
+  private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+  private ScheduledFuture<?> scheduledFlush;
+  private long scheduledFlushNanos;
+  private boolean closed;
+
+  RelayRateLimiter(UsbHidRelayRateLimit rateLimit, int relaySize, RelayCommandQueue.MaskUpdater maskUpdater, IntSupplier confirmedMask,
+      Executor completionExecutor, UsbHidRelayMetricsListener metricsListener) {
+    this.minEdgeIntervalNanos = rateLimit.minEdgeIntervalNanos();
+    this.minWriteIntervalNanos = rateLimit.minWriteIntervalNanos();
+    this.allSwitchesMask = (1 << relaySize) - 1;
+    this.maskUpdater = maskUpdater;
+    this.confirmedMask = confirmedMask;
+    this.completionExecutor = completionExecutor;
+    this.metricsListener = metricsListener;
+    this.lastEdgeNanos = new long[relaySize];
+  }
+
+  /**
+   * Turn on the switches in the set mask and off the switches in the clear mask once the rate limit
+   * allows. Switches in both masks are turned on.
+   *
+   * @return a future which completes once the update has been written, replaced by a later update
+   *         which has been written or dropped because it would change nothing.
+   */
+  synchronized CompletableFuture<Void> submit(int setBits, int clearBits) {
+    PendingUpdate update = new PendingUpdate(setBits | clearBits);
+    if (closed) {
+      update.completion.completeExceptionally(new IllegalStateException("Cannot submit commands to a relay which has been closed."));
+      return update.completion;
+    }
+
+    pendingSetBits = (pendingSetBits & ~clearBits) | setBits;
+    pendingClearBits = (pendingClearBits & ~setBits) | (clearBits & ~setBits);
+    pendingUpdates.add(update);
+
+    flush();
+
+    if ((update.bits & (pendingSetBits | pendingClearBits)) != 0) {
+      metricsListener.writeDeferred();
+    }
+    return update.completion;
+  }
+
+  /**
+   * Fail every update which is still held back.
+   */
+  synchronized void close() {
+    closed = true;
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+
+    IllegalStateException failure = new IllegalStateException("Relay was closed before the command was started.");
+    for (PendingUpdate update : pendingUpdates) {
+      update.completion.completeExceptionally(failure);
+    }
+    pendingUpdates.clear();
+    pendingSetBits = 0;
+    pendingClearBits = 0;
+  }
+
+  private synchronized void scheduledFlush() {
+    scheduledFlush = null;
+    if (!closed) {
+      flush();
+    }
+  }
+
+  /**
+   * Write the held back changes which the rate limit allows, dropping any which would change
+   * nothing, and schedule another flush for when the rest will be allowed.
+   */
+  private void flush() {
+    long nowNanos = System.nanoTime();
+
+    int mask = outstandingWrites == 0 ? confirmedMask.getAsInt() : issuedMask;
+    int pendingBits = pendingSetBits | pendingClearBits;
+    int changing = mask == UsbHidRelay.NO_MASK ? pendingBits : (pendingSetBits & ~mask) | (pendingClearBits & mask);
+    pendingSetBits &= changing;
+    pendingClearBits &= changing;
+
+    int ready = 0;
+    long blockedUntilNanos = Long.MAX_VALUE;
+    for (int remaining = changing; remaining != 0; remaining &= remaining - 1) {
+      int switchId = Integer.numberOfTrailingZeros(remaining);
+      if ((changedSwitches & (1 << switchId)) == 0 || nowNanos - lastEdgeNanos[switchId] >= minEdgeIntervalNanos) {
+        ready |= 1 << switchId;
+      } else {
+        blockedUntilNanos = Math.min(blockedUntilNanos, lastEdgeNanos[switchId] + minEdgeIntervalNanos);
+      }
+    }
+
+    int writtenBits = 0;
+    if (ready != 0 && (!written || nowNanos - lastWriteNanos >= minWriteIntervalNanos)) {
+      write(mask, pendingSetBits & ready, pendingClearBits & ready, nowNanos);
+      writtenBits = ready;
+      ready = 0;
+    }
+
+    if (writtenBits != 0 || changing != pendingBits) {
+      completeUpdates(writtenBits);
+    }
+
+    if ((pendingSetBits | pendingClearBits) != 0) {
+      long readyAtNanos = ready != 0 ? nowNanos : blockedUntilNanos;
+      if (written) {
+        readyAtNanos = Math.max(readyAtNanos, lastWriteNanos + minWriteIntervalNanos);
+      }
+      schedule(readyAtNanos, nowNanos);
+    }
+  }
+
+  private void write(int mask, int setBits, int clearBits, long nowNanos) {
+    for (int remaining = setBits | clearBits; remaining != 0; remaining &= remaining - 1) {
+      lastEdgeNanos[Integer.numberOfTrailingZeros(remaining)] = nowNanos;
+    }
+    changedSwitches |= setBits | clearBits;
+    written = true;
+    lastWriteNanos = nowNanos;
+
+    pendingSetBits &= ~(setBits | clearBits);
+    pendingClearBits &= ~(setBits | clearBits);
+
+    if (mask != UsbHidRelay.NO_MASK) {
+      issuedMask = (mask & ~clearBits) | setBits;
+    } else {
+      issuedMask = (setBits | clearBits) == allSwitchesMask ? setBits : UsbHidRelay.NO_MASK;
+    }
+
+    outstandingWrites++;
+    lastWrite = maskUpdater.apply(setBits, clearBits);
+    lastWrite.whenComplete((result, failure) -> writeCompleted(failure));
+  }
+
+  private synchronized void writeCompleted(Throwable failure) {
+    outstandingWrites--;
+    if (failure != null) {
+      // Writes still outstanding were issued on top of a mask the relay may not be in
+      issuedMask = UsbHidRelay.NO_MASK;
+    }
+  }
+
+  /**
+   * Complete every update none of whose switches are still held back once the last write
+   * completes, counting those carried by a write which was just made and those dropped.
+   */
+  private void completeUpdates(int writtenBits) {
+    int pendingBits = pendingSetBits | pendingClearBits;
+    int carried = 0;
+
+    for (Iterator<PendingUpdate> iterator = pendingUpdates.iterator(); iterator.hasNext();) {
+      PendingUpdate update = iterator.next();
+      if ((update.bits & pendingBits) != 0) {
+        continue;
+      }
+      iterator.remove();
+
+      if ((update.bits & writtenBits) == 0) {
+        metricsListener.writeDropped();
+      } else if (carried++ > 0) {
+        metricsListener.writeCoalesced();
+      }
+      propagate(lastWrite, update.completion);
+    }
+  }
+
+  /**
+   * Schedule a flush for the given time unless one is already scheduled no later than it. A flush
+   * which runs early schedules another for when the held back changes will be allowed.
+   */
+  private void schedule(long flushAtNanos, long nowNanos) {
+    if (scheduledFlush != null) {
+      if (scheduledFlushNanos - flushAtNanos <= 0) {
+        return;
+      }
+      scheduledFlush.cancel(false);
+    }
+    scheduledFlushNanos = flushAtNanos;
+    scheduledFlush = RelayTimer.schedule(this::scheduledFlush, Math.max(flushAtNanos - nowNanos, 0));
+  }
+
+  /**
+   * Complete an update once a write completes, using the completion executor so that dependent
+   * actions never run while the limiter is locked.
+   */
+  private void propagate(CompletableFuture<Void> write, CompletableFuture<Void> completion) {
+    write.whenCompleteAsync((result, failure) -> {
+      if (failure != null) {
+        completion.completeExceptionally(failure);
+      } else {
+        completion.complete(null);
+      }
+    }, completionExecutor);
+  }
+
+  private static class PendingUpdate {
+    final CompletableFuture<Void> completion = new CompletableFuture<>();
+    final int bits;
+
+    PendingUpdate(int bits) {
+      this.bits = bits;
+    }
+  }
+}
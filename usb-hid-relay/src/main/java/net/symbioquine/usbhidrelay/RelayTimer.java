@@ -0,0 +1,30 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared daemon thread which runs the delayed actions of every relay, such as transfer timeouts
+ * and asynchronous retries.
+ */
+final class RelayTimer {
+  private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+
+  private RelayTimer() {
+  }
+
+  static ScheduledFuture<?> schedule(Runnable action, long delayNanos) {
+    return EXECUTOR.schedule(action, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static ScheduledThreadPoolExecutor createExecutor() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, action -> {
+      Thread thread = new Thread(action, "usb-hid-relay-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+}
@@ -0,0 +1,98 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates how long the transfers of a command spend opening pipes, submitting data and closing
+ * pipes, so that a traced command can report where its time went.
+ *
+ * <p>
+ * Nothing is timed unless a trace is recording, so untraced commands only pay for a volatile read
+ * per phase. The transfers of a relay are only traced by one command at a time.
+ */
+final class RelayTransferPhases {
+  /**
+   * Phases which are never timed, for transports which have no pipes to time.
+   */
+  static final RelayTransferPhases NONE = new RelayTransferPhases();
+
+  private final AtomicLong openNanos = new AtomicLong();
+  private final AtomicLong submitNanos = new AtomicLong();
+  private final AtomicLong closeNanos = new AtomicLong();
+  private final AtomicLong submits = new AtomicLong();
+
+  private volatile boolean recording;
+
+  /**
+   * @return the phases of the transport, or {@link #NONE} if it does not time its transfers.
+   */
+  static RelayTransferPhases of(RelayTransport transport) {
+    if (transport instanceof PhasedRelayTransport) {
+      return ((PhasedRelayTransport) transport).transferPhases();
+    }
+    return NONE;
+  }
+
+  /**
+   * Reset the accumulated times and start timing transfers.
+   */
+  void startRecording() {
+    if (this == NONE) {
+      return;
+    }
+    openNanos.set(0);
+    submitNanos.set(0);
+    closeNanos.set(0);
+    submits.set(0);
+    recording = true;
+  }
+
+  /**
+   * Stop timing transfers. The accumulated times remain readable until recording starts again.
+   */
+  void stopRecording() {
+    recording = false;
+  }
+
+  /**
+   * @return the time a phase starts at if transfers are being timed, otherwise zero.
+   */
+  long phaseStarted() {
+    return recording ? System.nanoTime() : 0;
+  }
+
+  void pipeOpened(long startedAtNanos) {
+    if (startedAtNanos != 0) {
+      openNanos.addAndGet(System.nanoTime() - startedAtNanos);
+    }
+  }
+
+  void dataSubmitted(long startedAtNanos) {
+    if (startedAtNanos != 0) {
+      submitNanos.addAndGet(System.nanoTime() - startedAtNanos);
+      submits.incrementAndGet();
+    }
+  }
+
+  void pipeClosed(long startedAtNanos) {
+    if (startedAtNanos != 0) {
+      closeNanos.addAndGet(System.nanoTime() - startedAtNanos);
+    }
+  }
+
+  long openNanos() {
+    return openNanos.get();
+  }
+
+  long submitNanos() {
+    return submitNanos.get();
+  }
+
+  long closeNanos() {
+    return closeNanos.get();
+  }
+
+  long submits() {
+    return submits.get();
+  }
+}
@@ -0,0 +1,30 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Carries the transfers of a {@link UsbHidRelay} to a relay device.
+ *
+ * <p>
+ * The default transports talk to the device over USB, but other transports, such as
+ * {@link SimulatedRelayDevice}, may be supplied to {@link UsbHidRelay#create(RelayTransport, UsbHidRelaySize)}.
+ * A {@link UsbHidRelay} never has more than one transfer outstanding on a transport at a time.
+ *
+ * <p>
+ * Transports implement the transfers of the relays they are used with. Relays talking
+ * {@link RelayProtocol#SAINSMART} need a {@link FrameTransport}, relays talking
+ * {@link RelayProtocol#USB_RELAY} need a {@link FeatureReportTransport}, while a
+ * {@link RelayMaskTransport} carries whole commands to relays of any protocol.
+ */
+public interface RelayTransport extends AutoCloseable {
+  /**
+   * Abandon any transfers in progress, e.g. because they have timed out. Transfers which are
+   * abandoned should fail. Does nothing by default.
+   */
+  default void abort() {
+  }
+
+  /**
+   * Release any resources held by the transport.
+   */
+  @Override
+  void close();
+}
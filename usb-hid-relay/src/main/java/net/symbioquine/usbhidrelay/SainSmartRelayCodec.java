@@ -0,0 +1,63 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Talks the {@link RelayProtocol#SAINSMART} protocol, sending the frames encoded by
+ * {@link UsbHidRelayFrames} and receiving the switch states in a response frame.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+class SainSmartRelayCodec implements RelayCodec {
+  UsbHidRelayBitMapping bitMapping;
+  byte[] writeFrame = UsbHidRelayFrames.newWriteFrame();
+  byte[] responseFrame = UsbHidRelayFrames.newResponseFrame();
+
+  SainSmartRelayCodec(UsbHidRelaySize relaySize) {
+    this.bitMapping = UsbHidRelayBitMapping.forSize(relaySize);
+  }
+
+  @Override
+  public void encodeWrite(int mask) {
+    UsbHidRelayFrames.encodeWrite(bitMapping.toWriteBitmap(mask), writeFrame);
+  }
+
+  @Override
+  public void write(Transfers transfers) {
+    transfers.send(writeFrame);
+  }
+
+  @Override
+  public CompletableFuture<Void> writeAsync(Transfers transfers) {
+    return transfers.sendAsync(writeFrame);
+  }
+
+  @Override
+  public void read(Transfers transfers) {
+    transfers.send(UsbHidRelayFrames.readFrame());
+
+    transfers.receive(responseFrame);
+  }
+
+  @Override
+  public CompletableFuture<Void> readAsync(Transfers transfers) {
+    return transfers.sendAsync(UsbHidRelayFrames.readFrame()).thenCompose(sent -> transfers.receiveAsync(responseFrame));
+  }
+
+  @Override
+  public int decodeRead() {
+    return bitMapping.fromReadBitmap(UsbHidRelayFrames.decodeReadBitmap(responseFrame));
+  }
+
+  @Override
+  public void reset(Transfers transfers) {
+    transfers.send(UsbHidRelayFrames.resetFrame());
+  }
+
+  @Override
+  public CompletableFuture<Void> resetAsync(Transfers transfers) {
+    return transfers.sendAsync(UsbHidRelayFrames.resetFrame());
+  }
+}
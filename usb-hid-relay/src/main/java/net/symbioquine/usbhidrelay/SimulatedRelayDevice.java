@@ -0,0 +1,292 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.NonNull;
+
+/**
+ * An in-memory transport which behaves like a USB HID relay with as many switches as
+ * its {@link RelayProtocol} allows. Simulating {@link RelayProtocol#SAINSMART}, it validates the
+ * length, trailer and checksum of every command frame, applies write commands to its switches and
+ * answers read commands with the switch states in the bitmap layout reported by the hardware.
+ * Simulating {@link RelayProtocol#USB_RELAY}, it validates the length of every feature report,
+ * applies the switch commands they carry and answers with its serial number and switch states.
+ *
+ * <p>
+ * A per-transfer latency and failures can be injected to exercise code built on
+ * {@link UsbHidRelay} without physical hardware;
+ *
+ * <pre>
+ * SimulatedRelayDevice device = SimulatedRelayDevice.create();
+ * device.setTransferLatency(Duration.ofMillis(1));
+ *
+ * UsbHidRelay relay = UsbHidRelay.create(device, SIXTEEN);
+ * </pre>
+ *
+ * <p>
+ * Code which must work with relays of every protocol can be run against a simulated relay of each;
+ *
+ * <pre>
+ * for (RelayProtocol protocol : RelayProtocol.values()) {
+ *   UsbHidRelay relay = UsbHidRelay.create(SimulatedRelayDevice.create(protocol), protocol, EIGHT);
+ *   ...
+ * }
+ * </pre>
+ */
+public class SimulatedRelayDevice implements FrameTransport, FeatureReportTransport {
+  private static final UsbHidRelayBitMapping READ_BIT_MAPPING = UsbHidRelayBitMapping.forSize(UsbHidRelaySize.SIXTEEN);
+  private static final String SERIAL_NUMBER = "SIMUL";
+
+  private final Random random = new Random();
+  private final RelayProtocol protocol;
+  private final int allSwitchesMask;
+
+  private int switchMask;
+  private boolean responsePending;
+  private boolean closed;
+
+  private long transferLatencyNanos;
+  private double failureRate;
+  private int failNextTransfers;
+
+  private long sentFrames;
+  private long receivedFrames;
+  private long failedTransfers;
+
+  private SimulatedRelayDevice(RelayProtocol protocol) {
+    this.protocol = protocol;
+    this.allSwitchesMask = (1 << protocol.maxRelaySize().asInt()) - 1;
+  }
+
+  /**
+   * @return a simulated {@link RelayProtocol#SAINSMART} relay with all of its switches off, no
+   *         transfer latency and no failures.
+   */
+  public static SimulatedRelayDevice create() {
+    return create(RelayProtocol.SAINSMART);
+  }
+
+  /**
+   * @return a simulated relay talking the given protocol with all of its switches off, no transfer
+   *         latency and no failures.
+   */
+  public static SimulatedRelayDevice create(@NonNull RelayProtocol protocol) {
+    return new SimulatedRelayDevice(protocol);
+  }
+
+  /**
+   * @return the protocol this device talks.
+   */
+  public RelayProtocol protocol() {
+    return protocol;
+  }
+
+  @Override
+  public void send(byte[] frame) {
+    requireProtocol(RelayProtocol.SAINSMART);
+    beginTransfer();
+
+    synchronized (this) {
+      UsbHidRelayFrames.validateCommandFrame(frame);
+
+      switch (UsbHidRelayFrames.command(frame)) {
+        case UsbHidRelayFrames.CMD_READ:
+          responsePending = true;
+          break;
+        case UsbHidRelayFrames.CMD_WRITE:
+          switchMask = UsbHidRelayFrames.decodeWriteBitmap(frame);
+          break;
+        case UsbHidRelayFrames.CMD_RESET:
+          responsePending = false;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown command: 0x" + Integer.toHexString(UsbHidRelayFrames.command(frame)));
+      }
+      sentFrames++;
+    }
+  }
+
+  @Override
+  public void receive(byte[] frame) {
+    requireProtocol(RelayProtocol.SAINSMART);
+    beginTransfer();
+
+    synchronized (this) {
+      if (frame.length != UsbHidRelayFrames.PACKET_LENGTH) {
+        throw new IllegalArgumentException(
+            "Expected a buffer of " + UsbHidRelayFrames.PACKET_LENGTH + " bytes. Instead got " + frame.length + " bytes.");
+      }
+      if (!responsePending) {
+        throw new IllegalStateException("No response is pending. A read command must be sent before receiving a response.");
+      }
+      responsePending = false;
+
+      Arrays.fill(frame, (byte) 0);
+      UsbHidRelayFrames.encodeReadResponse(READ_BIT_MAPPING.toReadBitmap(switchMask), frame);
+
+      receivedFrames++;
+    }
+  }
+
+  @Override
+  public void setFeatureReport(byte[] report) {
+    requireProtocol(RelayProtocol.USB_RELAY);
+    beginTransfer();
+
+    synchronized (this) {
+      UsbRelayFeatureReports.validateReport(report);
+
+      switch (UsbRelayFeatureReports.command(report)) {
+        case UsbRelayFeatureReports.CMD_ALL_ON:
+          switchMask = allSwitchesMask;
+          break;
+        case UsbRelayFeatureReports.CMD_ALL_OFF:
+          switchMask = 0;
+          break;
+        case UsbRelayFeatureReports.CMD_ON:
+          switchMask |= switchBit(report);
+          break;
+        case UsbRelayFeatureReports.CMD_OFF:
+          switchMask &= ~switchBit(report);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown command: 0x" + Integer.toHexString(UsbRelayFeatureReports.command(report)));
+      }
+      sentFrames++;
+    }
+  }
+
+  @Override
+  public void getFeatureReport(byte[] report) {
+    requireProtocol(RelayProtocol.USB_RELAY);
+    beginTransfer();
+
+    synchronized (this) {
+      UsbRelayFeatureReports.validateReport(report);
+
+      UsbRelayFeatureReports.encodeReport(SERIAL_NUMBER, switchMask, report);
+
+      receivedFrames++;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+  }
+
+  /**
+   * @return a mask of the simulated switch states where bit n is set if switch n is on.
+   */
+  public synchronized int switchMask() {
+    return switchMask;
+  }
+
+  /**
+   * Change the simulated switch states as if they had been changed by something other than the
+   * relay this device is attached to.
+   *
+   * @param switchMask a mask of the switch states where bit n is set if switch n is on.
+   */
+  public synchronized void setSwitchMask(int switchMask) {
+    this.switchMask = switchMask & allSwitchesMask;
+  }
+
+  /**
+   * @param transferLatency how long every transfer takes to complete.
+   */
+  public synchronized void setTransferLatency(Duration transferLatency) {
+    if (transferLatency.isNegative()) {
+      throw new IllegalArgumentException("Transfer latency must not be negative. Instead got: " + transferLatency);
+    }
+    this.transferLatencyNanos = transferLatency.toNanos();
+  }
+
+  /**
+   * @param failureRate the probability, between zero and one, that any transfer fails.
+   */
+  public synchronized void setFailureRate(double failureRate) {
+    if (failureRate < 0 || failureRate > 1) {
+      throw new IllegalArgumentException("Failure rate must be between zero and one (inclusive). Instead got: " + failureRate);
+    }
+    this.failureRate = failureRate;
+  }
+
+  /**
+   * @param transfers the number of upcoming transfers which should fail.
+   */
+  public synchronized void failNextTransfers(int transfers) {
+    if (transfers < 0) {
+      throw new IllegalArgumentException("Number of transfers must not be negative. Instead got: " + transfers);
+    }
+    this.failNextTransfers = transfers;
+  }
+
+  /**
+   * @return the number of command frames, or feature reports, successfully sent to this device.
+   */
+  public synchronized long sentFrames() {
+    return sentFrames;
+  }
+
+  /**
+   * @return the number of response frames, or feature reports, successfully received from this
+   *         device.
+   */
+  public synchronized long receivedFrames() {
+    return receivedFrames;
+  }
+
+  /**
+   * @return the number of transfers which failed due to injected failures.
+   */
+  public synchronized long failedTransfers() {
+    return failedTransfers;
+  }
+
+  private void requireProtocol(RelayProtocol transferProtocol) {
+    if (protocol != transferProtocol) {
+      throw new UnsupportedOperationException("Simulated relays talking the " + protocol + " protocol do not support this transfer.");
+    }
+  }
+
+  private int switchBit(byte[] report) {
+    int switchId = UsbRelayFeatureReports.switchId(report);
+    if (switchId < 0 || switchId >= protocol.maxRelaySize().asInt()) {
+      throw new IllegalArgumentException("Switch number must be in the range 1 to " + protocol.maxRelaySize().asInt() + ". Instead got: " + (switchId + 1));
+    }
+    return 1 << switchId;
+  }
+
+  private void beginTransfer() {
+    long latencyNanos;
+
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Cannot transfer data with a simulated relay which has been closed.");
+      }
+
+      if (failNextTransfers > 0 || (failureRate > 0 && random.nextDouble() < failureRate)) {
+        if (failNextTransfers > 0) {
+          failNextTransfers--;
+        }
+        failedTransfers++;
+        throw new RuntimeException("Simulated transfer failure.");
+      }
+
+      latencyNanos = transferLatencyNanos;
+    }
+
+    simulateLatency(latencyNanos);
+  }
+
+  private static void simulateLatency(long latencyNanos) {
+    long deadline = System.nanoTime() + latencyNanos;
+    for (long remaining = latencyNanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+      LockSupport.parkNanos(remaining);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+
+/**
+ * Remembers the last known switch mask of a relay so that single switch changes do not need to
+ * read the current states back from the device first.
+ *
+ * <p>
+ * The mask is considered fresh for a bounded time after it was last read from or written to the
+ * device. Once it is older than that it must be reconciled with the device before being used again.
+ */
+class SwitchStateCache {
+  static final int NO_FRESH_MASK = -1;
+
+  private final long maxAgeNanos;
+
+  private boolean known;
+  private int mask;
+  private long updatedAtNanos;
+
+  SwitchStateCache(Duration maxAge) {
+    if (maxAge.isNegative()) {
+      throw new IllegalArgumentException("Switch state cache max age must not be negative. Instead got: " + maxAge);
+    }
+    this.maxAgeNanos = maxAge.toNanos();
+  }
+
+  /**
+   * @return the cached mask if it is still fresh, otherwise {@link #NO_FRESH_MASK}.
+   */
+  synchronized int freshMask() {
+    if (!known || System.nanoTime() - updatedAtNanos > maxAgeNanos) {
+      return NO_FRESH_MASK;
+    }
+    return mask;
+  }
+
+  /**
+   * Record a mask which was just read from or written to the device.
+   */
+  synchronized void update(int mask) {
+    this.known = true;
+    this.mask = mask;
+    this.updatedAtNanos = System.nanoTime();
+  }
+
+  /**
+   * Forget the cached mask, forcing the next user to read the states from the device.
+   */
+  synchronized void invalidate() {
+    this.known = false;
+  }
+}
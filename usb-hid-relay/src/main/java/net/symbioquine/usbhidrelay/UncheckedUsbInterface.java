@@ -15,19 +15,34 @@ import javax.usb.UsbPipe;
  */
 class UncheckedUsbInterface {
   private final UsbInterface usbInterface;
+  private final UsbHidRelayMetricsListener metricsListener;
+  private final RelayTransferPhases transferPhases = new RelayTransferPhases();
 
-  public UncheckedUsbInterface(UsbInterface usbInterface) {
+  public UncheckedUsbInterface(UsbInterface usbInterface, UsbHidRelayMetricsListener metricsListener) {
     this.usbInterface = requireNonNull(usbInterface);
+    this.metricsListener = requireNonNull(metricsListener);
   }
 
   public AutoCloseableUncheckedUsbPipe openPipeForEndpoint(int endpointAddress) {
+    long startedAtNanos = transferPhases.phaseStarted();
+
     UsbEndpoint endpoint = usbInterface.getUsbEndpoint((byte) endpointAddress);
     UsbPipe pipe = endpoint.getUsbPipe();
     try {
       pipe.open();
     } catch (UsbNotActiveException | UsbNotClaimedException | UsbDisconnectedException | UsbException e) {
       throw new RuntimeException("Failed to open pipe for reading.", e);
+    } finally {
+      transferPhases.pipeOpened(startedAtNanos);
     }
-    return new AutoCloseableUncheckedUsbPipe(pipe);
+    metricsListener.pipeOpened(endpointAddress);
+    return new AutoCloseableUncheckedUsbPipe(pipe, endpointAddress, metricsListener, transferPhases);
+  }
+
+  /**
+   * @return the phases of the transfers made on the pipes of this interface.
+   */
+  public RelayTransferPhases transferPhases() {
+    return transferPhases;
   }
 }
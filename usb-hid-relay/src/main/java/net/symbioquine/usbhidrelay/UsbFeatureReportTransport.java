@@ -0,0 +1,200 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbInterface;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceErrorEvent;
+import javax.usb.event.UsbDeviceEvent;
+import javax.usb.event.UsbDeviceListener;
+
+/**
+ * Transfers feature reports to and from a relay with HID SET_REPORT and GET_REPORT requests on the
+ * default control pipe of its device.
+ *
+ * <p>
+ * Control transfers on the default pipe cannot be cancelled, so {@link #abort()} fails the transfers
+ * in progress without waiting for them and ignores their completion once it arrives.
+ */
+class UsbFeatureReportTransport implements FeatureReportTransport, PhasedRelayTransport {
+  private static final int CONTROL_ENDPOINT_ADDRESS = 0x00;
+
+  private static final byte REQUEST_TYPE_SET = 0x21;
+  private static final byte REQUEST_TYPE_GET = (byte) 0xA1;
+  private static final byte REQUEST_SET_REPORT = 0x09;
+  private static final byte REQUEST_GET_REPORT = 0x01;
+  private static final short FEATURE_REPORT = 0x0300;
+  private static final short INTERFACE_NUMBER = 0;
+
+  private final UsbDevice usbDevice;
+  private final UsbHidRelayMetricsListener metricsListener;
+  private final RelayTransferPhases transferPhases = new RelayTransferPhases();
+  private final Map<UsbControlIrp, PendingIrp> pendingIrps = new ConcurrentHashMap<>();
+  private final UsbDeviceListener irpCompletionListener = new IrpCompletionListener();
+
+  public UsbFeatureReportTransport(UsbInterface usbInterface, UsbHidRelayMetricsListener metricsListener) {
+    this.usbDevice = requireNonNull(usbInterface).getUsbConfiguration().getUsbDevice();
+    this.metricsListener = requireNonNull(metricsListener);
+    this.usbDevice.addUsbDeviceListener(irpCompletionListener);
+  }
+
+  /**
+   * Read a feature report from a relay device which has not been acquired, e.g. to find its serial
+   * number.
+   */
+  static void getFeatureReport(UsbDevice usbDevice, byte[] report) {
+    submit(usbDevice, usbDevice.createUsbControlIrp(REQUEST_TYPE_GET, REQUEST_GET_REPORT, FEATURE_REPORT, INTERFACE_NUMBER), report,
+        UsbHidRelayMetricsListener.NOOP, RelayTransferPhases.NONE);
+  }
+
+  @Override
+  public void setFeatureReport(byte[] report) {
+    submit(usbDevice, usbDevice.createUsbControlIrp(REQUEST_TYPE_SET, REQUEST_SET_REPORT, FEATURE_REPORT, INTERFACE_NUMBER), report,
+        metricsListener, transferPhases);
+  }
+
+  @Override
+  public void getFeatureReport(byte[] report) {
+    submit(usbDevice, usbDevice.createUsbControlIrp(REQUEST_TYPE_GET, REQUEST_GET_REPORT, FEATURE_REPORT, INTERFACE_NUMBER), report,
+        metricsListener, transferPhases);
+  }
+
+  @Override
+  public CompletableFuture<Void> setFeatureReportAsync(byte[] report) {
+    return asyncSubmit(usbDevice.createUsbControlIrp(REQUEST_TYPE_SET, REQUEST_SET_REPORT, FEATURE_REPORT, INTERFACE_NUMBER), report);
+  }
+
+  @Override
+  public CompletableFuture<Void> getFeatureReportAsync(byte[] report) {
+    return asyncSubmit(usbDevice.createUsbControlIrp(REQUEST_TYPE_GET, REQUEST_GET_REPORT, FEATURE_REPORT, INTERFACE_NUMBER), report);
+  }
+
+  @Override
+  public RelayTransferPhases transferPhases() {
+    return transferPhases;
+  }
+
+  @Override
+  public void abort() {
+    failPending(new RuntimeException("Feature report transfer was aborted."));
+  }
+
+  /**
+   * Control transfers hold no pipes open, so closing only fails the transfers in progress.
+   */
+  @Override
+  public void close() {
+    usbDevice.removeUsbDeviceListener(irpCompletionListener);
+    failPending(new RuntimeException("Transport was closed before the transfer completed."));
+  }
+
+  private CompletableFuture<Void> asyncSubmit(UsbControlIrp irp, byte[] report) {
+    irp.setData(report);
+
+    PendingIrp pending = new PendingIrp(transferPhases.phaseStarted());
+    pendingIrps.put(irp, pending);
+    try {
+      usbDevice.asyncSubmit(irp);
+    } catch (IllegalArgumentException | UsbDisconnectedException | UsbException e) {
+      pendingIrps.remove(irp);
+      metricsListener.transferFailed(CONTROL_ENDPOINT_ADDRESS, e);
+      pending.fail(new RuntimeException(e));
+    }
+    return pending.completion;
+  }
+
+  private void failPending(RuntimeException failure) {
+    for (UsbControlIrp irp : pendingIrps.keySet()) {
+      PendingIrp pending = pendingIrps.remove(irp);
+      if (pending != null) {
+        pending.fail(failure);
+      }
+    }
+  }
+
+  private static void submit(UsbDevice usbDevice, UsbControlIrp irp, byte[] report, UsbHidRelayMetricsListener metricsListener,
+      RelayTransferPhases transferPhases) {
+    irp.setData(report);
+
+    long startedAtNanos = transferPhases.phaseStarted();
+    try {
+      usbDevice.syncSubmit(irp);
+    } catch (IllegalArgumentException | UsbDisconnectedException | UsbException e) {
+      metricsListener.transferFailed(CONTROL_ENDPOINT_ADDRESS, e);
+      throw new RuntimeException(e);
+    } finally {
+      transferPhases.dataSubmitted(startedAtNanos);
+    }
+
+    if (irp.getActualLength() != report.length) {
+      metricsListener.shortTransfer(CONTROL_ENDPOINT_ADDRESS, report.length, irp.getActualLength());
+      throw new RuntimeException("Failed to read or write feature report. Expected " + report.length + " bytes to be transferred. Instead "
+          + irp.getActualLength() + " were transferred.");
+    }
+    metricsListener.transferCompleted(CONTROL_ENDPOINT_ADDRESS, irp.getActualLength());
+  }
+
+  private class IrpCompletionListener implements UsbDeviceListener {
+    @Override
+    public void dataEventOccurred(UsbDeviceDataEvent event) {
+      PendingIrp pending = pendingIrps.remove(event.getUsbControlIrp());
+      if (pending == null) {
+        return;
+      }
+
+      UsbControlIrp irp = event.getUsbControlIrp();
+      if (irp.getActualLength() != irp.getLength()) {
+        metricsListener.shortTransfer(CONTROL_ENDPOINT_ADDRESS, irp.getLength(), irp.getActualLength());
+        pending.fail(new RuntimeException("Failed to read or write feature report. Expected " + irp.getLength()
+            + " bytes to be transferred. Instead " + irp.getActualLength() + " were transferred."));
+      } else {
+        metricsListener.transferCompleted(CONTROL_ENDPOINT_ADDRESS, irp.getActualLength());
+        pending.succeed();
+      }
+    }
+
+    @Override
+    public void errorEventOccurred(UsbDeviceErrorEvent event) {
+      PendingIrp pending = pendingIrps.remove(event.getUsbControlIrp());
+      if (pending != null) {
+        metricsListener.transferFailed(CONTROL_ENDPOINT_ADDRESS, event.getUsbException());
+        pending.fail(new RuntimeException(event.getUsbException()));
+      }
+    }
+
+    @Override
+    public void usbDeviceDetached(UsbDeviceEvent event) {
+      failPending(new UsbHidRelayDisconnectedException("Relay was unplugged before the transfer completed."));
+    }
+  }
+
+  /**
+   * The completion of a submitted transfer and when it was submitted.
+   */
+  private class PendingIrp {
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final long startedAtNanos;
+
+    PendingIrp(long startedAtNanos) {
+      this.startedAtNanos = startedAtNanos;
+    }
+
+    void succeed() {
+      transferPhases.dataSubmitted(startedAtNanos);
+      completion.complete(null);
+    }
+
+    void fail(RuntimeException failure) {
+      transferPhases.dataSubmitted(startedAtNanos);
+      completion.completeExceptionally(failure);
+    }
+  }
+}
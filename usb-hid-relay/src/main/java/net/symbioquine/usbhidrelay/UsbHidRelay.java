@@ -0,0 +1,1110 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+import javax.usb.UsbInterface;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.experimental.PackagePrivate;
+
+/**
+ * Controls USB HID relays.
+ *
+ * <p>
+ * Depending on the {@link UsbHidRelayPipeMode}, a relay may hold USB pipes open between commands.
+ * Such relays should be closed once they are no longer needed.
+ *
+ * <p>
+ * Relays may be shared between threads. Commands are sent to the device one at a time and changes
+ * to a subset of the switches are applied atomically with respect to each other.
+ *
+ * <p>
+ * Every command is also available asynchronously. Asynchronous commands are queued and sent in the
+ * order they were submitted without holding a thread while their transfers are in progress. Their
+ * futures fail with a {@link java.util.concurrent.RejectedExecutionException} if too many are
+ * pending, see {@link UsbHidRelayOptions#maxPendingAsyncCommands()}. Adjacent queued changes to the
+ * switch states are merged into a single write, and every merged command completes once that write
+ * has been sent. Blocking changes can be queued in the same way, see
+ * {@link UsbHidRelayOptions#coalesceWrites()}.
+ *
+ * <p>
+ * Relays of every {@link RelayProtocol} are controlled through the same API. Relays created without
+ * a protocol talk {@link RelayProtocol#SAINSMART}, while relays acquired through discovery talk the
+ * protocol of their device.
+ *
+ * <p>
+ * Every command is recorded as a {@code net.symbioquine.usbhidrelay.RelayCommand} JDK Flight
+ * Recorder event while a recording has the event enabled. The event holds the masks before and
+ * after the command, how long it waited for the device and how long its transfers spent opening
+ * pipes, submitting data and closing pipes. Commands cost a single check while it is not enabled.
+ *
+ * <p>
+ * Relays created with a {@link RelayMaskTransport} send changes to a subset of the switches as
+ * they are, rather than reading the switch states and writing the whole mask, so they never undo
+ * changes made to the other switches by others sharing the relay.
+ */
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelay implements AutoCloseable {
+
+  @PackagePrivate
+  static final int NO_MASK = -1;
+
+  private static final IntConsumer NO_JOURNAL = mask -> {
+  };
+
+  RelayTransport transport;
+  Optional<SwitchStateCache> switchStateCache;
+  RelayCommandQueue commandQueue;
+  boolean coalesceWrites;
+  Optional<RelayRateLimiter> rateLimiter;
+  RelayCommandPolicy commandPolicy;
+  boolean verifyWrites;
+  AtomicInteger lastWrittenMask = new AtomicInteger(NO_MASK);
+  AtomicInteger confirmedMask = new AtomicInteger(NO_MASK);
+  RelayCodec codec;
+  boolean appliesMasks;
+  RelayCodec.Transfers readTransfers = new CommandTransfers(UsbHidRelayCommandType.READ);
+  RelayCodec.Transfers writeTransfers = new CommandTransfers(UsbHidRelayCommandType.WRITE);
+  RelayCodec.Transfers resetTransfers = new CommandTransfers(UsbHidRelayCommandType.RESET);
+  Runnable readAttempt = this::transferRead;
+  Runnable writeAttempt = this::transferWrite;
+  Runnable resetAttempt = this::transferReset;
+  Supplier<CompletableFuture<Void>> readAsyncAttempt = this::transferReadAsync;
+  Supplier<CompletableFuture<Void>> writeAsyncAttempt = this::transferWriteAsync;
+  Supplier<CompletableFuture<Void>> resetAsyncAttempt = this::transferResetAsync;
+  @NonFinal
+  volatile IntConsumer journalRecorder;
+  RelayCommandTracer tracer;
+  @Getter
+  RelayProtocol protocol;
+  @Getter
+  UsbHidRelaySize relaySize;
+  @NonFinal
+  int verifiedBits;
+  @NonFinal
+  int verifiedMask;
+
+  private UsbHidRelay(@NonNull RelayTransport transport, @NonNull RelayProtocol protocol, @NonNull UsbHidRelaySize relaySize,
+      @NonNull UsbHidRelayOptions options, UsbHidRelayDeviceId deviceId) {
+    this.codec = transport instanceof RelayMaskTransport ? new MaskRelayCodec((RelayMaskTransport) transport, relaySize)
+        : protocol.createCodec(transport, relaySize);
+    this.appliesMasks = codec instanceof MaskApplyingRelayCodec;
+    this.transport = transport;
+    this.tracer = RelayCommandTracer.create(transport, protocol, deviceId);
+    this.switchStateCache = Optional.ofNullable(options.switchStateCacheMaxAge()).map(SwitchStateCache::new);
+    this.commandQueue = new RelayCommandQueue(options.maxPendingAsyncCommands(), options.asyncCompletionExecutor(), this::applyMaskUpdate,
+        tracer);
+    this.coalesceWrites = options.coalesceWrites();
+    this.rateLimiter = options.rateLimit().isEnabled()
+        ? Optional.of(new RelayRateLimiter(options.rateLimit(), relaySize.asInt(),
+            (setBits, clearBits) -> commandQueue.submitMaskUpdate(setBits, clearBits, false), this::confirmedMask,
+            options.asyncCompletionExecutor(), options.metricsListener()))
+        : Optional.empty();
+    this.commandPolicy = new RelayCommandPolicy(transport, options);
+    this.verifyWrites = options.verifyWrites();
+    this.protocol = protocol;
+    this.relaySize = relaySize;
+    this.journalRecorder = options.journal() == null || deviceId == null ? NO_JOURNAL : options.journal().recorder(deviceId);
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance wrapping the specified {@link UsbInterface} with the
+   *         given size.
+   */
+  public static UsbHidRelay create(@NonNull UsbInterface usbInterface, @NonNull UsbHidRelaySize relaySize) {
+    return create(usbInterface, relaySize, UsbHidRelayOptions.defaults());
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance wrapping the specified {@link UsbInterface} with the
+   *         given size and options.
+   */
+  public static UsbHidRelay create(@NonNull UsbInterface usbInterface, @NonNull UsbHidRelaySize relaySize,
+      @NonNull UsbHidRelayOptions options) {
+    return create(usbInterface, RelayProtocol.SAINSMART, relaySize, options);
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance wrapping the specified {@link UsbInterface} of a relay
+   *         talking the given protocol with the given size and options.
+   * @throws IllegalArgumentException if no relay talking the protocol is that large.
+   */
+  public static UsbHidRelay create(@NonNull UsbInterface usbInterface, @NonNull RelayProtocol protocol, @NonNull UsbHidRelaySize relaySize,
+      @NonNull UsbHidRelayOptions options) {
+    return create(createUsbTransport(usbInterface, protocol, options), protocol, relaySize, options);
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance with the given size which talks to a relay through the
+   *         specified {@link RelayTransport}.
+   * @throws IllegalArgumentException if the transport is neither a {@link FrameTransport} nor a
+   *         {@link RelayMaskTransport}.
+   */
+  public static UsbHidRelay create(@NonNull RelayTransport transport, @NonNull UsbHidRelaySize relaySize) {
+    return create(transport, relaySize, UsbHidRelayOptions.defaults());
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance with the given size and options which talks to a relay
+   *         through the specified {@link RelayTransport}. The pipe mode option does not apply to
+   *         such relays.
+   * @throws IllegalArgumentException if the transport is neither a {@link FrameTransport} nor a
+   *         {@link RelayMaskTransport}.
+   */
+  public static UsbHidRelay create(@NonNull RelayTransport transport, @NonNull UsbHidRelaySize relaySize,
+      @NonNull UsbHidRelayOptions options) {
+    return create(transport, RelayProtocol.SAINSMART, relaySize, options);
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance with the given size which talks to a relay through the
+   *         specified {@link RelayTransport} in the given protocol.
+   * @throws IllegalArgumentException if no relay talking the protocol is that large, or the
+   *         transport can carry neither the transfers of the protocol nor whole commands.
+   */
+  public static UsbHidRelay create(@NonNull RelayTransport transport, @NonNull RelayProtocol protocol, @NonNull UsbHidRelaySize relaySize) {
+    return create(transport, protocol, relaySize, UsbHidRelayOptions.defaults());
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance with the given size and options which talks to a relay
+   *         through the specified {@link RelayTransport} in the given protocol. The pipe mode
+   *         option does not apply to such relays.
+   * @throws IllegalArgumentException if no relay talking the protocol is that large, or the
+   *         transport can carry neither the transfers of the protocol nor whole commands.
+   */
+  public static UsbHidRelay create(@NonNull RelayTransport transport, @NonNull RelayProtocol protocol, @NonNull UsbHidRelaySize relaySize,
+      @NonNull UsbHidRelayOptions options) {
+    return new UsbHidRelay(transport, protocol, relaySize, options, null);
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} for the device with the given id which, if the options have a
+   *         journal, records every mask it writes and has been restored to the last mask recorded
+   *         for the device.
+   */
+  static UsbHidRelay create(RelayTransport transport, RelayProtocol protocol, UsbHidRelaySize relaySize, UsbHidRelayOptions options,
+      UsbHidRelayDeviceId deviceId) {
+    UsbHidRelay relay = new UsbHidRelay(transport, protocol, relaySize, options, deviceId);
+
+    UsbHidRelayJournal journal = options.journal();
+    if (journal == null) {
+      return relay;
+    }
+
+    OptionalInt desiredMask = journal.desiredMask(deviceId);
+    if (desiredMask.isPresent()) {
+      try {
+        relay.restoreMask(desiredMask.getAsInt() & relay.allSwitchesMask());
+      } catch (RuntimeException e) {
+        relay.close();
+        throw e;
+      }
+    }
+    return relay;
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance with the given size wrapping the first USB HID relay
+   *         device with at least that many switches.
+   */
+  public static UsbHidRelay findAndAcquireFirstRelay(@NonNull UsbHidRelaySize relaySize) {
+    return findAndAcquireFirstRelay(relaySize, UsbHidRelayOptions.defaults());
+  }
+
+  /**
+   * @return a {@link UsbHidRelay} instance with the given size and options wrapping the first USB
+   *         HID relay device with at least that many switches.
+   */
+  public static UsbHidRelay findAndAcquireFirstRelay(@NonNull UsbHidRelaySize relaySize, @NonNull UsbHidRelayOptions options) {
+    Optional<DiscoveredUsbHidRelay> relay = UsbHidRelayDiscovery.findFirstRelay(options.discoveryCache(), relaySize);
+
+    if (!relay.isPresent()) {
+      throw new RuntimeException("Could not get relay usb device with at least " + relaySize.asInt() + " switches.");
+    }
+
+    return relay.get().acquire(relaySize, options);
+  }
+
+  /**
+   * @return a list of the states of all the switches on the relay. The states are in order of the
+   *         switch id. The list will be same length as the number of relay switches.
+   */
+  public List<Boolean> getSwitchStates() {
+    int mask = readMask();
+
+    List<Boolean> switchStates = new ArrayList<>(relaySize.asInt());
+
+    IntStream.range(0, relaySize.asInt()).forEach(idx -> switchStates.add((mask & (1 << idx)) != 0));
+
+    return switchStates;
+  }
+
+  /**
+   * Get the state of a switch on the relay by zero-indexed id.
+   * 
+   * @param relayId the zero-indexed switch id to get the state of.
+   * @return the state of the switch where true indicates the switch is on (circuit closed) and
+   *         false indicates the switch is off (circuit open).
+   */
+  public boolean getSwitchState(int relayId) {
+    if (relayId < 0 || relayId >= relaySize.asInt()) {
+      throw new IndexOutOfBoundsException("Switch id must be in the range 0 to " + (relaySize.asInt() - 1) + " instead got: " + relayId);
+    }
+    return (readMask() & (1 << relayId)) != 0;
+  }
+
+  /**
+   * Read the states of all the switches on the relay as a mask.
+   *
+   * @return a mask of the switch states where bit n is set if switch n is on (circuit closed) and
+   *         clear if switch n is off (circuit open). Bits at or above the relay size are always
+   *         clear.
+   */
+  public int readMask() {
+    commandQueue.lock();
+    try {
+      return readSwitchMask();
+    } finally {
+      commandQueue.unlock();
+    }
+  }
+
+  /**
+   * Set the states of all the relay switches from a mask.
+   *
+   * @param mask a mask of the desired switch states where bit n is set if switch n should be on
+   *        (circuit closed) and clear if switch n should be off (circuit open).
+   * @throws IllegalArgumentException if any bit at or above the relay size is set.
+   */
+  public void writeMask(int mask) {
+    if (coalesceWrites || rateLimiter.isPresent()) {
+      RelayCommandQueue.await(writeMaskAsync(mask, true));
+      return;
+    }
+
+    validateMask(mask);
+
+    commandQueue.lock();
+    try {
+      writeSwitchMask(mask);
+    } finally {
+      commandQueue.unlock();
+    }
+  }
+
+  /**
+   * Turn on and off subsets of the relay switches in a single write. Switches in neither mask will
+   * not be changed. If a switch is in both masks it will be turned on.
+   *
+   * @param setBits a mask of the switches to be turned on (circuit closed) where bit n is set if
+   *        switch n should be turned on.
+   * @param clearBits a mask of the switches to be turned off (circuit open) where bit n is set if
+   *        switch n should be turned off.
+   * @throws IllegalArgumentException if any bit at or above the relay size is set in either mask.
+   */
+  public void applyMask(int setBits, int clearBits) {
+    if (coalesceWrites || rateLimiter.isPresent()) {
+      RelayCommandQueue.await(applyMaskAsync(setBits, clearBits, true));
+      return;
+    }
+
+    validateMask(setBits);
+    validateMask(clearBits);
+
+    commandQueue.lock();
+    try {
+      if (appliesMasks) {
+        applySwitchMask(setBits, clearBits);
+      } else {
+        writeSwitchMask((currentMask() & ~clearBits) | setBits);
+      }
+    } finally {
+      commandQueue.unlock();
+    }
+  }
+
+  /**
+   * Reset the HID interface. Note this does not necessarily change the states of any switch on the
+   * relay.
+   */
+  public void reset() {
+    commandQueue.lock();
+    try {
+      switchStateCache.ifPresent(SwitchStateCache::invalidate);
+
+      int mask = lastWrittenMask.get();
+      RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.RESET, mask, commandQueue.takeWaitNanos());
+      try {
+        commandPolicy.execute(UsbHidRelayCommandType.RESET, resetAttempt);
+      } catch (RuntimeException e) {
+        trace.end(mask, e);
+        throw e;
+      }
+      trace.end(mask, null);
+    } finally {
+      commandQueue.unlock();
+    }
+  }
+
+  /**
+   * Read the states of all the switches from the device, refreshing the switch states remembered
+   * when {@link UsbHidRelayOptions#switchStateCacheMaxAge()} is set. Useful to pick up changes made
+   * to the relay by other means before the remembered states become stale.
+   */
+  public void reconcileSwitchStates() {
+    readMask();
+  }
+
+  /**
+   * Set the states of all the relay switches.
+   * 
+   * @param switchStates a list of the desired switch states in the order of the switch id.
+   * @throws IllegalArgumentException if the number of switch states does not match the number of
+   *         switches on the relay.
+   */
+  public void setSwitchStates(List<Boolean> switchStates) {
+    writeMask(toMask(switchStates));
+  }
+
+  /**
+   * Set the state of a relay switch by id. If the switch is already in the specified state it will
+   * not be changed.
+   *
+   * @param switchId the zero-indexed id of the switch to set the state of.
+   * @param state the desired state of the switch where true indicates the switch should be on
+   *        (circuit closed) and false indicates the switch should be off (circuit open).
+   * @throws IllegalArgumentException if the switch id is less than zero or greater than the size of
+   *         the relay minus one.
+   */
+  public void setSwitchState(int switchId, boolean state) {
+    int bit = toBit(switchId);
+
+    applyMask(state ? bit : 0, state ? 0 : bit);
+  }
+
+  /**
+   * Set the state of a single switch to on (circuit closed). If the switch is already on it will
+   * not be changed.
+   * 
+   * @param switchId the zero-indexed id of the switch to be turned on.
+   * @throws IllegalArgumentException if the switch id is less than zero or greater than the size of
+   *         the relay minus one.
+   */
+  public void setSwitchOn(int switchId) {
+    setSwitchState(switchId, true);
+  }
+
+  /**
+   * Set the state of a single switch to off (circuit open). If the switch is already on it will not
+   * be changed.
+   * 
+   * @param switchId the zero-indexed id of the switch to be turned off.
+   * @throws IllegalArgumentException if the switch id is less than zero or greater than the size of
+   *         the relay minus one.
+   */
+  public void setSwitchOff(int switchId) {
+    setSwitchState(switchId, false);
+  }
+
+  /**
+   * Set the states of all switches on the relay to on (circuit closed). Any switches which are
+   * already on will not be changed.
+   */
+  public void setAllSwitchesOn() {
+    writeMask(allSwitchesMask());
+  }
+
+  /**
+   * Set the states of all switches on the relay to off (circuit open). Any switches which are
+   * already off will not be changed.
+   */
+  public void setAllSwitchesOff() {
+    writeMask(0);
+  }
+
+  /**
+   * Asynchronously read the states of all the switches on the relay as a mask.
+   *
+   * @return a future with a mask of the switch states where bit n is set if switch n is on.
+   * @see #readMask()
+   */
+  public CompletableFuture<Integer> readMaskAsync() {
+    return readMaskAsync(false);
+  }
+
+  /**
+   * Asynchronously set the states of all the relay switches from a mask.
+   *
+   * @param mask a mask of the desired switch states where bit n is set if switch n should be on.
+   * @return a future which completes once the mask has been written.
+   * @throws IllegalArgumentException if any bit at or above the relay size is set.
+   * @see #writeMask(int)
+   */
+  public CompletableFuture<Void> writeMaskAsync(int mask) {
+    return writeMaskAsync(mask, false);
+  }
+
+  /**
+   * Asynchronously turn on and off subsets of the relay switches in a single write.
+   *
+   * @param setBits a mask of the switches to be turned on.
+   * @param clearBits a mask of the switches to be turned off.
+   * @return a future which completes once the new switch states have been written.
+   * @throws IllegalArgumentException if any bit at or above the relay size is set in either mask.
+   * @see #applyMask(int, int)
+   */
+  public CompletableFuture<Void> applyMaskAsync(int setBits, int clearBits) {
+    return applyMaskAsync(setBits, clearBits, false);
+  }
+
+  /**
+   * Asynchronously set the states of all the relay switches.
+   *
+   * @param switchStates a list of the desired switch states in the order of the switch id.
+   * @return a future which completes once the switch states have been written.
+   * @throws IllegalArgumentException if the number of switch states does not match the number of
+   *         switches on the relay.
+   * @see #setSwitchStates(List)
+   */
+  public CompletableFuture<Void> setSwitchStatesAsync(List<Boolean> switchStates) {
+    return writeMaskAsync(toMask(switchStates), false);
+  }
+
+  /**
+   * Asynchronously set the state of a relay switch by id.
+   *
+   * @param switchId the zero-indexed id of the switch to set the state of.
+   * @param state the desired state of the switch.
+   * @return a future which completes once the switch state has been written.
+   * @throws IllegalArgumentException if the switch id is less than zero or greater than the size of
+   *         the relay minus one.
+   * @see #setSwitchState(int, boolean)
+   */
+  public CompletableFuture<Void> setSwitchStateAsync(int switchId, boolean state) {
+    int bit = toBit(switchId);
+
+    return applyMaskAsync(state ? bit : 0, state ? 0 : bit, false);
+  }
+
+  /**
+   * Asynchronously reset the HID interface.
+   *
+   * @return a future which completes once the reset command has been sent.
+   * @see #reset()
+   */
+  public CompletableFuture<Void> resetAsync() {
+    return resetAsync(false);
+  }
+
+  /**
+   * Release any USB pipes held open by this relay and close its {@link RelayTransport}. Relays using
+   * {@link UsbHidRelayPipeMode#PER_COMMAND} hold no pipes open between commands so closing them has
+   * no effect. A closed relay which held pipes open cannot be used to send further commands.
+   * Asynchronous commands which have not yet started fail.
+   */
+  @Override
+  public void close() {
+    rateLimiter.ifPresent(RelayRateLimiter::close);
+    commandQueue.close();
+
+    transport.close();
+  }
+
+  /**
+   * @return the last mask written, or attempted to be written, to the relay, or {@link #NO_MASK} if
+   *         none has been.
+   */
+  int lastWrittenMask() {
+    return lastWrittenMask.get();
+  }
+
+  /**
+   * @return the mask the switches are known to be in, or {@link #NO_MASK} if it is not known. When
+   *         switch states are remembered this is the remembered mask while it is fresh. Otherwise it
+   *         is the mask put in place by the last write or found by the last read, unless a write has
+   *         failed since.
+   */
+  int confirmedMask() {
+    if (switchStateCache.isPresent()) {
+      int mask = switchStateCache.get().freshMask();
+      return mask == SwitchStateCache.NO_FRESH_MASK ? NO_MASK : mask;
+    }
+    return confirmedMask.get();
+  }
+
+  /**
+   * Record the masks written from now on with the given journal recorder, e.g. one for the new id of
+   * a relay which was plugged back in at another port.
+   */
+  void journalRecorder(IntConsumer journalRecorder) {
+    this.journalRecorder = journalRecorder;
+  }
+
+  /**
+   * Forget the switch states known from earlier writes and reads, e.g. because the device has been
+   * unplugged and may come back with its switches in other states.
+   */
+  void forgetSwitchStates() {
+    confirmedMask.set(NO_MASK);
+    switchStateCache.ifPresent(SwitchStateCache::invalidate);
+  }
+
+  /**
+   * Put the relay back into a mask it is meant to be in, e.g. after a restart or after being plugged
+   * back in. Restores bypass the rate limit, so they are neither held back nor dropped for matching
+   * a mask written before the relay lost its states.
+   */
+  void restoreMask(int mask) {
+    validateMask(mask);
+
+    commandQueue.lock();
+    try {
+      writeSwitchMask(mask);
+    } finally {
+      commandQueue.unlock();
+    }
+  }
+
+  /**
+   * Asynchronously put the relay back into a mask it is meant to be in.
+   *
+   * @see #restoreMask(int)
+   */
+  CompletableFuture<Void> restoreMaskAsync(int mask) {
+    validateMask(mask);
+
+    return commandQueue.submitMaskUpdate(mask, allSwitchesMask() & ~mask, false);
+  }
+
+  /**
+   * Turn on and off subsets of the relay switches relative to the last mask this instance wrote or
+   * read successfully, only reading the switch states from the device if there is none, e.g.
+   * because nothing has been written yet or the last write failed. With a rate limit the changes go
+   * through the limiter like any other, so they may be held back and the switch states may be read.
+   */
+  void applyMaskToConfirmedMask(int setBits, int clearBits) {
+    validateMask(setBits);
+    validateMask(clearBits);
+
+    if (rateLimiter.isPresent()) {
+      RelayCommandQueue.await(rateLimiter.get().submit(setBits, clearBits));
+      return;
+    }
+
+    commandQueue.lock();
+    try {
+      if (appliesMasks) {
+        applySwitchMask(setBits, clearBits);
+        return;
+      }
+
+      // A failed write may or may not have taken effect, so the mask it attempted is not built on
+      int mask = confirmedMask.get();
+      if (mask == NO_MASK) {
+        mask = currentMask();
+      }
+      writeSwitchMask((mask & ~clearBits) | setBits);
+    } finally {
+      commandQueue.unlock();
+    }
+  }
+
+  /**
+   * Turn on, turn off and invert subsets of the relay switches in a single write, provided the
+   * current states of the expected switches match the expected mask. The switch states are only
+   * read from the device when the result depends on them.
+   *
+   * <p>
+   * With a rate limit the toggled switches are compared to the current states straight away, and
+   * the resulting changes go through the limiter, so they may be held back and merged with other
+   * changes before they are written. Expected states are not supported then, as the limiter could
+   * hold back or drop the changes after the states were compared.
+   *
+   * @return false if the switch states did not match, in which case nothing was written.
+   * @throws UnsupportedOperationException if switch states are expected on a rate limited relay.
+   */
+  boolean compareAndUpdateMask(int expectedBits, int expectedMask, int setBits, int clearBits, int toggleBits) {
+    validateMask(setBits);
+    validateMask(clearBits);
+    validateMask(toggleBits);
+
+    if (rateLimiter.isPresent()) {
+      return compareAndUpdateMaskRateLimited(expectedBits, setBits, clearBits, toggleBits);
+    }
+
+    commandQueue.lock();
+    try {
+      if (expectedBits == 0 && toggleBits == 0 && (setBits | clearBits) == allSwitchesMask()) {
+        writeSwitchMask(setBits);
+        return true;
+      }
+
+      int mask = currentMask();
+      if ((mask & expectedBits) != (expectedMask & expectedBits)) {
+        return false;
+      }
+      if (appliesMasks) {
+        applySwitchMask(setBits | (toggleBits & ~mask), clearBits | (toggleBits & mask));
+      } else {
+        writeSwitchMask(((mask & ~clearBits) | setBits) ^ toggleBits);
+      }
+      return true;
+    } finally {
+      commandQueue.unlock();
+    }
+  }
+
+  private boolean compareAndUpdateMaskRateLimited(int expectedBits, int setBits, int clearBits, int toggleBits) {
+    if (expectedBits != 0) {
+      throw new UnsupportedOperationException("Cannot expect switch states on a rate limited relay since the limiter may hold back or drop the changes.");
+    }
+
+    if (toggleBits != 0) {
+      commandQueue.lock();
+      try {
+        int mask = currentMask();
+        setBits |= toggleBits & ~mask;
+        clearBits |= toggleBits & mask;
+      } finally {
+        commandQueue.unlock();
+      }
+    }
+
+    // The limiter writes through the command queue, so it must not be waited on while holding it
+    RelayCommandQueue.await(rateLimiter.get().submit(setBits, clearBits));
+    return true;
+  }
+
+  CompletableFuture<Integer> readMaskAsync(boolean awaitCapacity) {
+    return commandQueue.submit(this::readSwitchMaskAsync, awaitCapacity);
+  }
+
+  CompletableFuture<Void> writeMaskAsync(int mask, boolean awaitCapacity) {
+    validateMask(mask);
+
+    if (rateLimiter.isPresent()) {
+      return rateLimiter.get().submit(mask, allSwitchesMask() & ~mask);
+    }
+    return commandQueue.submitMaskUpdate(mask, allSwitchesMask() & ~mask, awaitCapacity);
+  }
+
+  CompletableFuture<Void> applyMaskAsync(int setBits, int clearBits, boolean awaitCapacity) {
+    validateMask(setBits);
+    validateMask(clearBits);
+
+    if (rateLimiter.isPresent()) {
+      return rateLimiter.get().submit(setBits, clearBits);
+    }
+    return commandQueue.submitMaskUpdate(setBits, clearBits, awaitCapacity);
+  }
+
+  CompletableFuture<Void> resetAsync(boolean awaitCapacity) {
+    return commandQueue.submit(() -> {
+      switchStateCache.ifPresent(SwitchStateCache::invalidate);
+
+      int mask = lastWrittenMask.get();
+      RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.RESET, mask, commandQueue.takeWaitNanos());
+      return traced(commandPolicy.executeAsync(UsbHidRelayCommandType.RESET, resetAsyncAttempt), trace, result -> mask);
+    }, awaitCapacity);
+  }
+
+  /**
+   * Apply a, possibly merged, queued mask update. Updates which cover every switch, or which the
+   * codec can apply by itself, are written without reading the current switch states.
+   */
+  private CompletableFuture<Void> applyMaskUpdate(int setBits, int clearBits) {
+    if ((setBits | clearBits) == allSwitchesMask()) {
+      return writeSwitchMaskAsync(setBits);
+    }
+    if (appliesMasks) {
+      return applySwitchMaskAsync(setBits, clearBits);
+    }
+    return currentMaskAsync().thenCompose(mask -> writeSwitchMaskAsync((mask & ~clearBits) | setBits));
+  }
+
+  private void validateMask(int mask) {
+    if ((mask & ~allSwitchesMask()) != 0) {
+      throw new IllegalArgumentException(
+          "Mask must only have bits set for switches 0 to " + (relaySize.asInt() - 1) + " instead got: 0x" + Integer.toHexString(mask));
+    }
+  }
+
+  private int allSwitchesMask() {
+    return (1 << relaySize.asInt()) - 1;
+  }
+
+  private int toBit(int switchId) {
+    if (switchId < 0 || switchId >= relaySize.asInt()) {
+      throw new IllegalArgumentException("Switch id must be in the range 0 to " + (relaySize.asInt() - 1) + " instead got: " + switchId);
+    }
+    return 1 << switchId;
+  }
+
+  private int toMask(List<Boolean> switchStates) {
+    if (switchStates.size() != relaySize.asInt()) {
+      throw new IllegalArgumentException("Number of switch states must match relay size.");
+    }
+
+    int mask = 0;
+    for (int switchId = 0; switchId < relaySize.asInt(); switchId++) {
+      if (switchStates.get(switchId)) {
+        mask |= (1 << switchId);
+      }
+    }
+    return mask;
+  }
+
+  private int freshCachedMask() {
+    if (switchStateCache.isPresent()) {
+      return switchStateCache.get().freshMask();
+    }
+    return SwitchStateCache.NO_FRESH_MASK;
+  }
+
+  /**
+   * Record the mask a completed read found or a completed write put in place.
+   */
+  private void confirmMask(int mask) {
+    confirmedMask.set(mask);
+    if (switchStateCache.isPresent()) {
+      switchStateCache.get().update(mask);
+    }
+  }
+
+  /**
+   * @return a mask of the switch states where bit n is set if switch n is on. The remembered mask
+   *         is used if it is fresh, otherwise the mask is read from the device. Must only be called
+   *         while holding the device.
+   */
+  private int currentMask() {
+    int mask = freshCachedMask();
+    if (mask != SwitchStateCache.NO_FRESH_MASK) {
+      return mask;
+    }
+    return readSwitchMask();
+  }
+
+  private CompletableFuture<Integer> currentMaskAsync() {
+    int mask = freshCachedMask();
+    if (mask != SwitchStateCache.NO_FRESH_MASK) {
+      return CompletableFuture.completedFuture(mask);
+    }
+    return readSwitchMaskAsync();
+  }
+
+  private void writeSwitchMask(int mask) {
+    int maskBefore = lastWrittenMask.getAndSet(mask);
+    journalRecorder.accept(mask);
+
+    codec.encodeWrite(mask);
+    expectSwitches(allSwitchesMask(), mask);
+
+    RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.WRITE, maskBefore, commandQueue.takeWaitNanos());
+    try {
+      commandPolicy.execute(UsbHidRelayCommandType.WRITE, writeAttempt);
+    } catch (RuntimeException e) {
+      writeFailed();
+      trace.end(mask, e);
+      throw e;
+    }
+    trace.end(mask, null);
+
+    confirmMask(mask);
+  }
+
+  private CompletableFuture<Void> writeSwitchMaskAsync(int mask) {
+    int maskBefore = lastWrittenMask.getAndSet(mask);
+    journalRecorder.accept(mask);
+
+    codec.encodeWrite(mask);
+    expectSwitches(allSwitchesMask(), mask);
+
+    RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.WRITE, maskBefore, commandQueue.takeWaitNanos());
+    return commandPolicy.executeAsync(UsbHidRelayCommandType.WRITE, writeAsyncAttempt).whenComplete((result, failure) -> {
+      trace.end(mask, failure);
+      if (failure != null) {
+        writeFailed();
+      } else {
+        confirmMask(mask);
+      }
+    });
+  }
+
+  /**
+   * Turn the switches of the first mask on and those of the second off, leaving the codec to change
+   * only those switches. The resulting mask is only known if the switch states were known
+   * beforehand, so nothing is journaled and the remembered states are forgotten otherwise. Must only
+   * be used with a {@link MaskApplyingRelayCodec}.
+   */
+  private void applySwitchMask(int setBits, int clearBits) {
+    int mask = applied(confirmedMask(), setBits, clearBits);
+    int maskBefore = lastWrittenMask.getAndSet(mask);
+    if (mask != NO_MASK) {
+      journalRecorder.accept(mask);
+    }
+
+    ((MaskApplyingRelayCodec) codec).encodeApply(setBits, clearBits);
+    expectSwitches(setBits | clearBits, setBits);
+
+    RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.WRITE, maskBefore, commandQueue.takeWaitNanos());
+    try {
+      commandPolicy.execute(UsbHidRelayCommandType.WRITE, writeAttempt);
+    } catch (RuntimeException e) {
+      writeFailed();
+      trace.end(mask, e);
+      throw e;
+    }
+    trace.end(mask, null);
+
+    confirmAppliedMask(mask);
+  }
+
+  private CompletableFuture<Void> applySwitchMaskAsync(int setBits, int clearBits) {
+    int mask = applied(confirmedMask(), setBits, clearBits);
+    int maskBefore = lastWrittenMask.getAndSet(mask);
+    if (mask != NO_MASK) {
+      journalRecorder.accept(mask);
+    }
+
+    ((MaskApplyingRelayCodec) codec).encodeApply(setBits, clearBits);
+    expectSwitches(setBits | clearBits, setBits);
+
+    RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.WRITE, maskBefore, commandQueue.takeWaitNanos());
+    return commandPolicy.executeAsync(UsbHidRelayCommandType.WRITE, writeAsyncAttempt).whenComplete((result, failure) -> {
+      trace.end(mask, failure);
+      if (failure != null) {
+        writeFailed();
+      } else {
+        confirmAppliedMask(mask);
+      }
+    });
+  }
+
+  /**
+   * @return the given mask with the switches of the first mask turned on and those of the second
+   *         turned off, or {@link #NO_MASK} if the given mask is not known.
+   */
+  private static int applied(int mask, int setBits, int clearBits) {
+    return mask == NO_MASK ? NO_MASK : (mask & ~clearBits) | setBits;
+  }
+
+  /**
+   * Record the mask a completed apply put in place, or forget the switch states if it is not known.
+   */
+  private void confirmAppliedMask(int mask) {
+    if (mask == NO_MASK) {
+      writeFailed();
+    } else {
+      confirmMask(mask);
+    }
+  }
+
+  /**
+   * Record which switches a verified write is expected to have left in which states.
+   */
+  private void expectSwitches(int bits, int mask) {
+    this.verifiedBits = bits;
+    this.verifiedMask = mask & bits;
+  }
+
+  /**
+   * Forget the switch states after a write failed, since it may or may not have taken effect.
+   */
+  private void writeFailed() {
+    confirmedMask.set(NO_MASK);
+    switchStateCache.ifPresent(SwitchStateCache::invalidate);
+  }
+
+  private int readSwitchMask() {
+    RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.READ, lastWrittenMask.get(), commandQueue.takeWaitNanos());
+    try {
+      commandPolicy.execute(UsbHidRelayCommandType.READ, readAttempt);
+    } catch (RuntimeException e) {
+      trace.end(NO_MASK, e);
+      throw e;
+    }
+
+    int mask = decodeResponse();
+    trace.end(mask, null);
+    return mask;
+  }
+
+  private CompletableFuture<Integer> readSwitchMaskAsync() {
+    RelayCommandTrace trace = tracer.begin(UsbHidRelayCommandType.READ, lastWrittenMask.get(), commandQueue.takeWaitNanos());
+    return traced(commandPolicy.executeAsync(UsbHidRelayCommandType.READ, readAsyncAttempt).thenApply(received -> decodeResponse()), trace,
+        mask -> mask);
+  }
+
+  /**
+   * End the trace of an asynchronous command once it completes, unless it is not being traced.
+   */
+  private static <T> CompletableFuture<T> traced(CompletableFuture<T> command, RelayCommandTrace trace, ToIntFunction<T> maskAfter) {
+    if (trace != RelayCommandTrace.NONE) {
+      command.whenComplete((result, failure) -> trace.end(failure == null ? maskAfter.applyAsInt(result) : NO_MASK, failure));
+    }
+    return command;
+  }
+
+  private int decodeResponse() {
+    int mask = codec.decodeRead();
+
+    confirmMask(mask);
+
+    return mask;
+  }
+
+  /**
+   * Write the encoded mask and, if writes are verified, read the switch states back.
+   */
+  private void transferWrite() {
+    codec.write(writeTransfers);
+
+    if (verifyWrites) {
+      codec.read(writeTransfers);
+
+      verifyWrite();
+    }
+  }
+
+  private CompletableFuture<Void> transferWriteAsync() {
+    CompletableFuture<Void> written = codec.writeAsync(writeTransfers);
+    if (!verifyWrites) {
+      return written;
+    }
+
+    return written.thenCompose(sent -> codec.readAsync(writeTransfers)).thenRun(this::verifyWrite);
+  }
+
+  private void verifyWrite() {
+    int expectedMask = verifiedMask;
+    int actualMask = codec.decodeRead() & verifiedBits;
+
+    if (actualMask != expectedMask) {
+      commandPolicy.writeVerificationFailed(expectedMask, actualMask);
+      throw new UsbHidRelayVerificationException(
+          "Expected the relay to report 0x" + Integer.toHexString(expectedMask) + " after writing it. Instead got: 0x" + Integer.toHexString(actualMask));
+    }
+  }
+
+  private void transferRead() {
+    codec.read(readTransfers);
+  }
+
+  private CompletableFuture<Void> transferReadAsync() {
+    return codec.readAsync(readTransfers);
+  }
+
+  private void transferReset() {
+    codec.reset(resetTransfers);
+  }
+
+  private CompletableFuture<Void> transferResetAsync() {
+    return codec.resetAsync(resetTransfers);
+  }
+
+  static RelayTransport createUsbTransport(UsbInterface usbInterface, RelayProtocol protocol, UsbHidRelayOptions options) {
+    if (protocol == RelayProtocol.USB_RELAY) {
+      return new UsbFeatureReportTransport(usbInterface, options.metricsListener());
+    }
+
+    UncheckedUsbInterface uncheckedUsbInterface = new UncheckedUsbInterface(usbInterface, options.metricsListener());
+
+    switch (options.pipeMode()) {
+      case PERSISTENT:
+        return new UsbRelayTransport(new PersistentUsbPipes(uncheckedUsbInterface));
+      case PER_COMMAND:
+      default:
+        return new UsbRelayTransport(new PerCommandUsbPipes(uncheckedUsbInterface));
+    }
+  }
+
+  /**
+   * The transfers of one type of command on the transport of this relay. Transfers are submitted
+   * asynchronously when they may need to be aborted because they time out. The codec was picked
+   * for the transport, so it only performs the transfers the transport supports.
+   */
+  private class CommandTransfers implements RelayCodec.Transfers {
+    private final UsbHidRelayCommandType commandType;
+
+    CommandTransfers(UsbHidRelayCommandType commandType) {
+      this.commandType = commandType;
+    }
+
+    @Override
+    public void send(byte[] frame) {
+      if (commandPolicy.hasTransferTimeout()) {
+        RelayCommandQueue.await(sendAsync(frame));
+      } else {
+        ((FrameTransport) transport).send(frame);
+      }
+    }
+
+    @Override
+    public void receive(byte[] frame) {
+      if (commandPolicy.hasTransferTimeout()) {
+        RelayCommandQueue.await(receiveAsync(frame));
+      } else {
+        ((FrameTransport) transport).receive(frame);
+      }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(byte[] frame) {
+      return commandPolicy.withTimeout(commandType, ((FrameTransport) transport).sendAsync(frame));
+    }
+
+    @Override
+    public CompletableFuture<Void> receiveAsync(byte[] frame) {
+      return commandPolicy.withTimeout(commandType, ((FrameTransport) transport).receiveAsync(frame));
+    }
+
+    @Override
+    public void setFeatureReport(byte[] report) {
+      if (commandPolicy.hasTransferTimeout()) {
+        RelayCommandQueue.await(setFeatureReportAsync(report));
+      } else {
+        ((FeatureReportTransport) transport).setFeatureReport(report);
+      }
+    }
+
+    @Override
+    public void getFeatureReport(byte[] report) {
+      if (commandPolicy.hasTransferTimeout()) {
+        RelayCommandQueue.await(getFeatureReportAsync(report));
+      } else {
+        ((FeatureReportTransport) transport).getFeatureReport(report);
+      }
+    }
+
+    @Override
+    public CompletableFuture<Void> setFeatureReportAsync(byte[] report) {
+      return commandPolicy.withTimeout(commandType, ((FeatureReportTransport) transport).setFeatureReportAsync(report));
+    }
+
+    @Override
+    public CompletableFuture<Void> getFeatureReportAsync(byte[] report) {
+      return commandPolicy.withTimeout(commandType, ((FeatureReportTransport) transport).getFeatureReportAsync(report));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> timed(CompletableFuture<T> transfer) {
+      return commandPolicy.withTimeout(commandType, transfer);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package net.symbioquine.usbhidrelay;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Maps switch masks, where bit n is set if switch n is on, to and from the bitmaps exchanged with
+ * a relay of a given size.
+ *
+ * <p>
+ * Relays are written with bit n of the bitmap controlling switch n, but report their states with
+ * the bits of the two halves of the board interleaved. Both directions are translated a byte at a
+ * time through tables computed once per size, so a full mask is mapped with two lookups and no
+ * branches.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+final class UsbHidRelayBitMapping {
+  /**
+   * The bit in the reported relay bitmap for each switch id.
+   */
+  private static final int[] READ_BITMAP_BITS = {128, 256, 64, 512, 32, 1024, 16, 2048, 8, 4096, 4, 8192, 2, 16384, 1, 32768};
+
+  private static final int BYTE_VALUES = 256;
+
+  private static final UsbHidRelayBitMapping[] MAPPINGS_BY_SIZE_EXPONENT = {
+      new UsbHidRelayBitMapping(1),
+      new UsbHidRelayBitMapping(2),
+      new UsbHidRelayBitMapping(4),
+      new UsbHidRelayBitMapping(8),
+      new UsbHidRelayBitMapping(16)};
+
+  int switchesMask;
+  int[] readBitmapLowByteToMask = new int[BYTE_VALUES];
+  int[] readBitmapHighByteToMask = new int[BYTE_VALUES];
+  int[] maskLowByteToReadBitmap = new int[BYTE_VALUES];
+  int[] maskHighByteToReadBitmap = new int[BYTE_VALUES];
+
+  private UsbHidRelayBitMapping(int size) {
+    this.switchesMask = (1 << size) - 1;
+
+    for (int byteValue = 0; byteValue < BYTE_VALUES; byteValue++) {
+      readBitmapLowByteToMask[byteValue] = mapReadBitmap(byteValue) & switchesMask;
+      readBitmapHighByteToMask[byteValue] = mapReadBitmap(byteValue << 8) & switchesMask;
+      maskLowByteToReadBitmap[byteValue] = mapMask(byteValue & switchesMask);
+      maskHighByteToReadBitmap[byteValue] = mapMask((byteValue << 8) & switchesMask);
+    }
+  }
+
+  /**
+   * @return the mapping for relays of the given size.
+   */
+  static UsbHidRelayBitMapping forSize(UsbHidRelaySize relaySize) {
+    return MAPPINGS_BY_SIZE_EXPONENT[Integer.numberOfTrailingZeros(relaySize.asInt())];
+  }
+
+  /**
+   * @return the bitmap to write to the relay to put its switches in the states of the given mask.
+   */
+  int toWriteBitmap(int mask) {
+    return mask & switchesMask;
+  }
+
+  /**
+   * @return the switch mask of the states reported by the relay in the given bitmap.
+   */
+  int fromReadBitmap(int readBitmap) {
+    return readBitmapLowByteToMask[readBitmap & 0xFF] | readBitmapHighByteToMask[(readBitmap >>> 8) & 0xFF];
+  }
+
+  /**
+   * @return the bitmap a relay reports when its switches are in the states of the given mask.
+   */
+  int toReadBitmap(int mask) {
+    return maskLowByteToReadBitmap[mask & 0xFF] | maskHighByteToReadBitmap[(mask >>> 8) & 0xFF];
+  }
+
+  private static int mapReadBitmap(int readBitmap) {
+    int mask = 0;
+    for (int switchId = 0; switchId < READ_BITMAP_BITS.length; switchId++) {
+      if ((readBitmap & READ_BITMAP_BITS[switchId]) != 0) {
+        mask |= 1 << switchId;
+      }
+    }
+    return mask;
+  }
+
+  private static int mapMask(int mask) {
+    int readBitmap = 0;
+    for (int switchId = 0; switchId < READ_BITMAP_BITS.length; switchId++) {
+      if ((mask & (1 << switchId)) != 0) {
+        readBitmap |= READ_BITMAP_BITS[switchId];
+      }
+    }
+    return readBitmap;
+  }
+}
@@ -0,0 +1,14 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Thrown instead of sending a command to a relay which has failed too many consecutive commands.
+ *
+ * @see UsbHidRelayOptions#circuitBreakerThreshold()
+ */
+public class UsbHidRelayCircuitOpenException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public UsbHidRelayCircuitOpenException(String message) {
+    super(message);
+  }
+}
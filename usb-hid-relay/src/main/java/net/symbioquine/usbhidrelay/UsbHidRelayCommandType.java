@@ -0,0 +1,21 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * The kinds of command which are sent to a relay.
+ */
+public enum UsbHidRelayCommandType {
+  /**
+   * Read the states of all the switches.
+   */
+  READ,
+
+  /**
+   * Write the states of all the switches.
+   */
+  WRITE,
+
+  /**
+   * Reset the HID interface.
+   */
+  RESET
+}
@@ -0,0 +1,56 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.Optional;
+
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Identifies a relay device by where it is plugged in and, if it reports one, its serial number.
+ *
+ * <p>
+ * The port path lists the port numbers leading from the root hub to the device, separated by dots,
+ * for example {@code "1.4.2"}. It stays the same as long as the device remains plugged into the same
+ * port, including across restarts.
+ */
+@EqualsAndHashCode
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayDeviceId {
+  String portPath;
+  String serialNumber;
+
+  private UsbHidRelayDeviceId(@NonNull String portPath, String serialNumber) {
+    this.portPath = portPath;
+    this.serialNumber = serialNumber;
+  }
+
+  /**
+   * @param portPath the dot separated port numbers leading from the root hub to the device.
+   * @param serialNumber the serial number reported by the device or {@code null} if it reports none.
+   * @return an identifier for a relay device.
+   */
+  public static UsbHidRelayDeviceId of(@NonNull String portPath, String serialNumber) {
+    return new UsbHidRelayDeviceId(portPath, serialNumber);
+  }
+
+  /**
+   * @return the dot separated port numbers leading from the root hub to the device.
+   */
+  public String portPath() {
+    return portPath;
+  }
+
+  /**
+   * @return the serial number reported by the device, if any.
+   */
+  public Optional<String> serialNumber() {
+    return Optional.ofNullable(serialNumber);
+  }
+
+  @Override
+  public String toString() {
+    return serialNumber == null ? portPath : portPath + " (" + serialNumber + ")";
+  }
+}
@@ -0,0 +1,12 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Thrown when a command is sent to a relay whose device is currently unplugged.
+ */
+public class UsbHidRelayDisconnectedException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public UsbHidRelayDisconnectedException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,308 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbHostManager;
+import javax.usb.UsbHub;
+import javax.usb.UsbPort;
+import javax.usb.UsbServices;
+
+import lombok.NonNull;
+
+/**
+ * Finds USB HID relay devices attached to the host, recognizing the devices of every
+ * {@link RelayProtocol}.
+ *
+ * <p>
+ * The USB services are only initialized by the first discovery and are reused by every later one.
+ * Discoveries given a {@link UsbHidRelayDiscoveryCache} look for relays at the ports they were last
+ * found at before walking the hubs. Hubs on different buses are walked in parallel.
+ */
+public final class UsbHidRelayDiscovery {
+  private static volatile UsbServices usbServices;
+  private static volatile UsbHidRelayDiscoveryTimings lastTimings;
+
+  private UsbHidRelayDiscovery() {
+  }
+
+  /**
+   * Walk every hub attached to the host looking for relay devices.
+   *
+   * @return all the relay devices currently attached, in the order they were found.
+   */
+  public static List<DiscoveredUsbHidRelay> findAllRelays() {
+    long startedAtNanos = System.nanoTime();
+    long usbServicesInitializationNanos = initializeUsbServices();
+    UsbHub rootHub = rootHub();
+    long scanStartedAtNanos = System.nanoTime();
+
+    List<DiscoveredUsbHidRelay> relays = scan(rootHub);
+
+    long finishedAtNanos = System.nanoTime();
+    lastTimings = new UsbHidRelayDiscoveryTimings(usbServicesInitializationNanos, 0, true, finishedAtNanos - scanStartedAtNanos,
+        finishedAtNanos - startedAtNanos, 0, 0);
+    return relays;
+  }
+
+  /**
+   * Look for relay devices at the ports they were last found at, only walking every hub if any of
+   * them is no longer there or none are known. The cache is updated with the relays found by
+   * walking the hubs.
+   *
+   * <p>
+   * Relays plugged in at new ports are not found while every known relay is still in place. Use
+   * {@link #findAllRelays()}, or clear the cache, to look for them.
+   *
+   * @return the relay devices currently attached.
+   */
+  public static List<DiscoveredUsbHidRelay> findAllRelays(@NonNull UsbHidRelayDiscoveryCache cache) {
+    long startedAtNanos = System.nanoTime();
+    long usbServicesInitializationNanos = initializeUsbServices();
+    UsbHub rootHub = rootHub();
+    long probeStartedAtNanos = System.nanoTime();
+
+    List<UsbHidRelayDeviceId> knownRelays = cache.knownRelays();
+    List<DiscoveredUsbHidRelay> relays = new ArrayList<>();
+    for (UsbHidRelayDeviceId id : knownRelays) {
+      probe(rootHub, id).ifPresent(relays::add);
+    }
+    int probeHits = relays.size();
+    int probeMisses = knownRelays.size() - probeHits;
+
+    long scanStartedAtNanos = System.nanoTime();
+    boolean scanned = knownRelays.isEmpty() || probeMisses > 0;
+    if (scanned) {
+      relays = scan(rootHub);
+      cache.update(relays.stream().map(DiscoveredUsbHidRelay::id).collect(toList()));
+    }
+
+    long finishedAtNanos = System.nanoTime();
+    lastTimings = new UsbHidRelayDiscoveryTimings(usbServicesInitializationNanos, scanStartedAtNanos - probeStartedAtNanos, scanned,
+        finishedAtNanos - scanStartedAtNanos, finishedAtNanos - startedAtNanos, probeHits, probeMisses);
+    return relays;
+  }
+
+  /**
+   * @return how long each phase of the last discovery in this process took, if there has been one.
+   */
+  public static Optional<UsbHidRelayDiscoveryTimings> lastTimings() {
+    return Optional.ofNullable(lastTimings);
+  }
+
+  /**
+   * Find a relay device with at least the given number of switches, walking the hubs only as far as
+   * needed to find one. With a cache, the first known relay still at the port it was last found at
+   * and large enough is returned without walking the hubs at all. Smaller relays, such as
+   * {@link RelayProtocol#USB_RELAY} boards when looking for a 16 switch relay, are passed over.
+   *
+   * @param cache the cache of known relays or {@code null} to always walk the hubs.
+   */
+  static Optional<DiscoveredUsbHidRelay> findFirstRelay(UsbHidRelayDiscoveryCache cache, @NonNull UsbHidRelaySize relaySize) {
+    long startedAtNanos = System.nanoTime();
+    long usbServicesInitializationNanos = initializeUsbServices();
+    return findFirstRelay(rootHub(), cache, relaySize, startedAtNanos, usbServicesInitializationNanos);
+  }
+
+  static Optional<DiscoveredUsbHidRelay> findFirstRelay(UsbHub rootHub, UsbHidRelayDiscoveryCache cache, UsbHidRelaySize relaySize,
+      long startedAtNanos, long usbServicesInitializationNanos) {
+    long probeStartedAtNanos = System.nanoTime();
+
+    int probeMisses = 0;
+    Optional<DiscoveredUsbHidRelay> relay = Optional.empty();
+    for (UsbHidRelayDeviceId id : cache == null ? Collections.<UsbHidRelayDeviceId> emptyList() : cache.knownRelays()) {
+      Optional<DiscoveredUsbHidRelay> probed = probe(rootHub, id);
+      if (!probed.isPresent()) {
+        probeMisses++;
+      } else if (fits(probed.get(), relaySize)) {
+        relay = probed;
+        break;
+      }
+    }
+
+    long scanStartedAtNanos = System.nanoTime();
+    boolean scanned = !relay.isPresent();
+    if (scanned) {
+      if (cache == null) {
+        relay = toDevicesStream(rootHub).filter(UsbHidRelayDiscovery::isRelay).map(UsbHidRelayDiscovery::toDiscoveredRelay)
+            .filter(discovered -> fits(discovered, relaySize)).findFirst();
+      } else {
+        List<DiscoveredUsbHidRelay> relays = scan(rootHub);
+        cache.update(relays.stream().map(DiscoveredUsbHidRelay::id).collect(toList()));
+        relay = relays.stream().filter(discovered -> fits(discovered, relaySize)).findFirst();
+      }
+    }
+
+    long finishedAtNanos = System.nanoTime();
+    lastTimings = new UsbHidRelayDiscoveryTimings(usbServicesInitializationNanos, scanStartedAtNanos - probeStartedAtNanos, scanned,
+        scanned ? finishedAtNanos - scanStartedAtNanos : 0, finishedAtNanos - startedAtNanos, scanned ? 0 : 1, probeMisses);
+    return relay;
+  }
+
+  /**
+   * @return the USB services, initializing them on first use.
+   */
+  static UsbServices usbServices() {
+    initializeUsbServices();
+    return usbServices;
+  }
+
+  /**
+   * Initialize the USB services if they have not been already.
+   *
+   * @return how long initializing them took, or zero if they were already initialized.
+   */
+  static long initializeUsbServices() {
+    if (usbServices != null) {
+      return 0;
+    }
+
+    synchronized (UsbHidRelayDiscovery.class) {
+      if (usbServices != null) {
+        return 0;
+      }
+
+      long startedAtNanos = System.nanoTime();
+      try {
+        usbServices = UsbHostManager.getUsbServices();
+      } catch (SecurityException | UsbException e) {
+        throw new RuntimeException("Failed to get usb services.", e);
+      }
+      return System.nanoTime() - startedAtNanos;
+    }
+  }
+
+  /**
+   * @return whether the device has the vendor and product ids of a relay talking any protocol.
+   */
+  static boolean isRelay(UsbDevice device) {
+    return RelayProtocol.of(device).isPresent();
+  }
+
+  private static boolean fits(DiscoveredUsbHidRelay relay, UsbHidRelaySize relaySize) {
+    return relay.relaySize().asInt() >= relaySize.asInt();
+  }
+
+  static DiscoveredUsbHidRelay toDiscoveredRelay(UsbDevice device) {
+    RelayProtocol protocol = RelayProtocol.of(device).get();
+
+    return new DiscoveredUsbHidRelay(UsbHidRelayDeviceId.of(portPath(device), serialNumber(device, protocol)), device, protocol,
+        protocol.relaySize(device));
+  }
+
+  /**
+   * @return the dot separated port numbers leading from the root hub to the device.
+   */
+  static String portPath(UsbDevice device) {
+    Deque<String> portNumbers = new ArrayDeque<>();
+
+    UsbPort port = device.getParentUsbPort();
+    while (port != null) {
+      portNumbers.addFirst(Integer.toString(port.getPortNumber() & 0xFF));
+
+      UsbHub hub = port.getUsbHub();
+      port = hub.isRootUsbHub() ? null : hub.getParentUsbPort();
+    }
+
+    return String.join(".", portNumbers);
+  }
+
+  /**
+   * @return the serial number of the device, or null if it has none. Relays talking
+   *         {@link RelayProtocol#USB_RELAY} share a single USB serial number, so theirs is read from
+   *         their feature report instead.
+   */
+  private static String serialNumber(UsbDevice device, RelayProtocol protocol) {
+    if (protocol == RelayProtocol.USB_RELAY) {
+      byte[] report = UsbRelayFeatureReports.newReport();
+      try {
+        UsbFeatureReportTransport.getFeatureReport(device, report);
+      } catch (RuntimeException e) {
+        return null;
+      }
+      String serialNumber = UsbRelayFeatureReports.decodeSerialNumber(report);
+      return serialNumber.isEmpty() ? null : serialNumber;
+    }
+
+    if (device.getUsbDeviceDescriptor().iSerialNumber() == 0) {
+      return null;
+    }
+
+    try {
+      return device.getSerialNumberString();
+    } catch (UsbException | UnsupportedEncodingException | UsbDisconnectedException e) {
+      return null;
+    }
+  }
+
+  private static UsbHub rootHub() {
+    try {
+      return usbServices().getRootUsbHub();
+    } catch (SecurityException | UsbException e) {
+      throw new RuntimeException("Failed to get relay usb device.", e);
+    }
+  }
+
+  /**
+   * Walk every hub looking for relays, walking the hubs of each bus and reading the ids of the
+   * relays found in parallel.
+   */
+  private static List<DiscoveredUsbHidRelay> scan(UsbHub rootHub) {
+    return toDevicesStream(rootHub).parallel().filter(UsbHidRelayDiscovery::isRelay).map(UsbHidRelayDiscovery::toDiscoveredRelay)
+        .collect(toList());
+  }
+
+  /**
+   * @return the relay with the given id if it is still attached at the port it was last found at.
+   */
+  private static Optional<DiscoveredUsbHidRelay> probe(UsbHub rootHub, UsbHidRelayDeviceId id) {
+    UsbDevice device = rootHub;
+    for (String portNumber : id.portPath().split("\\.")) {
+      if (!device.isUsbHub()) {
+        return Optional.empty();
+      }
+
+      UsbPort port;
+      try {
+        port = ((UsbHub) device).getUsbPort((byte) Integer.parseInt(portNumber));
+      } catch (NumberFormatException e) {
+        return Optional.empty();
+      }
+      if (port == null || !port.isUsbDeviceAttached()) {
+        return Optional.empty();
+      }
+      device = port.getUsbDevice();
+    }
+
+    if (!isRelay(device)) {
+      return Optional.empty();
+    }
+
+    // A different relay may have been plugged into the port since.
+    DiscoveredUsbHidRelay relay = toDiscoveredRelay(device);
+    return relay.id().equals(id) ? Optional.of(relay) : Optional.empty();
+  }
+
+  static Stream<UsbDevice> toDevicesStream(UsbHub hub) {
+    @SuppressWarnings("unchecked")
+    List<UsbDevice> usbDevices = (List<UsbDevice>) hub.getAttachedUsbDevices();
+
+    return usbDevices.stream().flatMap(device -> {
+      if (device.isUsbHub()) {
+        return toDevicesStream((UsbHub) device);
+      }
+      return Stream.of(device);
+    });
+  }
+}
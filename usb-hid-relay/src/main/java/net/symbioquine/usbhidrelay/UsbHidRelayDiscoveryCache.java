@@ -0,0 +1,122 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * Remembers where relays were last found so that discovery can look at those ports directly
+ * instead of walking every hub attached to the host.
+ *
+ * <p>
+ * A cache backed by a file remembers the relays across restarts, which is where it saves the most;
+ *
+ * <pre>
+ * UsbHidRelayDiscoveryCache cache = UsbHidRelayDiscoveryCache.open(Paths.get("/var/lib/relays/discovery"));
+ *
+ * UsbHidRelay relay = UsbHidRelay.findAndAcquireFirstRelay(SIXTEEN, UsbHidRelayOptions.builder().discoveryCache(cache).build());
+ * </pre>
+ *
+ * @see UsbHidRelayDiscovery#findAllRelays(UsbHidRelayDiscoveryCache)
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayDiscoveryCache {
+  private static final String SERIAL_NUMBER_SEPARATOR = " ";
+
+  Optional<Path> file;
+
+  @NonFinal
+  volatile List<UsbHidRelayDeviceId> knownRelays;
+
+  private UsbHidRelayDiscoveryCache(Optional<Path> file, List<UsbHidRelayDeviceId> knownRelays) {
+    this.file = file;
+    this.knownRelays = knownRelays;
+  }
+
+  /**
+   * @return an empty cache which is forgotten when the process exits.
+   */
+  public static UsbHidRelayDiscoveryCache inMemory() {
+    return new UsbHidRelayDiscoveryCache(Optional.empty(), emptyList());
+  }
+
+  /**
+   * @return a cache which remembers the relays in the given file, starting with the relays already
+   *         in it if it exists. An unreadable file is treated as empty.
+   */
+  public static UsbHidRelayDiscoveryCache open(@NonNull Path file) {
+    List<UsbHidRelayDeviceId> knownRelays = new ArrayList<>();
+    try {
+      if (Files.exists(file)) {
+        for (String line : Files.readAllLines(file, UTF_8)) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          int separator = line.indexOf(SERIAL_NUMBER_SEPARATOR);
+          knownRelays.add(separator < 0 ? UsbHidRelayDeviceId.of(line, null)
+              : UsbHidRelayDeviceId.of(line.substring(0, separator), line.substring(separator + 1)));
+        }
+      }
+    } catch (IOException e) {
+      knownRelays.clear();
+    }
+    return new UsbHidRelayDiscoveryCache(Optional.of(file), unmodifiableList(knownRelays));
+  }
+
+  /**
+   * @return the relays found by the last discovery which walked the hubs, in the order they were
+   *         found.
+   */
+  public List<UsbHidRelayDeviceId> knownRelays() {
+    return knownRelays;
+  }
+
+  /**
+   * Forget every known relay, so that the next discovery walks the hubs.
+   */
+  public void clear() {
+    update(emptyList());
+  }
+
+  /**
+   * Remember the given relays, writing them to the file backing the cache if they changed.
+   */
+  synchronized void update(List<UsbHidRelayDeviceId> relays) {
+    if (relays.equals(knownRelays)) {
+      return;
+    }
+    knownRelays = unmodifiableList(new ArrayList<>(relays));
+
+    if (!file.isPresent()) {
+      return;
+    }
+
+    List<String> lines = new ArrayList<>();
+    for (UsbHidRelayDeviceId id : relays) {
+      lines.add(id.serialNumber().map(serialNumber -> id.portPath() + SERIAL_NUMBER_SEPARATOR + serialNumber).orElse(id.portPath()));
+    }
+
+    Path path = file.get();
+    Path updated = path.resolveSibling(path.getFileName() + ".updating");
+    try {
+      Files.write(updated, lines, UTF_8);
+      Files.move(updated, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write relay discovery cache " + path + ".", e);
+    }
+  }
+}
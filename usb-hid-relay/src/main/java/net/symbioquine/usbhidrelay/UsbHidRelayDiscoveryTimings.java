@@ -0,0 +1,71 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * How long each phase of a discovery took.
+ *
+ * @see UsbHidRelayDiscovery#lastTimings()
+ */
+@Getter
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayDiscoveryTimings {
+  /**
+   * How long initializing the USB services, and with them the USB library, took. Zero unless this
+   * was the first discovery, or the first use of the USB services, in the process.
+   */
+  Duration usbServicesInitialization;
+
+  /**
+   * How long looking for relays at the ports they were last known to be at took.
+   */
+  Duration probe;
+
+  /**
+   * How long walking the hubs took. Zero when every known relay was found by probing.
+   */
+  Duration scan;
+
+  /**
+   * Whether the hubs were walked.
+   */
+  boolean scanned;
+
+  /**
+   * How long the whole discovery took.
+   */
+  Duration total;
+
+  /**
+   * The number of relays found by probing the ports they were last known to be at.
+   */
+  int probeHits;
+
+  /**
+   * The number of relays which were not found at the ports they were last known to be at.
+   */
+  int probeMisses;
+
+  UsbHidRelayDiscoveryTimings(long usbServicesInitializationNanos, long probeNanos, boolean scanned, long scanNanos, long totalNanos,
+      int probeHits, int probeMisses) {
+    this.usbServicesInitialization = Duration.ofNanos(usbServicesInitializationNanos);
+    this.probe = Duration.ofNanos(probeNanos);
+    this.scan = Duration.ofNanos(scanNanos);
+    this.scanned = scanned;
+    this.total = Duration.ofNanos(totalNanos);
+    this.probeHits = probeHits;
+    this.probeMisses = probeMisses;
+  }
+
+  @Override
+  public String toString() {
+    return "usb services " + usbServicesInitialization.toMillis() + "ms, probe " + probe.toMillis() + "ms (" + probeHits + " hits, "
+        + probeMisses + " misses), scan " + scan.toMillis() + "ms, total " + total.toMillis() + "ms";
+  }
+}
@@ -0,0 +1,186 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Encodes command frames for, and decodes response frames from, USB HID relays without allocating.
+ *
+ * <p>
+ * Every command frame is {@value #PACKET_LENGTH} bytes long and laid out as follows, with
+ * multi-byte values in little endian order;
+ *
+ * <pre>
+ * offset  0: command
+ * offset  1: length of the checksummed data ({@value #CMD_DATA_LEN})
+ * offset  2: four 16-bit command arguments
+ * offset 10: the bytes 'H', 'I', 'D', 'C'
+ * offset 14: 32-bit sum of the bytes at offsets 0 to 13
+ * </pre>
+ */
+final class UsbHidRelayFrames {
+  static final int PACKET_LENGTH = 64;
+
+  static final int CMD_READ = 0xD2;
+  static final int CMD_WRITE = 0xC3;
+  static final int CMD_RESET = 0x71;
+
+  private static final int CMD_DATA_LEN = 14;
+
+  private static final int ARGS_OFFSET = 2;
+  private static final int TRAILER_OFFSET = 10;
+  private static final int CHECKSUM_OFFSET = CMD_DATA_LEN;
+
+  private static final int RESPONSE_MASK_OFFSET = 2;
+
+  private static final byte[] READ_FRAME = frame(CMD_READ, 0x1111, 0x1111, 0x1111, 0x1111);
+  private static final byte[] RESET_FRAME = frame(CMD_RESET, CMD_RESET, 0x00, 0x1111, 0x00);
+  private static final byte[] WRITE_FRAME_TEMPLATE = frame(CMD_WRITE, 0x00, 0x00, 0x00, 0x00);
+
+  private static final int WRITE_FRAME_TEMPLATE_CHECKSUM = readIntLittleEndian(WRITE_FRAME_TEMPLATE, CHECKSUM_OFFSET);
+
+  private UsbHidRelayFrames() {
+  }
+
+  /**
+   * @return the frame which asks the relay to report its switch states. The returned array is
+   *         shared and must not be modified.
+   */
+  static byte[] readFrame() {
+    return READ_FRAME;
+  }
+
+  /**
+   * @return the frame which resets the HID interface of the relay. The returned array is shared and
+   *         must not be modified.
+   */
+  static byte[] resetFrame() {
+    return RESET_FRAME;
+  }
+
+  /**
+   * @return a new write frame which can be passed to {@link #encodeWrite(int, byte[])} repeatedly.
+   */
+  static byte[] newWriteFrame() {
+    return WRITE_FRAME_TEMPLATE.clone();
+  }
+
+  /**
+   * Encode a write of the given relay bitmap into a frame previously created by
+   * {@link #newWriteFrame()}. Only the bitmap and checksum bytes are rewritten.
+   */
+  static void encodeWrite(int relayBitmap, byte[] frame) {
+    int low = relayBitmap & 0xFF;
+    int high = (relayBitmap >>> 8) & 0xFF;
+
+    frame[ARGS_OFFSET] = (byte) low;
+    frame[ARGS_OFFSET + 1] = (byte) high;
+
+    writeIntLittleEndian(frame, CHECKSUM_OFFSET, WRITE_FRAME_TEMPLATE_CHECKSUM + low + high);
+  }
+
+  /**
+   * @return a new buffer large enough to receive a response frame.
+   */
+  static byte[] newResponseFrame() {
+    return new byte[PACKET_LENGTH];
+  }
+
+  /**
+   * @return the relay bitmap reported in a response to the read command.
+   * @see UsbHidRelayBitMapping#fromReadBitmap(int)
+   */
+  static int decodeReadBitmap(byte[] response) {
+    return readIntLittleEndian(response, RESPONSE_MASK_OFFSET) & 0xFFFF;
+  }
+
+  /**
+   * Encode the response a relay gives to the read command when it reports the given relay bitmap.
+   *
+   * @see UsbHidRelayBitMapping#toReadBitmap(int)
+   */
+  static void encodeReadResponse(int relayBitmap, byte[] response) {
+    response[0] = (byte) CMD_READ;
+    response[1] = (byte) CMD_DATA_LEN;
+    writeIntLittleEndian(response, RESPONSE_MASK_OFFSET, relayBitmap);
+  }
+
+  /**
+   * @return the command of a frame.
+   */
+  static int command(byte[] frame) {
+    return frame[0] & 0xFF;
+  }
+
+  /**
+   * @return the relay bitmap written by a write frame.
+   */
+  static int decodeWriteBitmap(byte[] frame) {
+    return (frame[ARGS_OFFSET] & 0xFF) | (frame[ARGS_OFFSET + 1] & 0xFF) << 8;
+  }
+
+  /**
+   * Check that a frame is of the expected length and has the expected data length, trailer and
+   * checksum.
+   *
+   * @throws IllegalArgumentException if the frame is malformed.
+   */
+  static void validateCommandFrame(byte[] frame) {
+    if (frame.length != PACKET_LENGTH) {
+      throw new IllegalArgumentException("Expected a frame of " + PACKET_LENGTH + " bytes. Instead got " + frame.length + " bytes.");
+    }
+    if (frame[1] != CMD_DATA_LEN) {
+      throw new IllegalArgumentException("Expected a data length of " + CMD_DATA_LEN + ". Instead got: " + frame[1]);
+    }
+    if (frame[TRAILER_OFFSET] != 'H' || frame[TRAILER_OFFSET + 1] != 'I' || frame[TRAILER_OFFSET + 2] != 'D' || frame[TRAILER_OFFSET + 3] != 'C') {
+      throw new IllegalArgumentException("Expected the frame to contain the 'HIDC' trailer.");
+    }
+
+    int checksum = 0;
+    for (int i = 0; i < CMD_DATA_LEN; i++) {
+      checksum += frame[i] & 0xFF;
+    }
+    int frameChecksum = readIntLittleEndian(frame, CHECKSUM_OFFSET);
+    if (frameChecksum != checksum) {
+      throw new IllegalArgumentException("Expected a checksum of " + checksum + ". Instead got: " + frameChecksum);
+    }
+  }
+
+  private static byte[] frame(int cmd, int arg0, int arg1, int arg2, int arg3) {
+    byte[] frame = new byte[PACKET_LENGTH];
+
+    frame[0] = (byte) cmd;
+    frame[1] = (byte) CMD_DATA_LEN;
+
+    writeShortLittleEndian(frame, ARGS_OFFSET, arg0);
+    writeShortLittleEndian(frame, ARGS_OFFSET + 2, arg1);
+    writeShortLittleEndian(frame, ARGS_OFFSET + 4, arg2);
+    writeShortLittleEndian(frame, ARGS_OFFSET + 6, arg3);
+
+    frame[TRAILER_OFFSET] = 'H';
+    frame[TRAILER_OFFSET + 1] = 'I';
+    frame[TRAILER_OFFSET + 2] = 'D';
+    frame[TRAILER_OFFSET + 3] = 'C';
+
+    int checksum = 0;
+    for (int i = 0; i < CMD_DATA_LEN; i++) {
+      checksum += frame[i] & 0xFF;
+    }
+    writeIntLittleEndian(frame, CHECKSUM_OFFSET, checksum);
+
+    return frame;
+  }
+
+  private static void writeShortLittleEndian(byte[] data, int offset, int value) {
+    data[offset] = (byte) value;
+    data[offset + 1] = (byte) (value >>> 8);
+  }
+
+  private static void writeIntLittleEndian(byte[] data, int offset, int value) {
+    data[offset] = (byte) value;
+    data[offset + 1] = (byte) (value >>> 8);
+    data[offset + 2] = (byte) (value >>> 16);
+    data[offset + 3] = (byte) (value >>> 24);
+  }
+
+  private static int readIntLittleEndian(byte[] data, int offset) {
+    return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+  }
+}
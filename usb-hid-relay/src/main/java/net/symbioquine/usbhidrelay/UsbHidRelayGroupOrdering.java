@@ -0,0 +1,20 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * How an {@link EnumeratedUsbHidRelayGroup} orders the writes to its relays when a change spans
+ * several of them.
+ */
+public enum UsbHidRelayGroupOrdering {
+  /**
+   * Start the write to every affected relay at once, so the relays change as close together as
+   * their devices allow. The order they change in is not defined.
+   */
+  CONCURRENT,
+
+  /**
+   * Write to the affected relays one after another in the order they are in the group, starting
+   * each write once the previous one has completed. Relays earlier in the group are guaranteed to
+   * have changed first, at the cost of a skew of at least one write per relay.
+   */
+  SEQUENTIAL;
+}
@@ -0,0 +1,12 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Interface used to refer to a single switch on one of the relays of an
+ * {@link EnumeratedUsbHidRelayGroup}.
+ */
+public interface UsbHidRelayGroupSwitchId extends UsbHidRelaySwitchId {
+  /**
+   * @return the zero-indexed position of the relay the switch is on in the group.
+   */
+  int board();
+}
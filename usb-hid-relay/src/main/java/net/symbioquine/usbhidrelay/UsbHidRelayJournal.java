@@ -0,0 +1,414 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.function.IntConsumer;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * An append-only, memory-mapped record of the switch states each relay device is meant to be in,
+ * so that relays can be put back into those states straight after the process restarts.
+ *
+ * <p>
+ * Relays acquired through {@link DiscoveredUsbHidRelay#acquire(UsbHidRelaySize, UsbHidRelayOptions)},
+ * {@link UsbHidRelay#findAndAcquireFirstRelay(UsbHidRelaySize, UsbHidRelayOptions)} or a
+ * {@link UsbHidRelayPool} with {@link UsbHidRelayOptions#journal()} set record every mask they are
+ * about to write, and are restored to the last mask recorded for their device, in a single write,
+ * as they are acquired;
+ *
+ * <pre>
+ * UsbHidRelayJournal journal = UsbHidRelayJournal.open(Paths.get("/var/lib/relays/journal"));
+ *
+ * UsbHidRelay relay = UsbHidRelay.findAndAcquireFirstRelay(SIXTEEN, UsbHidRelayOptions.builder().journal(journal).build());
+ * </pre>
+ *
+ * <p>
+ * Recording a mask writes eight bytes to the mapped file, so records survive the process crashing
+ * as soon as they are made and survive the host crashing once {@link #sync()} has been called. When
+ * the file fills up it is compacted to the last mask of each device, written to a new file which
+ * atomically replaces it.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayJournal implements AutoCloseable {
+  private static final int MAGIC = 0x55484A31;
+  private static final int HEADER_LENGTH = 8;
+  private static final int RECORD_ALIGNMENT = 8;
+  private static final int MASK_RECORD_LENGTH = 8;
+  private static final int DEVICE_RECORD_HEADER_LENGTH = 8;
+
+  private static final byte MASK_RECORD = 1;
+  private static final byte DEVICE_RECORD = 2;
+
+  private static final int DEFAULT_CAPACITY = 1 << 20;
+  private static final int MIN_CAPACITY = 4096;
+  private static final int MAX_DEVICES = 0xFFFF;
+  private static final int NO_SERIAL_NUMBER = 0xFFFF;
+
+  Path file;
+  List<UsbHidRelayDeviceId> devices = new ArrayList<>();
+  Map<UsbHidRelayDeviceId, Integer> deviceIndexes = new HashMap<>();
+
+  @NonFinal
+  int[] desiredMasks = new int[16];
+  @NonFinal
+  MappedByteBuffer buffer;
+  @NonFinal
+  int position;
+  @NonFinal
+  long compactions;
+  @NonFinal
+  boolean closed;
+
+  private UsbHidRelayJournal(Path file, MappedByteBuffer buffer) {
+    this.file = file;
+    this.buffer = buffer;
+    Arrays.fill(desiredMasks, UsbHidRelay.NO_MASK);
+  }
+
+  /**
+   * @return the journal in the given file, which is created if it does not exist, with room for
+   *         about a hundred thousand records between compactions.
+   */
+  public static UsbHidRelayJournal open(@NonNull Path file) {
+    return open(file, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity the initial size of the file in bytes. Every recorded mask takes eight bytes.
+   * @return the journal in the given file, which is created if it does not exist.
+   * @throws IllegalArgumentException if the file exists but is not a journal.
+   */
+  public static UsbHidRelayJournal open(@NonNull Path file, int capacity) {
+    if (capacity < MIN_CAPACITY) {
+      throw new IllegalArgumentException("Journal capacity must be at least " + MIN_CAPACITY + " bytes. Instead got: " + capacity);
+    }
+
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+      // A mapping stays valid once the channel it was made from is closed.
+      buffer = channel.map(MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to open relay journal " + file + ".", e);
+    }
+
+    UsbHidRelayJournal journal = new UsbHidRelayJournal(file, buffer);
+    journal.recover();
+    return journal;
+  }
+
+  /**
+   * @return the last mask recorded for the given device, if any.
+   */
+  public synchronized OptionalInt desiredMask(@NonNull UsbHidRelayDeviceId id) {
+    Integer deviceIndex = deviceIndexes.get(id);
+    if (deviceIndex == null || desiredMasks[deviceIndex] == UsbHidRelay.NO_MASK) {
+      return OptionalInt.empty();
+    }
+    return OptionalInt.of(desiredMasks[deviceIndex]);
+  }
+
+  /**
+   * @return the last mask recorded for every device with one, by device id.
+   */
+  public synchronized Map<UsbHidRelayDeviceId, Integer> desiredMasks() {
+    Map<UsbHidRelayDeviceId, Integer> masks = new LinkedHashMap<>();
+    for (int deviceIndex = 0; deviceIndex < devices.size(); deviceIndex++) {
+      if (desiredMasks[deviceIndex] != UsbHidRelay.NO_MASK) {
+        masks.put(devices.get(deviceIndex), desiredMasks[deviceIndex]);
+      }
+    }
+    return masks;
+  }
+
+  /**
+   * @return the number of times the journal has been compacted since it was opened.
+   */
+  public synchronized long compactionCount() {
+    return compactions;
+  }
+
+  /**
+   * Rewrite the journal with only the last mask recorded for each device. Happens automatically
+   * when the file fills up.
+   */
+  public synchronized void compact() {
+    checkOpen();
+
+    int length = HEADER_LENGTH;
+    for (int deviceIndex = 0; deviceIndex < devices.size(); deviceIndex++) {
+      length += deviceRecordLength(devices.get(deviceIndex));
+      if (desiredMasks[deviceIndex] != UsbHidRelay.NO_MASK) {
+        length += MASK_RECORD_LENGTH;
+      }
+    }
+
+    // Leave at least half of the new file free for further records.
+    int capacity = buffer.capacity();
+    while (capacity < length * 2) {
+      capacity *= 2;
+    }
+
+    Path compactedFile = file.resolveSibling(file.getFileName() + ".compacting");
+    MappedByteBuffer compacted;
+    try (FileChannel channel = FileChannel.open(compactedFile, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+      compacted = channel.map(MapMode.READ_WRITE, 0, capacity);
+
+      compacted.putInt(0, MAGIC);
+      int offset = HEADER_LENGTH;
+      for (int deviceIndex = 0; deviceIndex < devices.size(); deviceIndex++) {
+        offset = putDeviceRecord(compacted, offset, deviceIndex, devices.get(deviceIndex));
+        if (desiredMasks[deviceIndex] != UsbHidRelay.NO_MASK) {
+          offset = putMaskRecord(compacted, offset, deviceIndex, desiredMasks[deviceIndex]);
+        }
+      }
+      compacted.force();
+
+      Files.move(compactedFile, file, ATOMIC_MOVE, REPLACE_EXISTING);
+      position = offset;
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to compact relay journal " + file + ".", e);
+    }
+
+    buffer = compacted;
+    compactions++;
+  }
+
+  /**
+   * Write the records made so far through to the storage device, so that they survive the host
+   * crashing.
+   */
+  public synchronized void sync() {
+    checkOpen();
+    buffer.force();
+  }
+
+  /**
+   * Sync and close the journal. Relays stop recording their masks once it is closed.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    buffer.force();
+    closed = true;
+  }
+
+  /**
+   * @return a consumer which records the masks it is given for the given device.
+   */
+  synchronized IntConsumer recorder(UsbHidRelayDeviceId id) {
+    checkOpen();
+
+    Integer existingIndex = deviceIndexes.get(id);
+    if (existingIndex != null) {
+      int deviceIndex = existingIndex;
+      return mask -> record(deviceIndex, mask);
+    }
+
+    if (devices.size() >= MAX_DEVICES) {
+      throw new IllegalStateException("A journal can record at most " + MAX_DEVICES + " devices.");
+    }
+
+    int deviceIndex = devices.size();
+    ensureRemaining(deviceRecordLength(id));
+    position = putDeviceRecord(buffer, position, deviceIndex, id);
+    addDevice(id);
+
+    return mask -> record(deviceIndex, mask);
+  }
+
+  private synchronized void record(int deviceIndex, int mask) {
+    if (closed) {
+      return;
+    }
+
+    ensureRemaining(MASK_RECORD_LENGTH);
+    position = putMaskRecord(buffer, position, deviceIndex, mask);
+    desiredMasks[deviceIndex] = mask;
+  }
+
+  private void recover() {
+    int magic = buffer.getInt(0);
+    if (magic == 0) {
+      buffer.putInt(0, MAGIC);
+      position = HEADER_LENGTH;
+      return;
+    }
+    if (magic != MAGIC) {
+      throw new IllegalArgumentException("File " + file + " is not a relay journal.");
+    }
+
+    int offset = HEADER_LENGTH;
+    while (offset + RECORD_ALIGNMENT <= buffer.capacity()) {
+      int next = readRecord(offset);
+      if (next < 0) {
+        break;
+      }
+      offset = next;
+    }
+    position = offset;
+
+    if (position + RECORD_ALIGNMENT <= buffer.capacity() && buffer.get(position) != 0) {
+      // Discard the torn record the last process was writing and anything after it.
+      for (int i = position; i < buffer.capacity(); i++) {
+        buffer.put(i, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * @return the offset after the valid record at the given offset, or -1 if there is none.
+   */
+  private int readRecord(int offset) {
+    byte type = buffer.get(offset);
+    if (type == MASK_RECORD) {
+      int deviceIndex = buffer.getShort(offset + 2) & 0xFFFF;
+      if (buffer.get(offset + 1) != checksum(buffer, offset, MASK_RECORD_LENGTH) || deviceIndex >= devices.size()) {
+        return -1;
+      }
+      desiredMasks[deviceIndex] = buffer.getInt(offset + 4);
+      return offset + MASK_RECORD_LENGTH;
+    }
+
+    if (type == DEVICE_RECORD) {
+      int deviceIndex = buffer.getShort(offset + 2) & 0xFFFF;
+      int portPathLength = buffer.getShort(offset + 4) & 0xFFFF;
+      int serialNumberLength = buffer.getShort(offset + 6) & 0xFFFF;
+      int stringsLength = portPathLength + (serialNumberLength == NO_SERIAL_NUMBER ? 0 : serialNumberLength);
+      int length = align(DEVICE_RECORD_HEADER_LENGTH + stringsLength);
+      if (deviceIndex != devices.size() || offset + length > buffer.capacity()
+          || buffer.get(offset + 1) != checksum(buffer, offset, length)) {
+        return -1;
+      }
+
+      String portPath = getString(offset + DEVICE_RECORD_HEADER_LENGTH, portPathLength);
+      String serialNumber = serialNumberLength == NO_SERIAL_NUMBER ? null
+          : getString(offset + DEVICE_RECORD_HEADER_LENGTH + portPathLength, serialNumberLength);
+      addDevice(UsbHidRelayDeviceId.of(portPath, serialNumber));
+      return offset + length;
+    }
+
+    return -1;
+  }
+
+  private void addDevice(UsbHidRelayDeviceId id) {
+    int deviceIndex = devices.size();
+    devices.add(id);
+    deviceIndexes.put(id, deviceIndex);
+
+    if (deviceIndex == desiredMasks.length) {
+      desiredMasks = Arrays.copyOf(desiredMasks, deviceIndex * 2);
+      Arrays.fill(desiredMasks, deviceIndex, desiredMasks.length, UsbHidRelay.NO_MASK);
+    }
+  }
+
+  private void ensureRemaining(int length) {
+    if (position + length > buffer.capacity()) {
+      compact();
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Relay journal " + file + " has been closed.");
+    }
+  }
+
+  private String getString(int offset, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(offset + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  private static int deviceRecordLength(UsbHidRelayDeviceId id) {
+    int serialNumberLength = id.serialNumber().map(serialNumber -> serialNumber.getBytes(UTF_8).length).orElse(0);
+    return align(DEVICE_RECORD_HEADER_LENGTH + id.portPath().getBytes(UTF_8).length + serialNumberLength);
+  }
+
+  /**
+   * Write a mask record, setting its type last so that a record is only ever read back whole.
+   *
+   * @return the offset after the record.
+   */
+  private static int putMaskRecord(ByteBuffer buffer, int offset, int deviceIndex, int mask) {
+    buffer.putShort(offset + 2, (short) deviceIndex);
+    buffer.putInt(offset + 4, mask);
+    buffer.put(offset + 1, checksum(buffer, offset, MASK_RECORD_LENGTH));
+    buffer.put(offset, MASK_RECORD);
+    return offset + MASK_RECORD_LENGTH;
+  }
+
+  /**
+   * Write a device record, setting its type last so that a record is only ever read back whole.
+   *
+   * @return the offset after the record.
+   */
+  private static int putDeviceRecord(ByteBuffer buffer, int offset, int deviceIndex, UsbHidRelayDeviceId id) {
+    byte[] portPath = id.portPath().getBytes(UTF_8);
+    byte[] serialNumber = id.serialNumber().map(string -> string.getBytes(UTF_8)).orElse(null);
+    if (portPath.length >= NO_SERIAL_NUMBER || (serialNumber != null && serialNumber.length >= NO_SERIAL_NUMBER)) {
+      throw new IllegalArgumentException("Device id is too long to be journaled: " + id);
+    }
+
+    int length = align(DEVICE_RECORD_HEADER_LENGTH + portPath.length + (serialNumber == null ? 0 : serialNumber.length));
+    for (int i = offset + 1; i < offset + length; i++) {
+      buffer.put(i, (byte) 0);
+    }
+
+    buffer.putShort(offset + 2, (short) deviceIndex);
+    buffer.putShort(offset + 4, (short) portPath.length);
+    buffer.putShort(offset + 6, (short) (serialNumber == null ? NO_SERIAL_NUMBER : serialNumber.length));
+    for (int i = 0; i < portPath.length; i++) {
+      buffer.put(offset + DEVICE_RECORD_HEADER_LENGTH + i, portPath[i]);
+    }
+    for (int i = 0; serialNumber != null && i < serialNumber.length; i++) {
+      buffer.put(offset + DEVICE_RECORD_HEADER_LENGTH + portPath.length + i, serialNumber[i]);
+    }
+    buffer.put(offset + 1, checksum(buffer, offset, length));
+    buffer.put(offset, DEVICE_RECORD);
+    return offset + length;
+  }
+
+  /**
+   * @return a check byte over the bytes of a record after its type and check bytes, used to detect
+   *         records torn by the host crashing.
+   */
+  private static byte checksum(ByteBuffer buffer, int offset, int length) {
+    int checksum = 0x5A;
+    for (int i = offset + 2; i < offset + length; i++) {
+      checksum = (checksum * 31 + buffer.get(i)) & 0xFF;
+    }
+    return (byte) checksum;
+  }
+
+  private static int align(int length) {
+    return (length + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+  }
+}
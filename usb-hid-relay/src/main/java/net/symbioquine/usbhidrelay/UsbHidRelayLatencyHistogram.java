@@ -0,0 +1,119 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of command latencies.
+ *
+ * <p>
+ * Latencies are counted in buckets which split every power of two nanoseconds into eight, so
+ * percentiles are accurate to within 12.5% while recording never allocates.
+ */
+public class UsbHidRelayLatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  UsbHidRelayLatencyHistogram() {
+  }
+
+  void record(long durationNanos) {
+    long nanos = Math.max(durationNanos, 0);
+
+    counts.incrementAndGet(bucketOf(nanos));
+    count.increment();
+    totalNanos.add(nanos);
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * @return the number of latencies recorded.
+   */
+  public long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return the sum of all the latencies recorded.
+   */
+  public Duration totalTime() {
+    return Duration.ofNanos(totalNanos.sum());
+  }
+
+  /**
+   * @return the mean of the latencies recorded, or zero if none have been.
+   */
+  public Duration meanTime() {
+    long recorded = count.sum();
+    return recorded == 0 ? Duration.ZERO : Duration.ofNanos(totalNanos.sum() / recorded);
+  }
+
+  /**
+   * @return the greatest latency recorded, or zero if none have been.
+   */
+  public Duration maxTime() {
+    return Duration.ofNanos(maxNanos.get());
+  }
+
+  /**
+   * @param percentile the percentile to find, between 0 and 100.
+   * @return an upper bound for the given percentile of the latencies recorded, or zero if none have
+   *         been.
+   */
+  public Duration percentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile must be in the range 0 to 100 instead got: " + percentile);
+    }
+
+    long[] snapshot = new long[BUCKETS];
+    long recorded = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      snapshot[bucket] = counts.get(bucket);
+      recorded += snapshot[bucket];
+    }
+    if (recorded == 0) {
+      return Duration.ZERO;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += snapshot[bucket];
+      if (seen >= rank) {
+        return Duration.ofNanos(Math.min(upperBoundOf(bucket), maxNanos.get()));
+      }
+    }
+    return maxTime();
+  }
+
+  private static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+    int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucketWidth = 1L << (exponent - SUB_BUCKET_BITS);
+    long lowerBound = (SUB_BUCKETS + bucket % SUB_BUCKETS) * subBucketWidth;
+    return lowerBound + subBucketWidth - 1;
+  }
+}
@@ -0,0 +1,304 @@
+package net.symbioquine.usbhidrelay;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * A {@link UsbHidRelayMetricsListener} which aggregates the measurements it receives into latency
+ * histograms, counters and gauges. A single instance may be shared by several relays to aggregate
+ * their measurements together.
+ *
+ * <pre>
+ * UsbHidRelayMetrics metrics = UsbHidRelayMetrics.create();
+ *
+ * UsbHidRelay relay = UsbHidRelay.findAndAcquireFirstRelay(SIXTEEN, UsbHidRelayOptions.builder().metricsListener(metrics).build());
+ * </pre>
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayMetrics implements UsbHidRelayMetricsListener {
+  private static final int ENDPOINT_DIRECTION_IN = 0x80;
+
+  UsbHidRelayLatencyHistogram[] latencies = new UsbHidRelayLatencyHistogram[UsbHidRelayCommandType.values().length];
+  LongAdder[] failures = new LongAdder[UsbHidRelayCommandType.values().length];
+  LongAdder[] retries = new LongAdder[UsbHidRelayCommandType.values().length];
+  LongAdder[] timeouts = new LongAdder[UsbHidRelayCommandType.values().length];
+  LongAdder[] rejections = new LongAdder[UsbHidRelayCommandType.values().length];
+  LongAdder circuitOpenings = new LongAdder();
+  LongAdder failedVerifications = new LongAdder();
+  LongAdder deferredWrites = new LongAdder();
+  LongAdder coalescedWrites = new LongAdder();
+  LongAdder droppedWrites = new LongAdder();
+  AtomicInteger inFlightCommands = new AtomicInteger();
+  LongAdder pipeOpens = new LongAdder();
+  LongAdder bytesSent = new LongAdder();
+  LongAdder bytesReceived = new LongAdder();
+  LongAdder shortTransfers = new LongAdder();
+  LongAdder failedTransfers = new LongAdder();
+
+  private UsbHidRelayMetrics() {
+    for (UsbHidRelayCommandType commandType : UsbHidRelayCommandType.values()) {
+      latencies[commandType.ordinal()] = new UsbHidRelayLatencyHistogram();
+      failures[commandType.ordinal()] = new LongAdder();
+      retries[commandType.ordinal()] = new LongAdder();
+      timeouts[commandType.ordinal()] = new LongAdder();
+      rejections[commandType.ordinal()] = new LongAdder();
+    }
+  }
+
+  /**
+   * @return a new {@link UsbHidRelayMetrics} instance with nothing recorded.
+   */
+  public static UsbHidRelayMetrics create() {
+    return new UsbHidRelayMetrics();
+  }
+
+  @Override
+  public void commandStarted(UsbHidRelayCommandType commandType) {
+    inFlightCommands.incrementAndGet();
+  }
+
+  @Override
+  public void commandCompleted(UsbHidRelayCommandType commandType, long durationNanos) {
+    inFlightCommands.decrementAndGet();
+    latencies[commandType.ordinal()].record(durationNanos);
+  }
+
+  @Override
+  public void commandFailed(UsbHidRelayCommandType commandType, long durationNanos, Throwable failure) {
+    inFlightCommands.decrementAndGet();
+    failures[commandType.ordinal()].increment();
+  }
+
+  @Override
+  public void commandRetried(UsbHidRelayCommandType commandType) {
+    retries[commandType.ordinal()].increment();
+  }
+
+  @Override
+  public void commandTimedOut(UsbHidRelayCommandType commandType) {
+    timeouts[commandType.ordinal()].increment();
+  }
+
+  @Override
+  public void commandRejected(UsbHidRelayCommandType commandType) {
+    rejections[commandType.ordinal()].increment();
+  }
+
+  @Override
+  public void circuitOpened() {
+    circuitOpenings.increment();
+  }
+
+  @Override
+  public void writeVerificationFailed(int expectedMask, int actualMask) {
+    failedVerifications.increment();
+  }
+
+  @Override
+  public void writeDeferred() {
+    deferredWrites.increment();
+  }
+
+  @Override
+  public void writeCoalesced() {
+    coalescedWrites.increment();
+  }
+
+  @Override
+  public void writeDropped() {
+    droppedWrites.increment();
+  }
+
+  @Override
+  public void pipeOpened(int endpointAddress) {
+    pipeOpens.increment();
+  }
+
+  @Override
+  public void transferCompleted(int endpointAddress, int bytes) {
+    countBytes(endpointAddress, bytes);
+  }
+
+  @Override
+  public void shortTransfer(int endpointAddress, int expectedBytes, int actualBytes) {
+    shortTransfers.increment();
+    countBytes(endpointAddress, actualBytes);
+  }
+
+  @Override
+  public void transferFailed(int endpointAddress, Throwable failure) {
+    failedTransfers.increment();
+  }
+
+  /**
+   * @return the latencies of the commands of the given type which completed successfully.
+   */
+  public UsbHidRelayLatencyHistogram latency(@NonNull UsbHidRelayCommandType commandType) {
+    return latencies[commandType.ordinal()];
+  }
+
+  /**
+   * @return the number of commands of the given type which failed.
+   */
+  public long failureCount(@NonNull UsbHidRelayCommandType commandType) {
+    return failures[commandType.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of times commands of the given type were retried after failing.
+   */
+  public long retryCount(@NonNull UsbHidRelayCommandType commandType) {
+    return retries[commandType.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of transfers of commands of the given type which timed out.
+   */
+  public long timeoutCount(@NonNull UsbHidRelayCommandType commandType) {
+    return timeouts[commandType.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of commands of the given type which were failed immediately because the
+   *         circuit breaker was open.
+   */
+  public long rejectionCount(@NonNull UsbHidRelayCommandType commandType) {
+    return rejections[commandType.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of times the circuit breaker opened.
+   */
+  public long circuitOpenCount() {
+    return circuitOpenings.sum();
+  }
+
+  /**
+   * @return the number of writes whose switch states did not match when read back.
+   */
+  public long failedVerificationCount() {
+    return failedVerifications.sum();
+  }
+
+  /**
+   * @return the number of changes to the switch states held back by the rate limit.
+   */
+  public long deferredWriteCount() {
+    return deferredWrites.sum();
+  }
+
+  /**
+   * @return the number of changes to the switch states which saved a write by being written
+   *         together with other changes held back by the rate limit.
+   */
+  public long coalescedWriteCount() {
+    return coalescedWrites.sum();
+  }
+
+  /**
+   * @return the number of changes to the switch states held back by the rate limit which were
+   *         never written because they would have changed nothing.
+   */
+  public long droppedWriteCount() {
+    return droppedWrites.sum();
+  }
+
+  /**
+   * @return the number of commands which have started but not yet completed or failed.
+   */
+  public int inFlightCommands() {
+    return inFlightCommands.get();
+  }
+
+  /**
+   * @return the number of USB pipes opened.
+   */
+  public long pipeOpenCount() {
+    return pipeOpens.sum();
+  }
+
+  /**
+   * @return the number of bytes transferred to relays.
+   */
+  public long bytesSent() {
+    return bytesSent.sum();
+  }
+
+  /**
+   * @return the number of bytes transferred from relays.
+   */
+  public long bytesReceived() {
+    return bytesReceived.sum();
+  }
+
+  /**
+   * @return the number of USB transfers which transferred fewer bytes than expected.
+   */
+  public long shortTransferCount() {
+    return shortTransfers.sum();
+  }
+
+  /**
+   * @return the number of USB transfers which failed.
+   */
+  public long failedTransferCount() {
+    return failedTransfers.sum();
+  }
+
+  /**
+   * Register these metrics with the platform MBean server so they can be inspected with JMX tools.
+   *
+   * @param name distinguishes these metrics from any others registered, e.g. the relay id.
+   * @return the name the metrics were registered under.
+   */
+  public ObjectName registerMBean(@NonNull String name) {
+    try {
+      ObjectName objectName = objectName(name);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new UsbHidRelayMetricsView(this), objectName);
+      return objectName;
+    } catch (InstanceAlreadyExistsException | MBeanRegistrationException | NotCompliantMBeanException e) {
+      throw new RuntimeException("Failed to register relay metrics MBean.", e);
+    }
+  }
+
+  /**
+   * Unregister metrics previously registered with {@link #registerMBean(String)}.
+   *
+   * @param name the name the metrics were registered with.
+   */
+  public void unregisterMBean(@NonNull String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+    } catch (InstanceNotFoundException | MBeanRegistrationException e) {
+      throw new RuntimeException("Failed to unregister relay metrics MBean.", e);
+    }
+  }
+
+  private void countBytes(int endpointAddress, int bytes) {
+    if ((endpointAddress & ENDPOINT_DIRECTION_IN) != 0) {
+      bytesReceived.add(bytes);
+    } else {
+      bytesSent.add(bytes);
+    }
+  }
+
+  private static ObjectName objectName(String name) {
+    try {
+      return new ObjectName("net.symbioquine.usbhidrelay:type=UsbHidRelayMetrics,name=" + ObjectName.quote(name));
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException("Invalid relay metrics MBean name: " + name, e);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Receives measurements of the commands sent to a relay and the USB transfers carrying them. Every
+ * method does nothing by default so implementations only need to override those they are
+ * interested in.
+ *
+ * <p>
+ * Methods are called on the threads sending commands and completing transfers, possibly
+ * concurrently, so implementations must be thread-safe and should return quickly. Commands are only
+ * timed when a listener other than {@link #NOOP} is configured.
+ *
+ * @see UsbHidRelayOptions#metricsListener()
+ * @see UsbHidRelayMetrics
+ */
+public interface UsbHidRelayMetricsListener {
+  /**
+   * A listener which ignores every measurement.
+   */
+  UsbHidRelayMetricsListener NOOP = new UsbHidRelayMetricsListener() {
+  };
+
+  /**
+   * Called when a command starts being sent to the relay.
+   */
+  default void commandStarted(UsbHidRelayCommandType commandType) {
+  }
+
+  /**
+   * Called when a command has been sent to the relay and, for reads, its response received.
+   *
+   * @param durationNanos the time taken since the command started.
+   */
+  default void commandCompleted(UsbHidRelayCommandType commandType, long durationNanos) {
+  }
+
+  /**
+   * Called when a command fails.
+   *
+   * @param durationNanos the time taken since the command started.
+   */
+  default void commandFailed(UsbHidRelayCommandType commandType, long durationNanos, Throwable failure) {
+  }
+
+  /**
+   * Called when a failed command is about to be attempted again.
+   */
+  default void commandRetried(UsbHidRelayCommandType commandType) {
+  }
+
+  /**
+   * Called when a transfer of a command does not complete within the transfer timeout and is
+   * aborted.
+   */
+  default void commandTimedOut(UsbHidRelayCommandType commandType) {
+  }
+
+  /**
+   * Called when a command is failed immediately because the circuit breaker is open.
+   */
+  default void commandRejected(UsbHidRelayCommandType commandType) {
+  }
+
+  /**
+   * Called when the circuit breaker opens after too many consecutive commands failed.
+   */
+  default void circuitOpened() {
+  }
+
+  /**
+   * Called when the switch states read back after a write do not match those written.
+   */
+  default void writeVerificationFailed(int expectedMask, int actualMask) {
+  }
+
+  /**
+   * Called when a change to the switch states is held back by the rate limit of the relay.
+   */
+  default void writeDeferred() {
+  }
+
+  /**
+   * Called when a change to the switch states is written together with other changes which were
+   * held back by the rate limit of the relay, once for every change after the first.
+   */
+  default void writeCoalesced() {
+  }
+
+  /**
+   * Called when a change to the switch states held back by the rate limit of the relay is dropped
+   * because it, and any changes replacing it, would leave the switches as they are.
+   */
+  default void writeDropped() {
+  }
+
+  /**
+   * Called when a USB pipe is opened.
+   */
+  default void pipeOpened(int endpointAddress) {
+  }
+
+  /**
+   * Called when a USB transfer completes with the expected number of bytes.
+   */
+  default void transferCompleted(int endpointAddress, int bytes) {
+  }
+
+  /**
+   * Called when a USB transfer completes with fewer bytes than expected.
+   */
+  default void shortTransfer(int endpointAddress, int expectedBytes, int actualBytes) {
+  }
+
+  /**
+   * Called when a USB transfer fails.
+   */
+  default void transferFailed(int endpointAddress, Throwable failure) {
+  }
+}
@@ -0,0 +1,60 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * The JMX view of {@link UsbHidRelayMetrics}. Latencies are in microseconds.
+ *
+ * @see UsbHidRelayMetrics#registerMBean(String)
+ */
+public interface UsbHidRelayMetricsMXBean {
+  long getReadCount();
+
+  long getReadFailureCount();
+
+  long getReadLatencyMeanMicros();
+
+  long getReadLatencyP99Micros();
+
+  long getReadLatencyMaxMicros();
+
+  long getWriteCount();
+
+  long getWriteFailureCount();
+
+  long getWriteLatencyMeanMicros();
+
+  long getWriteLatencyP99Micros();
+
+  long getWriteLatencyMaxMicros();
+
+  long getResetCount();
+
+  long getResetFailureCount();
+
+  long getRetryCount();
+
+  long getTimeoutCount();
+
+  long getRejectionCount();
+
+  long getCircuitOpenCount();
+
+  long getFailedVerificationCount();
+
+  long getDeferredWriteCount();
+
+  long getCoalescedWriteCount();
+
+  long getDroppedWriteCount();
+
+  int getInFlightCommands();
+
+  long getPipeOpenCount();
+
+  long getBytesSent();
+
+  long getBytesReceived();
+
+  long getShortTransferCount();
+
+  long getFailedTransferCount();
+}
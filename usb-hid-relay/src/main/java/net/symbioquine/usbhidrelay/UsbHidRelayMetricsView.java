@@ -0,0 +1,166 @@
+package net.symbioquine.usbhidrelay;
+
+import static net.symbioquine.usbhidrelay.UsbHidRelayCommandType.READ;
+import static net.symbioquine.usbhidrelay.UsbHidRelayCommandType.RESET;
+import static net.symbioquine.usbhidrelay.UsbHidRelayCommandType.WRITE;
+
+import java.time.Duration;
+
+/**
+ * Exposes {@link UsbHidRelayMetrics} through {@link UsbHidRelayMetricsMXBean}.
+ */
+class UsbHidRelayMetricsView implements UsbHidRelayMetricsMXBean {
+  private static final double P99 = 99;
+
+  private final UsbHidRelayMetrics metrics;
+
+  UsbHidRelayMetricsView(UsbHidRelayMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public long getReadCount() {
+    return metrics.latency(READ).count();
+  }
+
+  @Override
+  public long getReadFailureCount() {
+    return metrics.failureCount(READ);
+  }
+
+  @Override
+  public long getReadLatencyMeanMicros() {
+    return micros(metrics.latency(READ).meanTime());
+  }
+
+  @Override
+  public long getReadLatencyP99Micros() {
+    return micros(metrics.latency(READ).percentile(P99));
+  }
+
+  @Override
+  public long getReadLatencyMaxMicros() {
+    return micros(metrics.latency(READ).maxTime());
+  }
+
+  @Override
+  public long getWriteCount() {
+    return metrics.latency(WRITE).count();
+  }
+
+  @Override
+  public long getWriteFailureCount() {
+    return metrics.failureCount(WRITE);
+  }
+
+  @Override
+  public long getWriteLatencyMeanMicros() {
+    return micros(metrics.latency(WRITE).meanTime());
+  }
+
+  @Override
+  public long getWriteLatencyP99Micros() {
+    return micros(metrics.latency(WRITE).percentile(P99));
+  }
+
+  @Override
+  public long getWriteLatencyMaxMicros() {
+    return micros(metrics.latency(WRITE).maxTime());
+  }
+
+  @Override
+  public long getResetCount() {
+    return metrics.latency(RESET).count();
+  }
+
+  @Override
+  public long getResetFailureCount() {
+    return metrics.failureCount(RESET);
+  }
+
+  @Override
+  public long getRetryCount() {
+    long retries = 0;
+    for (UsbHidRelayCommandType commandType : UsbHidRelayCommandType.values()) {
+      retries += metrics.retryCount(commandType);
+    }
+    return retries;
+  }
+
+  @Override
+  public long getTimeoutCount() {
+    long timeouts = 0;
+    for (UsbHidRelayCommandType commandType : UsbHidRelayCommandType.values()) {
+      timeouts += metrics.timeoutCount(commandType);
+    }
+    return timeouts;
+  }
+
+  @Override
+  public long getRejectionCount() {
+    long rejections = 0;
+    for (UsbHidRelayCommandType commandType : UsbHidRelayCommandType.values()) {
+      rejections += metrics.rejectionCount(commandType);
+    }
+    return rejections;
+  }
+
+  @Override
+  public long getCircuitOpenCount() {
+    return metrics.circuitOpenCount();
+  }
+
+  @Override
+  public long getFailedVerificationCount() {
+    return metrics.failedVerificationCount();
+  }
+
+  @Override
+  public long getDeferredWriteCount() {
+    return metrics.deferredWriteCount();
+  }
+
+  @Override
+  public long getCoalescedWriteCount() {
+    return metrics.coalescedWriteCount();
+  }
+
+  @Override
+  public long getDroppedWriteCount() {
+    return metrics.droppedWriteCount();
+  }
+
+  @Override
+  public int getInFlightCommands() {
+    return metrics.inFlightCommands();
+  }
+
+  @Override
+  public long getPipeOpenCount() {
+    return metrics.pipeOpenCount();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return metrics.bytesSent();
+  }
+
+  @Override
+  public long getBytesReceived() {
+    return metrics.bytesReceived();
+  }
+
+  @Override
+  public long getShortTransferCount() {
+    return metrics.shortTransferCount();
+  }
+
+  @Override
+  public long getFailedTransferCount() {
+    return metrics.failedTransferCount();
+  }
+
+  private static long micros(Duration duration) {
+    return duration.toNanos() / 1000;
+  }
+}
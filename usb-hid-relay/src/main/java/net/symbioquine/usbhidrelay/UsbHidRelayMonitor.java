@@ -0,0 +1,230 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * Polls a relay for changes to its switch states, e.g. made by hand or by another process, and
+ * notifies listeners of them.
+ *
+ * <p>
+ * Every listener shares the same poll. The poll interval adapts to how often the switches change;
+ * it drops to the minimum interval after a change and doubles with every poll which finds nothing
+ * changed, up to the maximum interval. Polls which find nothing changed compare the raw masks and
+ * do not allocate.
+ *
+ * <pre>
+ * UsbHidRelayMonitor monitor = UsbHidRelayMonitor.create(relay);
+ *
+ * monitor.addListener(change -&gt; System.out.println("Switches turned on: " + Integer.toBinaryString(change.turnedOn())));
+ * </pre>
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayMonitor implements AutoCloseable {
+  private static final Duration DEFAULT_MIN_INTERVAL = Duration.ofMillis(50);
+  private static final Duration DEFAULT_MAX_INTERVAL = Duration.ofSeconds(1);
+
+  UsbHidRelay relay;
+  long minIntervalNanos;
+  long maxIntervalNanos;
+  List<UsbHidRelaySwitchListener> listeners = new CopyOnWriteArrayList<>();
+  Thread pollingThread;
+
+  LongAdder polls = new LongAdder();
+  LongAdder changes = new LongAdder();
+  LongAdder failedPolls = new LongAdder();
+  LongAdder failedListenerCalls = new LongAdder();
+
+  @NonFinal
+  volatile int mask = UsbHidRelay.NO_MASK;
+  @NonFinal
+  long intervalNanos;
+  @NonFinal
+  volatile boolean closed;
+
+  private UsbHidRelayMonitor(UsbHidRelay relay, Duration minInterval, Duration maxInterval) {
+    if (minInterval.isNegative() || minInterval.isZero()) {
+      throw new IllegalArgumentException("Minimum poll interval must be positive. Instead got: " + minInterval);
+    }
+    if (maxInterval.compareTo(minInterval) < 0) {
+      throw new IllegalArgumentException("Maximum poll interval must not be less than the minimum. Instead got: " + maxInterval);
+    }
+    this.relay = relay;
+    this.minIntervalNanos = minInterval.toNanos();
+    this.maxIntervalNanos = maxInterval.toNanos();
+    this.intervalNanos = minIntervalNanos;
+
+    this.pollingThread = new Thread(this::run, "usb-hid-relay-monitor");
+    pollingThread.setDaemon(true);
+  }
+
+  /**
+   * @return a running monitor for the given relay which polls between every 50 milliseconds and
+   *         every second.
+   */
+  public static UsbHidRelayMonitor create(@NonNull UsbHidRelay relay) {
+    return create(relay, DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL);
+  }
+
+  /**
+   * @return a running monitor for the given relay which polls between every minimum interval and
+   *         every maximum interval.
+   */
+  public static UsbHidRelayMonitor create(@NonNull UsbHidRelay relay, @NonNull Duration minInterval, @NonNull Duration maxInterval) {
+    UsbHidRelayMonitor monitor = new UsbHidRelayMonitor(relay, minInterval, maxInterval);
+    monitor.pollingThread.start();
+    return monitor;
+  }
+
+  /**
+   * @return a running monitor for the relay wrapped by the given {@link EnumeratedUsbHidRelay}
+   *         which polls between every 50 milliseconds and every second.
+   */
+  public static UsbHidRelayMonitor create(@NonNull EnumeratedUsbHidRelay<?> relay) {
+    return create(relay.hidRelay());
+  }
+
+  /**
+   * Notify the given listener of every change observed from now on.
+   */
+  public void addListener(@NonNull UsbHidRelaySwitchListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Notify the given listener of every change to an enumerated switch observed from now on.
+   *
+   * @param relay the enumerated relay wrapping the monitored relay.
+   * @return the listener which was added, to be passed to
+   *         {@link #removeListener(UsbHidRelaySwitchListener)}.
+   */
+  public <T extends Enum<T> & UsbHidRelaySwitchId> UsbHidRelaySwitchListener addListener(@NonNull EnumeratedUsbHidRelay<T> relay,
+      @NonNull EnumeratedUsbHidRelaySwitchListener<T> listener) {
+    if (relay.hidRelay() != this.relay) {
+      throw new IllegalArgumentException("The enumerated relay must wrap the monitored relay.");
+    }
+
+    UsbHidRelaySwitchListener switchListener = change -> {
+      int changedBits = change.changedBits();
+      while (changedBits != 0) {
+        int switchId = Integer.numberOfTrailingZeros(changedBits);
+        changedBits &= changedBits - 1;
+
+        T enumeratedSwitchId = relay.switchIdOf(switchId);
+        if (enumeratedSwitchId != null) {
+          listener.switchChanged(enumeratedSwitchId, change.isOn(switchId), change);
+        }
+      }
+    };
+    addListener(switchListener);
+    return switchListener;
+  }
+
+  /**
+   * Stop notifying the given listener.
+   */
+  public void removeListener(@NonNull UsbHidRelaySwitchListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * @return the switch states observed by the last successful poll, or -1 if there has not been
+   *         one.
+   */
+  public int mask() {
+    return mask;
+  }
+
+  /**
+   * @return the number of successful polls.
+   */
+  public long pollCount() {
+    return polls.sum();
+  }
+
+  /**
+   * @return the number of polls which observed a change.
+   */
+  public long changeCount() {
+    return changes.sum();
+  }
+
+  /**
+   * @return the number of polls which failed to read the switch states. The monitor keeps polling
+   *         at the maximum interval after a failure.
+   */
+  public long failedPollCount() {
+    return failedPolls.sum();
+  }
+
+  /**
+   * @return the number of times a listener threw an exception. Other listeners are still notified.
+   */
+  public long failedListenerCallCount() {
+    return failedListenerCalls.sum();
+  }
+
+  /**
+   * Stop polling. The relay is not closed.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(pollingThread);
+
+    if (Thread.currentThread() != pollingThread) {
+      try {
+        pollingThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void run() {
+    while (!closed) {
+      poll();
+      LockSupport.parkNanos(this, intervalNanos);
+    }
+  }
+
+  private void poll() {
+    int current;
+    try {
+      current = relay.readMask();
+    } catch (RuntimeException e) {
+      failedPolls.increment();
+      intervalNanos = maxIntervalNanos;
+      return;
+    }
+    polls.increment();
+
+    int previous = mask;
+    mask = current;
+
+    if (previous == UsbHidRelay.NO_MASK || (previous ^ current) == 0) {
+      intervalNanos = Math.min(intervalNanos * 2, maxIntervalNanos);
+      return;
+    }
+
+    changes.increment();
+    intervalNanos = minIntervalNanos;
+
+    UsbHidRelaySwitchChange change = new UsbHidRelaySwitchChange(previous, current, current != relay.lastWrittenMask());
+    for (UsbHidRelaySwitchListener listener : listeners) {
+      try {
+        listener.switchesChanged(change);
+      } catch (RuntimeException e) {
+        failedListenerCalls.increment();
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Optional settings which control how a {@link UsbHidRelay} talks to the device.
+ */
+@Builder
+@Getter
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayOptions {
+  /**
+   * @return the options used when none are specified.
+   */
+  public static UsbHidRelayOptions defaults() {
+    return builder().build();
+  }
+
+  /**
+   * How long the USB pipes are kept open. Defaults to {@link UsbHidRelayPipeMode#PER_COMMAND}.
+   */
+  @NonNull
+  @Builder.Default
+  UsbHidRelayPipeMode pipeMode = UsbHidRelayPipeMode.PER_COMMAND;
+
+  /**
+   * How long the last known switch states may be relied upon instead of being read back from the
+   * device before changing a subset of the switches. Every write refreshes the known states. When
+   * {@code null}, which is the default, the states are always read from the device first.
+   */
+  Duration switchStateCacheMaxAge;
+
+  /**
+   * The maximum number of asynchronous commands which may be waiting for or undergoing transfer at
+   * once. Further asynchronous commands are rejected until some complete. Defaults to 64.
+   */
+  @Builder.Default
+  int maxPendingAsyncCommands = 64;
+
+  /**
+   * The executor used to complete the futures returned by asynchronous commands. Defaults to
+   * {@link ForkJoinPool#commonPool()}.
+   */
+  @NonNull
+  @Builder.Default
+  Executor asyncCompletionExecutor = ForkJoinPool.commonPool();
+
+  /**
+   * Whether blocking changes to the switch states are queued with the asynchronous commands so that
+   * concurrent changes can be merged into a single write. Defaults to false, in which case every
+   * blocking change is written separately.
+   */
+  boolean coalesceWrites;
+
+  /**
+   * Limits how often the switches are changed. Changes which would break the limit are held back,
+   * merged with later changes and written once the limit allows, so blocking changes may wait. The
+   * changes of {@link EnumeratedUsbHidRelayBatch batches} and {@link UsbHidRelayScheduler scheduled
+   * programs} are limited too. Restoring the last mask of a relay from a journal or after it is
+   * plugged back in is not. Defaults to {@link UsbHidRelayRateLimit#none()}.
+   *
+   * @see UsbHidRelayMetrics#coalescedWriteCount()
+   */
+  @NonNull
+  @Builder.Default
+  UsbHidRelayRateLimit rateLimit = UsbHidRelayRateLimit.none();
+
+  /**
+   * Receives measurements of every command sent to the relay and the USB transfers carrying them.
+   * Defaults to {@link UsbHidRelayMetricsListener#NOOP}, in which case commands are not timed.
+   *
+   * @see UsbHidRelayMetrics
+   */
+  @NonNull
+  @Builder.Default
+  UsbHidRelayMetricsListener metricsListener = UsbHidRelayMetricsListener.NOOP;
+
+  /**
+   * How long a single transfer to or from the relay may take before it is aborted and fails with a
+   * {@link UsbHidRelayTimeoutException}. When {@code null}, which is the default, transfers never
+   * time out. With a timeout, blocking commands submit their transfers asynchronously so that they
+   * can be aborted.
+   */
+  Duration transferTimeout;
+
+  /**
+   * How failed commands are retried. Defaults to {@link UsbHidRelayRetryPolicy#none()}.
+   */
+  @NonNull
+  @Builder.Default
+  UsbHidRelayRetryPolicy retryPolicy = UsbHidRelayRetryPolicy.none();
+
+  /**
+   * Whether every write is followed by reading the switch states back to confirm that it took
+   * effect. A write which did not take effect fails with a {@link UsbHidRelayVerificationException}
+   * and may be retried. Defaults to false.
+   */
+  boolean verifyWrites;
+
+  /**
+   * The number of consecutive failed commands after which further commands fail immediately with a
+   * {@link UsbHidRelayCircuitOpenException} for {@link #circuitBreakerOpenDuration()}. After that the
+   * next command is attempted, and the circuit breaker opens again if it fails. Defaults to zero,
+   * which disables the circuit breaker.
+   */
+  int circuitBreakerThreshold;
+
+  /**
+   * How long commands fail immediately once the circuit breaker opens. Defaults to five seconds.
+   */
+  @NonNull
+  @Builder.Default
+  Duration circuitBreakerOpenDuration = Duration.ofSeconds(5);
+
+  /**
+   * Records every mask written by relays acquired through discovery or a {@link UsbHidRelayPool},
+   * and restores each such relay to the last mask recorded for its device as it is acquired. When
+   * {@code null}, which is the default, nothing is recorded.
+   */
+  UsbHidRelayJournal journal;
+
+  /**
+   * Remembers where relays were found so that
+   * {@link UsbHidRelay#findAndAcquireFirstRelay(UsbHidRelaySize, UsbHidRelayOptions)} and
+   * {@link UsbHidRelayPool#discover()} can look there first instead of walking every hub. When
+   * {@code null}, which is the default, the hubs are always walked.
+   */
+  UsbHidRelayDiscoveryCache discoveryCache;
+}
@@ -0,0 +1,18 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Controls how long the USB pipes used to talk to a relay are kept open.
+ */
+public enum UsbHidRelayPipeMode {
+  /**
+   * Open and close a pipe around every transfer. This is the least efficient mode but never holds
+   * a pipe open while the relay is idle.
+   */
+  PER_COMMAND,
+
+  /**
+   * Open the IN and OUT pipes on first use and keep them open until the relay is closed. A pipe
+   * which fails a transfer is discarded and transparently reopened by the next transfer.
+   */
+  PERSISTENT
+}
@@ -0,0 +1,520 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Collections.unmodifiableSet;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbInterface;
+import javax.usb.UsbNotActiveException;
+import javax.usb.UsbServices;
+import javax.usb.event.UsbServicesEvent;
+import javax.usb.event.UsbServicesListener;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * Acquires and holds every relay attached to the host so that each can be addressed by its
+ * {@link UsbHidRelayDeviceId} without walking the hubs again.
+ *
+ * <p>
+ * Operations spanning several relays are issued to all of them concurrently using their
+ * asynchronous commands.
+ *
+ * <p>
+ * Once {@link #startHotplugMonitoring()} has been called, relays which are unplugged stay in the
+ * pool. Commands sent to them fail with a {@link UsbHidRelayDisconnectedException} until they are
+ * plugged back in, at which point their interface is claimed again and the last mask written to
+ * them is restored. The same {@link UsbHidRelay} instances keep working throughout.
+ *
+ * <p>
+ * Relays of every {@link RelayProtocol} are acquired. Relays with fewer switches than the size of
+ * the pool are acquired with their own size.
+ *
+ * @see DiscoveredUsbHidRelay#relaySize()
+ */
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayPool implements AutoCloseable {
+  @Getter
+  UsbHidRelaySize relaySize;
+  UsbHidRelayOptions options;
+  ConcurrentMap<UsbHidRelayDeviceId, PooledRelay> relays = new ConcurrentHashMap<>();
+  UsbServicesListener hotplugListener = new HotplugListener();
+  @NonFinal
+  UsbServices monitoredUsbServices;
+
+  LongAdder outages = new LongAdder();
+  LongAdder reconnects = new LongAdder();
+  LongAdder failedReconnects = new LongAdder();
+  LongAdder failedAcquisitions = new LongAdder();
+  AtomicLong lastReconnectLatencyNanos = new AtomicLong();
+  AtomicLong totalOutageNanos = new AtomicLong();
+
+  private UsbHidRelayPool(@NonNull UsbHidRelaySize relaySize, @NonNull UsbHidRelayOptions options) {
+    this.relaySize = relaySize;
+    this.options = options;
+  }
+
+  /**
+   * @return an empty pool which acquires relays with the given size and default options.
+   * @see #discover()
+   */
+  public static UsbHidRelayPool create(@NonNull UsbHidRelaySize relaySize) {
+    return create(relaySize, UsbHidRelayOptions.defaults());
+  }
+
+  /**
+   * @return an empty pool which acquires relays with the given size and options.
+   * @see #discover()
+   */
+  public static UsbHidRelayPool create(@NonNull UsbHidRelaySize relaySize, @NonNull UsbHidRelayOptions options) {
+    return new UsbHidRelayPool(relaySize, options);
+  }
+
+  /**
+   * Walk every hub attached to the host and acquire any relays which are not already in the pool.
+   * Relays which cannot be acquired, e.g. because another process has claimed them, are left out of
+   * the pool and counted by {@link #failedAcquisitionCount()}, so a later call may try them again.
+   *
+   * @return the ids of the newly acquired relays.
+   */
+  public synchronized List<UsbHidRelayDeviceId> discover() {
+    List<UsbHidRelayDeviceId> acquired = new ArrayList<>();
+
+    List<DiscoveredUsbHidRelay> discoveredRelays = options.discoveryCache() == null ? UsbHidRelayDiscovery.findAllRelays()
+        : UsbHidRelayDiscovery.findAllRelays(options.discoveryCache());
+    for (DiscoveredUsbHidRelay discovered : discoveredRelays) {
+      if (relays.containsKey(discovered.id())) {
+        continue;
+      }
+
+      try {
+        relays.put(discovered.id(), acquire(discovered));
+      } catch (RuntimeException e) {
+        failedAcquisitions.increment();
+        continue;
+      }
+      acquired.add(discovered.id());
+    }
+
+    return acquired;
+  }
+
+  /**
+   * Start listening for relays being plugged in and unplugged. Relays in the pool which are
+   * unplugged are reconnected when plugged back in and relays which were not in the pool are
+   * acquired when plugged in.
+   */
+  public synchronized void startHotplugMonitoring() {
+    if (monitoredUsbServices != null) {
+      return;
+    }
+
+    monitoredUsbServices = UsbHidRelayDiscovery.usbServices();
+    monitoredUsbServices.addUsbServicesListener(hotplugListener);
+  }
+
+  /**
+   * @return whether the relay with the given id is in the pool and currently plugged in.
+   */
+  public boolean isConnected(@NonNull UsbHidRelayDeviceId id) {
+    PooledRelay pooled = relays.get(id);
+    return pooled != null && pooled.isConnected();
+  }
+
+  /**
+   * @return the number of times a relay in the pool has been unplugged.
+   */
+  public long outageCount() {
+    return outages.sum();
+  }
+
+  /**
+   * @return the number of times a relay in the pool has been reconnected after being plugged back
+   *         in.
+   */
+  public long reconnectCount() {
+    return reconnects.sum();
+  }
+
+  /**
+   * @return the number of times reconnecting a relay which was plugged back in failed.
+   */
+  public long failedReconnectCount() {
+    return failedReconnects.sum();
+  }
+
+  /**
+   * @return the number of times acquiring a relay which was discovered or plugged in failed.
+   */
+  public long failedAcquisitionCount() {
+    return failedAcquisitions.sum();
+  }
+
+  /**
+   * @return the time from the most recent reconnected relay being reported as plugged in until its
+   *         last mask had been restored.
+   */
+  public Duration lastReconnectLatency() {
+    return Duration.ofNanos(lastReconnectLatencyNanos.get());
+  }
+
+  /**
+   * @return the total time relays in the pool have spent unplugged before being reconnected.
+   */
+  public Duration totalOutageTime() {
+    return Duration.ofNanos(totalOutageNanos.get());
+  }
+
+  /**
+   * @return the ids of all the relays in the pool.
+   */
+  public Set<UsbHidRelayDeviceId> ids() {
+    return unmodifiableSet(new LinkedHashSet<>(relays.keySet()));
+  }
+
+  /**
+   * @return the relay in the pool with the given id, if any.
+   */
+  public Optional<UsbHidRelay> relay(@NonNull UsbHidRelayDeviceId id) {
+    return Optional.ofNullable(relays.get(id)).map(PooledRelay::relay);
+  }
+
+  /**
+   * @return the relay in the pool reporting the given serial number, if any.
+   */
+  public Optional<UsbHidRelay> relayWithSerialNumber(@NonNull String serialNumber) {
+    return relays.entrySet().stream().filter(entry -> entry.getKey().serialNumber().filter(serialNumber::equals).isPresent())
+        .map(entry -> entry.getValue().relay()).findFirst();
+  }
+
+  /**
+   * Concurrently read the switch masks of all the relays in the pool.
+   *
+   * @return a future with the mask of each relay.
+   * @see UsbHidRelay#readMaskAsync()
+   */
+  public CompletableFuture<Map<UsbHidRelayDeviceId, Integer>> readMasksAsync() {
+    Map<UsbHidRelayDeviceId, CompletableFuture<Integer>> reads = new HashMap<>();
+    relays.forEach((id, pooled) -> reads.put(id, pooled.relay().readMaskAsync()));
+
+    return CompletableFuture.allOf(reads.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+      Map<UsbHidRelayDeviceId, Integer> masks = new HashMap<>();
+      reads.forEach((id, read) -> masks.put(id, read.join()));
+      return masks;
+    });
+  }
+
+  /**
+   * Concurrently write switch masks to several relays in the pool.
+   *
+   * @param masks the mask to be written to each relay.
+   * @return a future which completes once every mask has been written, or fails if any write fails.
+   * @throws IllegalArgumentException if any of the ids is not in the pool.
+   * @see UsbHidRelay#writeMaskAsync(int)
+   */
+  public CompletableFuture<Void> writeMasksAsync(@NonNull Map<UsbHidRelayDeviceId, Integer> masks) {
+    List<CompletableFuture<Void>> writes = new ArrayList<>(masks.size());
+    masks.forEach((id, mask) -> writes.add(requireRelay(id).writeMaskAsync(mask)));
+
+    return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * Concurrently read the switch masks of all the relays in the pool and wait for the results.
+   *
+   * @see #readMasksAsync()
+   */
+  public Map<UsbHidRelayDeviceId, Integer> readMasks() {
+    return RelayCommandQueue.await(readMasksAsync());
+  }
+
+  /**
+   * Concurrently write switch masks to several relays in the pool and wait for them to be written.
+   *
+   * @see #writeMasksAsync(Map)
+   */
+  public void writeMasks(@NonNull Map<UsbHidRelayDeviceId, Integer> masks) {
+    RelayCommandQueue.await(writeMasksAsync(masks));
+  }
+
+  /**
+   * Close a relay and release its interface, removing it from the pool.
+   *
+   * @return whether a relay with the given id was in the pool.
+   */
+  public synchronized boolean release(@NonNull UsbHidRelayDeviceId id) {
+    PooledRelay pooled = relays.remove(id);
+    if (pooled == null) {
+      return false;
+    }
+    pooled.close();
+    return true;
+  }
+
+  /**
+   * Stop monitoring hotplug events, close every relay in the pool and release their interfaces.
+   */
+  @Override
+  public synchronized void close() {
+    if (monitoredUsbServices != null) {
+      monitoredUsbServices.removeUsbServicesListener(hotplugListener);
+      monitoredUsbServices = null;
+    }
+
+    RuntimeException failure = null;
+    for (UsbHidRelayDeviceId id : new ArrayList<>(relays.keySet())) {
+      try {
+        release(id);
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private UsbHidRelay requireRelay(UsbHidRelayDeviceId id) {
+    PooledRelay pooled = relays.get(id);
+    if (pooled == null) {
+      throw new IllegalArgumentException("No relay with id " + id + " is in the pool.");
+    }
+    return pooled.relay();
+  }
+
+  private PooledRelay acquire(DiscoveredUsbHidRelay discovered) {
+    UsbInterface usbInterface = discovered.claimInterface();
+
+    RelayProtocol protocol = discovered.protocol();
+    try {
+      ReconnectableRelayTransport transport = new ReconnectableRelayTransport(discovered.id().toString(),
+          UsbHidRelay.createUsbTransport(usbInterface, protocol, options));
+
+      return new PooledRelay(UsbHidRelay.create(transport, protocol, discovered.fitRelaySize(relaySize), options, discovered.id()),
+          transport, discovered.usbDevice(), usbInterface);
+    } catch (RuntimeException e) {
+      DiscoveredUsbHidRelay.releaseAfterFailure(usbInterface, e);
+      throw e;
+    }
+  }
+
+  synchronized void deviceDetached(UsbDevice usbDevice) {
+    for (PooledRelay pooled : relays.values()) {
+      if (pooled.isConnected() && pooled.usbDevice == usbDevice) {
+        pooled.disconnect();
+        outages.increment();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reconnect or acquire a relay which was plugged in. Runs on the hotplug thread, so failures are
+   * counted rather than thrown and the last mask of a reconnected relay is restored asynchronously
+   * without holding the pool.
+   */
+  void deviceAttached(UsbDevice usbDevice) {
+    if (!UsbHidRelayDiscovery.isRelay(usbDevice)) {
+      return;
+    }
+
+    long attachedAtNanos = System.nanoTime();
+
+    Optional<PooledRelay> reconnected = reconnectOrAcquire(usbDevice);
+    if (!reconnected.isPresent()) {
+      return;
+    }
+
+    PooledRelay pooled = reconnected.get();
+    int lastWrittenMask = pooled.relay().lastWrittenMask();
+
+    CompletableFuture<Void> restored;
+    try {
+      restored = lastWrittenMask == UsbHidRelay.NO_MASK ? CompletableFuture.completedFuture(null)
+          : pooled.relay().restoreMaskAsync(lastWrittenMask);
+    } catch (RuntimeException e) {
+      failedReconnects.increment();
+      return;
+    }
+
+    restored.whenComplete((result, failure) -> {
+      if (failure != null) {
+        failedReconnects.increment();
+        return;
+      }
+
+      long reconnectedAtNanos = System.nanoTime();
+      reconnects.increment();
+      lastReconnectLatencyNanos.set(reconnectedAtNanos - attachedAtNanos);
+      totalOutageNanos.addAndGet(reconnectedAtNanos - pooled.disconnectedAtNanos);
+    });
+  }
+
+  /**
+   * Give a relay which was plugged back in its new device and interface, or acquire a relay which
+   * was not in the pool. Claimed interfaces are released again if either fails.
+   *
+   * @return the relay which was reconnected, if any.
+   */
+  private synchronized Optional<PooledRelay> reconnectOrAcquire(UsbDevice usbDevice) {
+    DiscoveredUsbHidRelay discovered;
+    try {
+      discovered = UsbHidRelayDiscovery.toDiscoveredRelay(usbDevice);
+    } catch (RuntimeException e) {
+      failedAcquisitions.increment();
+      return Optional.empty();
+    }
+
+    Optional<UsbHidRelayDeviceId> disconnected = findDisconnected(discovered.id());
+    if (!disconnected.isPresent()) {
+      if (!relays.containsKey(discovered.id())) {
+        try {
+          relays.put(discovered.id(), acquire(discovered));
+        } catch (RuntimeException e) {
+          failedAcquisitions.increment();
+        }
+      }
+      return Optional.empty();
+    }
+
+    UsbHidRelayDeviceId previousId = disconnected.get();
+    PooledRelay pooled = relays.get(previousId);
+    UsbInterface usbInterface;
+    try {
+      usbInterface = discovered.claimInterface();
+    } catch (RuntimeException e) {
+      failedReconnects.increment();
+      return Optional.empty();
+    }
+
+    try {
+      pooled.reconnect(discovered.id(), usbDevice, usbInterface, UsbHidRelay.createUsbTransport(usbInterface, discovered.protocol(), options));
+    } catch (RuntimeException e) {
+      DiscoveredUsbHidRelay.releaseAfterFailure(usbInterface, e);
+      failedReconnects.increment();
+      return Optional.empty();
+    }
+
+    // A relay found by its serial number may have been plugged back in at another port.
+    if (!previousId.equals(discovered.id())) {
+      relays.remove(previousId);
+      relays.put(discovered.id(), pooled);
+      if (options.journal() != null) {
+        pooled.relay().journalRecorder(options.journal().recorder(discovered.id()));
+      }
+    }
+    return Optional.of(pooled);
+  }
+
+  /**
+   * Find the disconnected relay which was plugged in at the same port or, failing that, which
+   * reported the same serial number.
+   *
+   * @return the id the relay is in the pool under.
+   */
+  private Optional<UsbHidRelayDeviceId> findDisconnected(UsbHidRelayDeviceId id) {
+    PooledRelay samePort = relays.get(id);
+    if (samePort != null) {
+      return samePort.isConnected() ? Optional.empty() : Optional.of(id);
+    }
+
+    if (!id.serialNumber().isPresent()) {
+      return Optional.empty();
+    }
+
+    return relays.entrySet().stream().filter(entry -> !entry.getValue().isConnected())
+        .filter(entry -> entry.getKey().serialNumber().equals(id.serialNumber())).map(Map.Entry::getKey).findFirst();
+  }
+
+  private class HotplugListener implements UsbServicesListener {
+    @Override
+    public void usbDeviceAttached(UsbServicesEvent event) {
+      deviceAttached(event.getUsbDevice());
+    }
+
+    @Override
+    public void usbDeviceDetached(UsbServicesEvent event) {
+      deviceDetached(event.getUsbDevice());
+    }
+  }
+
+  private static class PooledRelay implements AutoCloseable {
+    private final UsbHidRelay relay;
+    private final ReconnectableRelayTransport transport;
+
+    private volatile UsbDevice usbDevice;
+    private volatile UsbInterface usbInterface;
+    private volatile long disconnectedAtNanos;
+
+    PooledRelay(UsbHidRelay relay, ReconnectableRelayTransport transport, UsbDevice usbDevice, UsbInterface usbInterface) {
+      this.relay = relay;
+      this.transport = transport;
+      this.usbDevice = usbDevice;
+      this.usbInterface = usbInterface;
+    }
+
+    UsbHidRelay relay() {
+      return relay;
+    }
+
+    boolean isConnected() {
+      return transport.isConnected();
+    }
+
+    void disconnect() {
+      transport.disconnect();
+      relay.forgetSwitchStates();
+      usbInterface = null;
+      disconnectedAtNanos = System.nanoTime();
+    }
+
+    void reconnect(UsbHidRelayDeviceId id, UsbDevice usbDevice, UsbInterface usbInterface, RelayTransport usbTransport) {
+      transport.reconnect(id.toString(), usbTransport);
+      this.usbDevice = usbDevice;
+      this.usbInterface = usbInterface;
+    }
+
+    @Override
+    public void close() {
+      try {
+        relay.close();
+      } finally {
+        UsbInterface claimedInterface = usbInterface;
+        usbInterface = null;
+        if (claimedInterface != null) {
+          try {
+            claimedInterface.release();
+          } catch (UsbNotActiveException | UsbDisconnectedException | UsbException e) {
+            throw new RuntimeException("Failed to release relay usb interface.", e);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * A timed pattern of switch changes which can be run by a {@link UsbHidRelayScheduler}.
+ *
+ * <p>
+ * A program is a list of edges, each turning some switches on and others off at an offset from
+ * the start of the program. Programs may repeat at a fixed rate, in which case every repetition
+ * starts a whole number of periods after the first so that they do not drift.
+ *
+ * <pre>
+ * UsbHidRelayProgram program = UsbHidRelayProgram.builder()
+ *     .on(3)
+ *     .after(Duration.ofMillis(150)).off(3)
+ *     .repeatEvery(Duration.ofSeconds(1))
+ *     .build();
+ * </pre>
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayProgram {
+  long[] offsetsNanos;
+  int[] setBits;
+  int[] clearBits;
+  long periodNanos;
+
+  private UsbHidRelayProgram(long[] offsetsNanos, int[] setBits, int[] clearBits, long periodNanos) {
+    this.offsetsNanos = offsetsNanos;
+    this.setBits = setBits;
+    this.clearBits = clearBits;
+    this.periodNanos = periodNanos;
+  }
+
+  /**
+   * @return a builder for a program starting with an empty list of edges.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @return a program which turns a switch on and then turns it off again after the given width.
+   */
+  public static UsbHidRelayProgram pulse(int switchId, @NonNull Duration width) {
+    return builder().on(switchId).after(width).off(switchId).build();
+  }
+
+  /**
+   * @return a program which turns on the given switches one after another, the given spacing apart.
+   */
+  public static UsbHidRelayProgram stagger(@NonNull Duration spacing, @NonNull int... switchIds) {
+    Builder builder = builder();
+    for (int idx = 0; idx < switchIds.length; idx++) {
+      if (idx > 0) {
+        builder.after(spacing);
+      }
+      builder.on(switchIds[idx]);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return the number of edges in each repetition of the program.
+   */
+  public int edgeCount() {
+    return offsetsNanos.length;
+  }
+
+  /**
+   * @return the period the program repeats with, or zero if it runs once.
+   */
+  public Duration period() {
+    return Duration.ofNanos(periodNanos);
+  }
+
+  long offsetNanos(int edge) {
+    return offsetsNanos[edge];
+  }
+
+  int setBits(int edge) {
+    return setBits[edge];
+  }
+
+  int clearBits(int edge) {
+    return clearBits[edge];
+  }
+
+  long periodNanos() {
+    return periodNanos;
+  }
+
+  /**
+   * @return a mask of every switch the program changes.
+   */
+  int switchesMask() {
+    int mask = 0;
+    for (int edge = 0; edge < offsetsNanos.length; edge++) {
+      mask |= setBits[edge] | clearBits[edge];
+    }
+    return mask;
+  }
+
+  /**
+   * Builds a {@link UsbHidRelayProgram} one edge at a time. Edges are added at the current offset,
+   * which starts at zero and is moved with {@link #at(Duration)} and {@link #after(Duration)}.
+   * Changes added at the same offset form a single edge, with later changes to a switch replacing
+   * earlier ones.
+   */
+  public static class Builder {
+    private final TreeMap<Long, int[]> edgesByOffset = new TreeMap<>();
+    private long offsetNanos;
+    private long periodNanos;
+
+    private Builder() {
+    }
+
+    /**
+     * Move the current offset to the given time after the start of the program.
+     */
+    public Builder at(@NonNull Duration offset) {
+      if (offset.isNegative()) {
+        throw new IllegalArgumentException("Offset must not be negative. Instead got: " + offset);
+      }
+      offsetNanos = offset.toNanos();
+      return this;
+    }
+
+    /**
+     * Move the current offset forward by the given delay.
+     */
+    public Builder after(@NonNull Duration delay) {
+      if (delay.isNegative()) {
+        throw new IllegalArgumentException("Delay must not be negative. Instead got: " + delay);
+      }
+      offsetNanos += delay.toNanos();
+      return this;
+    }
+
+    /**
+     * Turn the given switch on at the current offset.
+     */
+    public Builder on(int switchId) {
+      return apply(toBit(switchId), 0);
+    }
+
+    /**
+     * Turn the given switch off at the current offset.
+     */
+    public Builder off(int switchId) {
+      return apply(0, toBit(switchId));
+    }
+
+    /**
+     * Turn the given switch on at the current offset.
+     */
+    public Builder on(@NonNull UsbHidRelaySwitchId switchId) {
+      return on(switchId.id());
+    }
+
+    /**
+     * Turn the given switch off at the current offset.
+     */
+    public Builder off(@NonNull UsbHidRelaySwitchId switchId) {
+      return off(switchId.id());
+    }
+
+    /**
+     * Turn on and off subsets of the switches at the current offset.
+     *
+     * @param setBits a mask of the switches to be turned on.
+     * @param clearBits a mask of the switches to be turned off.
+     */
+    public Builder apply(int setBits, int clearBits) {
+      if ((setBits & clearBits) != 0) {
+        throw new IllegalArgumentException("A switch cannot be turned both on and off by the same change. Instead got: 0x"
+            + Integer.toHexString(setBits & clearBits));
+      }
+
+      int[] edge = edgesByOffset.computeIfAbsent(offsetNanos, offset -> new int[2]);
+      edge[0] = (edge[0] & ~clearBits) | setBits;
+      edge[1] = (edge[1] & ~setBits) | clearBits;
+      return this;
+    }
+
+    /**
+     * Repeat the program at a fixed rate. The period must be longer than the offset of the last
+     * edge.
+     */
+    public Builder repeatEvery(@NonNull Duration period) {
+      if (period.isNegative() || period.isZero()) {
+        throw new IllegalArgumentException("Period must be positive. Instead got: " + period);
+      }
+      periodNanos = period.toNanos();
+      return this;
+    }
+
+    public UsbHidRelayProgram build() {
+      if (edgesByOffset.isEmpty()) {
+        throw new IllegalStateException("A program must change at least one switch.");
+      }
+      if (periodNanos != 0 && periodNanos <= edgesByOffset.lastKey()) {
+        throw new IllegalStateException("Period must be longer than the offset of the last edge. Instead got: " + Duration.ofNanos(periodNanos));
+      }
+
+      long[] offsetsNanos = new long[edgesByOffset.size()];
+      int[] setBits = new int[edgesByOffset.size()];
+      int[] clearBits = new int[edgesByOffset.size()];
+
+      int idx = 0;
+      for (Map.Entry<Long, int[]> edge : edgesByOffset.entrySet()) {
+        offsetsNanos[idx] = edge.getKey();
+        setBits[idx] = edge.getValue()[0];
+        clearBits[idx] = edge.getValue()[1];
+        idx++;
+      }
+      return new UsbHidRelayProgram(offsetsNanos, setBits, clearBits, periodNanos);
+    }
+
+    private static int toBit(int switchId) {
+      if (switchId < 0 || switchId >= Integer.SIZE) {
+        throw new IllegalArgumentException("Switch id must be in the range 0 to " + (Integer.SIZE - 1) + " instead got: " + switchId);
+      }
+      return 1 << switchId;
+    }
+  }
+}
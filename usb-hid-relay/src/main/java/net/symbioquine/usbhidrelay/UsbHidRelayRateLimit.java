@@ -0,0 +1,80 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Limits how often a {@link UsbHidRelay} changes its switches, protecting the relay contacts and the
+ * USB link from callers which change the switches faster than they usefully can.
+ *
+ * <p>
+ * Changes which would break a limit are held back and written as soon as the limit allows. Later
+ * changes to the same switches replace them while they are held back, so the last change wins and
+ * a switch flapped back to its current state is not written at all.
+ */
+@Builder
+@Getter
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayRateLimit {
+  /**
+   * @return a limit which lets every change through immediately.
+   */
+  public static UsbHidRelayRateLimit none() {
+    return builder().build();
+  }
+
+  /**
+   * The shortest time each switch stays in a state before it is changed again. Defaults to zero.
+   */
+  @NonNull
+  @Builder.Default
+  Duration minDwell = Duration.ZERO;
+
+  /**
+   * The maximum number of times per second each switch may change state, enforced as an even
+   * spacing between changes. Defaults to zero, meaning no limit.
+   */
+  int maxEdgesPerSecond;
+
+  /**
+   * The maximum number of writes per second to the relay as a whole, enforced as an even spacing
+   * between writes. Defaults to zero, meaning no limit.
+   */
+  int maxWritesPerSecond;
+
+  /**
+   * @return whether any limit is set.
+   */
+  boolean isEnabled() {
+    return minEdgeIntervalNanos() > 0 || minWriteIntervalNanos() > 0;
+  }
+
+  /**
+   * @return the shortest time between two changes of the same switch.
+   */
+  long minEdgeIntervalNanos() {
+    return Math.max(minDwell.toNanos(), intervalNanos(maxEdgesPerSecond));
+  }
+
+  /**
+   * @return the shortest time between two writes to the relay.
+   */
+  long minWriteIntervalNanos() {
+    return intervalNanos(maxWritesPerSecond);
+  }
+
+  private static long intervalNanos(int perSecond) {
+    if (perSecond < 0) {
+      throw new IllegalArgumentException("Rates must not be negative. Instead got: " + perSecond);
+    }
+    return perSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / perSecond;
+  }
+}
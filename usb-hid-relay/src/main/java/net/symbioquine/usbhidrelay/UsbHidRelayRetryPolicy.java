@@ -0,0 +1,62 @@
+package net.symbioquine.usbhidrelay;
+
+import java.time.Duration;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Controls how a {@link UsbHidRelay} retries commands which fail. Commands are retried after an
+ * exponentially increasing backoff while the relay keeps hold of the device, so that other commands
+ * are not interleaved with the retries. Commands sent to a relay which is disconnected, closed or
+ * failing fast are not retried.
+ */
+@Builder
+@Getter
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayRetryPolicy {
+  /**
+   * @return a policy which never retries failed commands.
+   */
+  public static UsbHidRelayRetryPolicy none() {
+    return builder().build();
+  }
+
+  /**
+   * The maximum number of times a failed command is retried. Defaults to zero.
+   */
+  int maxRetries;
+
+  /**
+   * How long to wait before the first retry. Defaults to 10 milliseconds.
+   */
+  @NonNull
+  @Builder.Default
+  Duration initialBackoff = Duration.ofMillis(10);
+
+  /**
+   * The longest to wait before any retry. Defaults to one second.
+   */
+  @NonNull
+  @Builder.Default
+  Duration maxBackoff = Duration.ofSeconds(1);
+
+  /**
+   * The factor the backoff grows by after each retry. Defaults to 2.
+   */
+  @Builder.Default
+  double backoffMultiplier = 2;
+
+  /**
+   * @return how long to wait before the given zero-indexed retry.
+   */
+  long backoffNanos(int retry) {
+    double backoffNanos = initialBackoff.toNanos() * Math.pow(backoffMultiplier, retry);
+    return (long) Math.min(backoffNanos, maxBackoff.toNanos());
+  }
+}
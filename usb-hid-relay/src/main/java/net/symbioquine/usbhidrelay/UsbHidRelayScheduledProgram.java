@@ -0,0 +1,83 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * A {@link UsbHidRelayProgram} which has been scheduled to run by a {@link UsbHidRelayScheduler}.
+ */
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayScheduledProgram {
+  @Getter
+  UsbHidRelayProgram program;
+  long startNanos;
+  /**
+   * A future which completes once the last edge of a program which does not repeat has been
+   * written, or fails if writing any of its edges fails. Cancelling it cancels the program.
+   */
+  @Getter
+  CompletableFuture<Void> completion = new CompletableFuture<>();
+
+  @NonFinal
+  long iteration;
+  @NonFinal
+  int edge;
+
+  UsbHidRelayScheduledProgram(UsbHidRelayProgram program, long startNanos) {
+    this.program = program;
+    this.startNanos = startNanos;
+  }
+
+  /**
+   * Stop running the program. Edges which have already been written are not undone.
+   */
+  public void cancel() {
+    completion.cancel(false);
+  }
+
+  /**
+   * @return whether the program has finished, failed or been cancelled.
+   */
+  public boolean isDone() {
+    return completion.isDone();
+  }
+
+  /**
+   * @return the time the next edge is due, on the {@link System#nanoTime()} clock.
+   */
+  long nextDueNanos() {
+    return startNanos + iteration * program.periodNanos() + program.offsetNanos(edge);
+  }
+
+  int nextSetBits() {
+    return program.setBits(edge);
+  }
+
+  int nextClearBits() {
+    return program.clearBits(edge);
+  }
+
+  /**
+   * Move on to the next edge.
+   *
+   * @return false if the program has no more edges.
+   */
+  boolean advance() {
+    edge++;
+    if (edge < program.edgeCount()) {
+      return true;
+    }
+    if (program.periodNanos() == 0) {
+      return false;
+    }
+    edge = 0;
+    iteration++;
+    return true;
+  }
+}
@@ -0,0 +1,307 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Comparator.comparingLong;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+
+/**
+ * Runs {@link UsbHidRelayProgram}s against a relay on a dedicated timer thread.
+ *
+ * <p>
+ * The timer thread parks until shortly before the next edge is due and then spins, so edges are
+ * typically written well within a millisecond of when they were planned. Edges of any of the
+ * scheduled programs which fall due within the same merge window are written together as a single
+ * mask, provided they change different switches. Edges are applied to the switch states the relay
+ * instance last wrote or read successfully, rather than reading them back from the device before
+ * every write, so each write is a single USB transfer. After a failed write the states are read
+ * from the device before the next edges are applied.
+ *
+ * <p>
+ * The difference between when each edge was planned and when its mask started being written is
+ * recorded, see {@link #jitter()}.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelayScheduler implements AutoCloseable {
+  private static final Duration DEFAULT_MERGE_WINDOW = Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(500));
+  private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+  // Due times are compared as System.nanoTime() values, which only order correctly within 292 years
+  private static final Duration MAX_DELAY = Duration.ofDays(100 * 365);
+
+  UsbHidRelay relay;
+  long mergeWindowNanos;
+  PriorityQueue<UsbHidRelayScheduledProgram> pending = new PriorityQueue<>(comparingLong(UsbHidRelayScheduledProgram::nextDueNanos));
+  Thread timerThread;
+
+  List<UsbHidRelayScheduledProgram> firedPrograms = new ArrayList<>();
+  @NonFinal
+  long[] firedDueNanos = new long[16];
+
+  UsbHidRelayLatencyHistogram jitter = new UsbHidRelayLatencyHistogram();
+  LongAdder edges = new LongAdder();
+  LongAdder writes = new LongAdder();
+  LongAdder failedWrites = new LongAdder();
+
+  @NonFinal
+  volatile boolean closed;
+
+  private UsbHidRelayScheduler(UsbHidRelay relay, Duration mergeWindow) {
+    if (mergeWindow.isNegative()) {
+      throw new IllegalArgumentException("Merge window must not be negative. Instead got: " + mergeWindow);
+    }
+    this.relay = relay;
+    this.mergeWindowNanos = mergeWindow.toNanos();
+
+    this.timerThread = new Thread(this::run, "usb-hid-relay-scheduler");
+    timerThread.setDaemon(true);
+    timerThread.setPriority(Thread.MAX_PRIORITY);
+  }
+
+  /**
+   * @return a running scheduler for the given relay which merges edges due within 500
+   *         microseconds of each other.
+   */
+  public static UsbHidRelayScheduler create(@NonNull UsbHidRelay relay) {
+    return create(relay, DEFAULT_MERGE_WINDOW);
+  }
+
+  /**
+   * @return a running scheduler for the given relay which merges edges due within the given window
+   *         of each other.
+   */
+  public static UsbHidRelayScheduler create(@NonNull UsbHidRelay relay, @NonNull Duration mergeWindow) {
+    UsbHidRelayScheduler scheduler = new UsbHidRelayScheduler(relay, mergeWindow);
+    scheduler.timerThread.start();
+    return scheduler;
+  }
+
+  /**
+   * @return a running scheduler for the relay wrapped by the given {@link EnumeratedUsbHidRelay}.
+   */
+  public static UsbHidRelayScheduler create(@NonNull EnumeratedUsbHidRelay<?> relay) {
+    return create(relay.hidRelay());
+  }
+
+  /**
+   * Start running a program immediately.
+   */
+  public UsbHidRelayScheduledProgram schedule(@NonNull UsbHidRelayProgram program) {
+    return schedule(program, Duration.ZERO);
+  }
+
+  /**
+   * Start running a program after the given delay. Negative delays start it immediately.
+   *
+   * @throws IllegalArgumentException if the delay is longer than 100 years.
+   */
+  public UsbHidRelayScheduledProgram schedule(@NonNull UsbHidRelayProgram program, @NonNull Duration delay) {
+    if (delay.compareTo(MAX_DELAY) > 0) {
+      throw new IllegalArgumentException("Programs must start within " + MAX_DELAY.toDays() + " days. Instead got a delay of: " + delay);
+    }
+
+    int invalidBits = program.switchesMask() & ~((1 << relay.relaySize().asInt()) - 1);
+    if (invalidBits != 0) {
+      throw new IllegalArgumentException("Program changes switches which are not on the relay: 0x" + Integer.toHexString(invalidBits));
+    }
+
+    UsbHidRelayScheduledProgram scheduled = new UsbHidRelayScheduledProgram(program,
+        System.nanoTime() + (delay.isNegative() ? 0 : delay.toNanos()));
+    synchronized (pending) {
+      if (closed) {
+        throw new IllegalStateException("Scheduler has been closed.");
+      }
+      pending.add(scheduled);
+    }
+    LockSupport.unpark(timerThread);
+    return scheduled;
+  }
+
+  /**
+   * Start running a program at the given wall clock time, e.g. so that a repeating program lines up
+   * with the top of each minute. Times in the past start it immediately.
+   *
+   * @throws IllegalArgumentException if the time is more than 100 years away.
+   */
+  public UsbHidRelayScheduledProgram schedule(@NonNull UsbHidRelayProgram program, @NonNull Instant startAt) {
+    return schedule(program, Duration.between(Instant.now(), startAt));
+  }
+
+  /**
+   * @return how far from when they were planned the edges were written.
+   */
+  public UsbHidRelayLatencyHistogram jitter() {
+    return jitter;
+  }
+
+  /**
+   * @return the number of edges written.
+   */
+  public long edgeCount() {
+    return edges.sum();
+  }
+
+  /**
+   * @return the number of masks written. Fewer masks than edges are written when edges are merged.
+   */
+  public long writeCount() {
+    return writes.sum();
+  }
+
+  /**
+   * @return the number of masks which failed to be written. The programs whose edges were being
+   *         written are stopped.
+   */
+  public long failedWriteCount() {
+    return failedWrites.sum();
+  }
+
+  /**
+   * Stop the timer thread and cancel every scheduled program. The relay is not closed.
+   */
+  @Override
+  public void close() {
+    synchronized (pending) {
+      closed = true;
+    }
+    LockSupport.unpark(timerThread);
+
+    if (Thread.currentThread() != timerThread) {
+      try {
+        timerThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    synchronized (pending) {
+      pending.forEach(UsbHidRelayScheduledProgram::cancel);
+      pending.clear();
+    }
+  }
+
+  private void run() {
+    while (!closed) {
+      UsbHidRelayScheduledProgram next;
+      long dueNanos = 0;
+      synchronized (pending) {
+        next = nextPending();
+        if (next != null) {
+          dueNanos = next.nextDueNanos();
+        }
+      }
+
+      if (next == null) {
+        LockSupport.park(this);
+        continue;
+      }
+
+      long remainingNanos = dueNanos - System.nanoTime();
+      if (remainingNanos > SPIN_THRESHOLD_NANOS) {
+        // An earlier program may be scheduled while parked, so check again after waking
+        LockSupport.parkNanos(this, remainingNanos - SPIN_THRESHOLD_NANOS);
+        continue;
+      }
+
+      while (System.nanoTime() - dueNanos < 0) {
+        // Spin for the last stretch since parking is not precise enough
+      }
+
+      writeDueEdges();
+    }
+  }
+
+  private void writeDueEdges() {
+    int setBits = 0;
+    int clearBits = 0;
+
+    long mergeUntilNanos = System.nanoTime() + mergeWindowNanos;
+    synchronized (pending) {
+      UsbHidRelayScheduledProgram next;
+      while ((next = nextPending()) != null && next.nextDueNanos() - mergeUntilNanos <= 0) {
+        int changedBits = next.nextSetBits() | next.nextClearBits();
+        if (!firedPrograms.isEmpty() && (changedBits & (setBits | clearBits)) != 0) {
+          // Leave the edge for the next write so the earlier change to the same switch is not lost
+          break;
+        }
+
+        pending.poll();
+        setBits |= next.nextSetBits();
+        clearBits |= next.nextClearBits();
+        recordFired(next);
+      }
+    }
+
+    long writtenAtNanos = System.nanoTime();
+    RuntimeException failure = null;
+    try {
+      relay.applyMaskToConfirmedMask(setBits, clearBits);
+      writes.increment();
+    } catch (RuntimeException e) {
+      failure = e;
+      failedWrites.increment();
+    }
+
+    synchronized (pending) {
+      for (int idx = 0; idx < firedPrograms.size(); idx++) {
+        UsbHidRelayScheduledProgram fired = firedPrograms.get(idx);
+
+        jitter.record(Math.abs(writtenAtNanos - firedDueNanos[idx]));
+        edges.increment();
+
+        if (failure != null) {
+          completeExceptionally(fired, failure);
+        } else if (fired.advance()) {
+          pending.add(fired);
+        } else {
+          complete(fired);
+        }
+      }
+    }
+    firedPrograms.clear();
+  }
+
+  private void recordFired(UsbHidRelayScheduledProgram fired) {
+    if (firedPrograms.size() == firedDueNanos.length) {
+      firedDueNanos = Arrays.copyOf(firedDueNanos, firedDueNanos.length * 2);
+    }
+    firedDueNanos[firedPrograms.size()] = fired.nextDueNanos();
+    firedPrograms.add(fired);
+  }
+
+  /**
+   * @return the program with the earliest due edge, discarding any which have been cancelled. Must
+   *         only be called while synchronized on the pending programs.
+   */
+  private UsbHidRelayScheduledProgram nextPending() {
+    UsbHidRelayScheduledProgram next = pending.peek();
+    while (next != null && next.isDone()) {
+      pending.poll();
+      next = pending.peek();
+    }
+    return next;
+  }
+
+  /**
+   * Complete programs off the timer thread so that dependent actions do not delay later edges.
+   */
+  private static void complete(UsbHidRelayScheduledProgram program) {
+    ForkJoinPool.commonPool().execute(() -> program.completion().complete(null));
+  }
+
+  private static void completeExceptionally(UsbHidRelayScheduledProgram program, Throwable failure) {
+    ForkJoinPool.commonPool().execute(() -> program.completion().completeExceptionally(failure));
+  }
+}
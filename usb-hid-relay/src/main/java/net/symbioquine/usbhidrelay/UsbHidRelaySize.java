@@ -10,15 +10,33 @@ import lombok.experimental.FieldDefaults;
 public class UsbHidRelaySize {
   int size;
 
+  public static final UsbHidRelaySize ONE = new UsbHidRelaySize(1);
   public static final UsbHidRelaySize TWO = new UsbHidRelaySize(2);
   public static final UsbHidRelaySize FOUR = new UsbHidRelaySize(4);
   public static final UsbHidRelaySize EIGHT = new UsbHidRelaySize(8);
   public static final UsbHidRelaySize SIXTEEN = new UsbHidRelaySize(16);
 
+  private static final UsbHidRelaySize[] SIZES = {ONE, TWO, FOUR, EIGHT, SIXTEEN};
+
   private UsbHidRelaySize(int size) {
     this.size = validateRelaySize(size);
   }
 
+  /**
+   * @return the relay size with the given number of switches.
+   * @throws IllegalArgumentException if the number of switches is not a power of two between 1 and
+   *         16 (inclusive).
+   */
+  public static UsbHidRelaySize of(int size) {
+    int validSize = validateRelaySize(size);
+    for (UsbHidRelaySize relaySize : SIZES) {
+      if (relaySize.size == validSize) {
+        return relaySize;
+      }
+    }
+    throw new IllegalStateException("Missing relay size: " + validSize);
+  }
+
   public int asInt() {
     return size;
   }
@@ -0,0 +1,77 @@
+package net.symbioquine.usbhidrelay;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * A change in the switch states of a relay observed by a {@link UsbHidRelayMonitor}.
+ */
+@Getter
+@Accessors(fluent = true)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UsbHidRelaySwitchChange {
+  /**
+   * The switch states before the change where bit n is set if switch n was on.
+   */
+  int previousMask;
+
+  /**
+   * The switch states after the change where bit n is set if switch n is on.
+   */
+  int mask;
+
+  /**
+   * Whether the new switch states differ from those last written by the observed
+   * {@link UsbHidRelay} instance, e.g. because they were changed by another process or by hand.
+   */
+  boolean external;
+
+  UsbHidRelaySwitchChange(int previousMask, int mask, boolean external) {
+    this.previousMask = previousMask;
+    this.mask = mask;
+    this.external = external;
+  }
+
+  /**
+   * @return a mask of the switches which changed state.
+   */
+  public int changedBits() {
+    return previousMask ^ mask;
+  }
+
+  /**
+   * @return a mask of the switches which were turned on.
+   */
+  public int turnedOn() {
+    return changedBits() & mask;
+  }
+
+  /**
+   * @return a mask of the switches which were turned off.
+   */
+  public int turnedOff() {
+    return changedBits() & previousMask;
+  }
+
+  /**
+   * @return whether the given switch changed state.
+   */
+  public boolean hasChanged(int switchId) {
+    return (changedBits() & (1 << switchId)) != 0;
+  }
+
+  /**
+   * @return whether the given switch is on after the change.
+   */
+  public boolean isOn(int switchId) {
+    return (mask & (1 << switchId)) != 0;
+  }
+
+  @Override
+  public String toString() {
+    return "UsbHidRelaySwitchChange(previousMask=0x" + Integer.toHexString(previousMask) + ", mask=0x" + Integer.toHexString(mask)
+        + ", external=" + external + ")";
+  }
+}
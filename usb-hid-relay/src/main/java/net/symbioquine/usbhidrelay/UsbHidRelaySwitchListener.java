@@ -0,0 +1,12 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Notified by a {@link UsbHidRelayMonitor} when the switch states of a relay change.
+ */
+@FunctionalInterface
+public interface UsbHidRelaySwitchListener {
+  /**
+   * Called on the polling thread of the monitor, so should return quickly.
+   */
+  void switchesChanged(UsbHidRelaySwitchChange change);
+}
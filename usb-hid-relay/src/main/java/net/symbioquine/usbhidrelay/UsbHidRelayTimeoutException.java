@@ -0,0 +1,14 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Thrown when a transfer to or from a relay does not complete within the configured timeout.
+ *
+ * @see UsbHidRelayOptions#transferTimeout()
+ */
+public class UsbHidRelayTimeoutException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public UsbHidRelayTimeoutException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,14 @@
+package net.symbioquine.usbhidrelay;
+
+/**
+ * Thrown when the switch states read back from a relay after a write do not match those written.
+ *
+ * @see UsbHidRelayOptions#verifyWrites()
+ */
+public class UsbHidRelayVerificationException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public UsbHidRelayVerificationException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,37 @@
+package net.symbioquine.usbhidrelay;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Submits data to the pipes of the endpoints of a USB interface.
+ */
+interface UsbPipes extends AutoCloseable {
+  /**
+   * Synchronously transfer the data on the pipe for the given endpoint.
+   */
+  void submit(int endpointAddress, byte[] data);
+
+  /**
+   * Asynchronously transfer the data on the pipe for the given endpoint.
+   *
+   * @return a future which completes once the transfer completes.
+   */
+  CompletableFuture<Void> submitAsync(int endpointAddress, byte[] data);
+
+  /**
+   * Abandon the transfers in progress by closing the pipes they were submitted on. Pipes which are
+   * needed again are reopened.
+   */
+  void abort();
+
+  /**
+   * @return the phases of the transfers made on the pipes.
+   */
+  RelayTransferPhases transferPhases();
+
+  /**
+   * Release any pipes which are being held open.
+   */
+  @Override
+  void close();
+}
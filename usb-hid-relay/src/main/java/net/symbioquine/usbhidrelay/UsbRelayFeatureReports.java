@@ -0,0 +1,143 @@
+package net.symbioquine.usbhidrelay;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the feature reports which control {@link RelayProtocol#USB_RELAY} relays, and decodes
+ * the feature report they answer with, without allocating.
+ *
+ * <p>
+ * Every report is {@value #REPORT_LENGTH} bytes long. Reports sent to the relay hold a command
+ * followed, for commands changing a single switch, by the one-indexed number of the switch;
+ *
+ * <pre>
+ * offset 0: command
+ * offset 1: switch number
+ * </pre>
+ *
+ * <p>
+ * The report read from the relay holds its serial number and switch states;
+ *
+ * <pre>
+ * offset 0: five ASCII characters of serial number
+ * offset 7: switch states, bit n set if switch n is on
+ * </pre>
+ */
+final class UsbRelayFeatureReports {
+  static final int REPORT_LENGTH = 8;
+  static final int MAX_SWITCHES = 8;
+
+  static final int CMD_ON = 0xFF;
+  static final int CMD_OFF = 0xFD;
+  static final int CMD_ALL_ON = 0xFE;
+  static final int CMD_ALL_OFF = 0xFC;
+
+  private static final int SERIAL_NUMBER_LENGTH = 5;
+  private static final int STATES_OFFSET = 7;
+
+  private static final byte[] ALL_ON_REPORT = report(CMD_ALL_ON, 0);
+  private static final byte[] ALL_OFF_REPORT = report(CMD_ALL_OFF, 0);
+  private static final byte[][] ON_REPORTS = new byte[MAX_SWITCHES][];
+  private static final byte[][] OFF_REPORTS = new byte[MAX_SWITCHES][];
+
+  static {
+    for (int switchId = 0; switchId < MAX_SWITCHES; switchId++) {
+      ON_REPORTS[switchId] = report(CMD_ON, switchId + 1);
+      OFF_REPORTS[switchId] = report(CMD_OFF, switchId + 1);
+    }
+  }
+
+  private UsbRelayFeatureReports() {
+  }
+
+  /**
+   * @return the report which turns every switch on. The returned array is shared and must not be
+   *         modified.
+   */
+  static byte[] allOnReport() {
+    return ALL_ON_REPORT;
+  }
+
+  /**
+   * @return the report which turns every switch off. The returned array is shared and must not be
+   *         modified.
+   */
+  static byte[] allOffReport() {
+    return ALL_OFF_REPORT;
+  }
+
+  /**
+   * @return the report which turns the switch with the given zero-indexed id on or off. The
+   *         returned array is shared and must not be modified.
+   */
+  static byte[] switchReport(int switchId, boolean on) {
+    return on ? ON_REPORTS[switchId] : OFF_REPORTS[switchId];
+  }
+
+  /**
+   * @return a new buffer large enough to receive the report of a relay.
+   */
+  static byte[] newReport() {
+    return new byte[REPORT_LENGTH];
+  }
+
+  /**
+   * @return the switch states reported by a relay, bit n set if switch n is on.
+   */
+  static int decodeStates(byte[] report) {
+    return report[STATES_OFFSET] & 0xFF;
+  }
+
+  /**
+   * @return the serial number reported by a relay, with any trailing NUL characters removed.
+   */
+  static String decodeSerialNumber(byte[] report) {
+    int length = 0;
+    while (length < SERIAL_NUMBER_LENGTH && report[length] != 0) {
+      length++;
+    }
+    return new String(report, 0, length, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Encode the report a relay answers with when it has the given serial number and switch states.
+   */
+  static void encodeReport(String serialNumber, int states, byte[] report) {
+    for (int offset = 0; offset < STATES_OFFSET; offset++) {
+      report[offset] = offset < SERIAL_NUMBER_LENGTH && offset < serialNumber.length() ? (byte) serialNumber.charAt(offset) : 0;
+    }
+    report[STATES_OFFSET] = (byte) states;
+  }
+
+  /**
+   * @return the command of a report.
+   */
+  static int command(byte[] report) {
+    return report[0] & 0xFF;
+  }
+
+  /**
+   * @return the zero-indexed id of the switch changed by a report.
+   */
+  static int switchId(byte[] report) {
+    return (report[1] & 0xFF) - 1;
+  }
+
+  /**
+   * Check that a report is of the expected length.
+   *
+   * @throws IllegalArgumentException if it is not.
+   */
+  static void validateReport(byte[] report) {
+    if (report.length != REPORT_LENGTH) {
+      throw new IllegalArgumentException("Expected a report of " + REPORT_LENGTH + " bytes. Instead got " + report.length + " bytes.");
+    }
+  }
+
+  private static byte[] report(int command, int switchNumber) {
+    byte[] report = new byte[REPORT_LENGTH];
+    report[0] = (byte) command;
+    report[1] = (byte) switchNumber;
+    return report;
+  }
+}
@@ -0,0 +1,54 @@
+package net.symbioquine.usbhidrelay;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transfers frames to and from a relay over the IN and OUT endpoints of its USB interface.
+ */
+class UsbRelayTransport implements FrameTransport, PhasedRelayTransport {
+  private static final int ENDPOINT_IN_ADDRESS = 0x84;
+  private static final int ENDPOINT_OUT_ADDRESS = 0x05;
+
+  private final UsbPipes pipes;
+
+  public UsbRelayTransport(UsbPipes pipes) {
+    this.pipes = requireNonNull(pipes);
+  }
+
+  @Override
+  public void send(byte[] frame) {
+    pipes.submit(ENDPOINT_OUT_ADDRESS, frame);
+  }
+
+  @Override
+  public void receive(byte[] frame) {
+    pipes.submit(ENDPOINT_IN_ADDRESS, frame);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendAsync(byte[] frame) {
+    return pipes.submitAsync(ENDPOINT_OUT_ADDRESS, frame);
+  }
+
+  @Override
+  public CompletableFuture<Void> receiveAsync(byte[] frame) {
+    return pipes.submitAsync(ENDPOINT_IN_ADDRESS, frame);
+  }
+
+  @Override
+  public void abort() {
+    pipes.abort();
+  }
+
+  @Override
+  public RelayTransferPhases transferPhases() {
+    return pipes.transferPhases();
+  }
+
+  @Override
+  public void close() {
+    pipes.close();
+  }
+}
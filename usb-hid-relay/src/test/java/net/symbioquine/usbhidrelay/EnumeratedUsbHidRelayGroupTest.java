@@ -0,0 +1,124 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Writes changes spanning several {@link SimulatedRelayDevice} boards through an
+ * {@link EnumeratedUsbHidRelayGroup}.
+ */
+public class EnumeratedUsbHidRelayGroupTest {
+  private final List<SimulatedRelayDevice> devices = Arrays.asList(SimulatedRelayDevice.create(), SimulatedRelayDevice.create(),
+      SimulatedRelayDevice.create());
+  private final UsbHidRelayOptions options = UsbHidRelayOptions.builder().switchStateCacheMaxAge(Duration.ofMinutes(1)).build();
+  private final List<UsbHidRelay> relays = Arrays.asList(UsbHidRelay.create(devices.get(0), UsbHidRelaySize.EIGHT, options),
+      UsbHidRelay.create(devices.get(1), UsbHidRelaySize.EIGHT, options), UsbHidRelay.create(devices.get(2), UsbHidRelaySize.EIGHT, options));
+
+  private enum Output implements UsbHidRelayGroupSwitchId {
+    PUMP(0, 0), FAN(0, 1), VALVE(1, 0), LIGHT(1, 3), ALARM(2, 0);
+
+    private final int board;
+    private final int id;
+
+    Output(int board, int id) {
+      this.board = board;
+      this.id = id;
+    }
+
+    @Override
+    public int board() {
+      return board;
+    }
+
+    @Override
+    public int id() {
+      return id;
+    }
+  }
+
+  public EnumeratedUsbHidRelayGroupTest() {
+    // Cache the switch states so that every change is a single write without a read first.
+    for (UsbHidRelay relay : relays) {
+      relay.writeMask(0);
+    }
+  }
+
+  @After
+  public void closeRelays() {
+    for (UsbHidRelay relay : relays) {
+      relay.close();
+    }
+  }
+
+  @Test
+  public void aChangeSpanningTwoBoardsIsOneWritePerBoard() {
+    EnumeratedUsbHidRelayGroup<Output> group = EnumeratedUsbHidRelayGroup.create(relays, Output.class);
+    long[] sentFrames = sentFrames();
+
+    Map<Output, Boolean> switchStates = new EnumMap<>(Output.class);
+    switchStates.put(Output.PUMP, true);
+    switchStates.put(Output.FAN, true);
+    switchStates.put(Output.VALVE, false);
+    switchStates.put(Output.LIGHT, true);
+    group.setSwitchStates(switchStates);
+
+    assertEquals(1, devices.get(0).sentFrames() - sentFrames[0]);
+    assertEquals(1, devices.get(1).sentFrames() - sentFrames[1]);
+    assertEquals("Boards without changes are not written.", 0, devices.get(2).sentFrames() - sentFrames[2]);
+    assertEquals(0x3, devices.get(0).switchMask());
+    assertEquals(0x8, devices.get(1).switchMask());
+  }
+
+  @Test
+  public void sequentialWritesStopAtTheFirstFailedBoard() {
+    EnumeratedUsbHidRelayGroup<Output> group = EnumeratedUsbHidRelayGroup.create(relays, UsbHidRelayGroupOrdering.SEQUENTIAL,
+        Duration.ofSeconds(1), Output.class);
+    long[] sentFrames = sentFrames();
+
+    devices.get(1).failNextTransfers(1);
+    try {
+      group.setSwitchesOn(EnumSet.allOf(Output.class));
+      fail("Expected the write to the second board to fail.");
+    } catch (RuntimeException e) {
+      assertEquals("Simulated transfer failure.", e.getMessage());
+    }
+
+    assertEquals(0x3, devices.get(0).switchMask());
+    assertEquals(0, devices.get(1).switchMask());
+    assertEquals("Boards after the failed one are not written.", 0, devices.get(2).sentFrames() - sentFrames[2]);
+    assertEquals(0, devices.get(2).switchMask());
+  }
+
+  @Test
+  public void changesWhoseSkewExceedsTheBoundAreCounted() {
+    EnumeratedUsbHidRelayGroup<Output> group = EnumeratedUsbHidRelayGroup.create(relays, UsbHidRelayGroupOrdering.SEQUENTIAL,
+        Duration.ofMillis(20), Output.class);
+
+    group.setAllSwitchesOn();
+    assertEquals(0, group.skewBoundExceededCount());
+
+    devices.get(2).setTransferLatency(Duration.ofMillis(50));
+    group.setAllSwitchesOff();
+
+    assertEquals(1, group.skewBoundExceededCount());
+    assertEquals(2, group.skewHistogram().count());
+  }
+
+  private long[] sentFrames() {
+    long[] sentFrames = new long[devices.size()];
+    for (int board = 0; board < devices.size(); board++) {
+      sentFrames[board] = devices.get(board).sentFrames();
+    }
+    return sentFrames;
+  }
+}
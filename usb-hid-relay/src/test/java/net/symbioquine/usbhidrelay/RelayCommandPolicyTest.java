@@ -0,0 +1,104 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Runs the circuit breaker and transfer timeouts of a {@link UsbHidRelay} against failing and
+ * unresponsive transports.
+ */
+public class RelayCommandPolicyTest {
+  private final UsbHidRelayMetrics metrics = UsbHidRelayMetrics.create();
+
+  @Test
+  public void theCircuitOpensAfterConsecutiveFailuresAndClosesAfterTheCooldown() throws InterruptedException {
+    SimulatedRelayDevice device = SimulatedRelayDevice.create();
+    UsbHidRelay relay = UsbHidRelay.create(device, UsbHidRelaySize.EIGHT, UsbHidRelayOptions.builder()
+        .circuitBreakerThreshold(3)
+        .circuitBreakerOpenDuration(Duration.ofMillis(100))
+        .metricsListener(metrics)
+        .build());
+
+    device.failNextTransfers(3);
+    for (int i = 0; i < 3; i++) {
+      try {
+        relay.writeMask(0x1);
+        fail("Expected the write to fail.");
+      } catch (UsbHidRelayCircuitOpenException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        // Expected.
+      }
+    }
+    assertEquals(1, metrics.circuitOpenCount());
+
+    long sentFrames = device.sentFrames();
+    try {
+      relay.writeMask(0x1);
+      fail("Expected the circuit to be open.");
+    } catch (UsbHidRelayCircuitOpenException e) {
+      // Expected.
+    }
+    assertEquals("Nothing is sent while the circuit is open.", sentFrames, device.sentFrames());
+    assertEquals(1, metrics.rejectionCount(UsbHidRelayCommandType.WRITE));
+
+    Thread.sleep(150);
+
+    relay.writeMask(0x1);
+    assertEquals(0x1, device.switchMask());
+    assertEquals(1, metrics.circuitOpenCount());
+    relay.close();
+  }
+
+  @Test
+  public void aTransferWhichTimesOutIsAbortedAndCounted() {
+    AtomicInteger aborts = new AtomicInteger();
+    FrameTransport unresponsive = new FrameTransport() {
+      @Override
+      public void send(byte[] frame) {
+        throw new AssertionError("Transfers should be submitted asynchronously when they can time out.");
+      }
+
+      @Override
+      public void receive(byte[] frame) {
+        throw new AssertionError("Transfers should be submitted asynchronously when they can time out.");
+      }
+
+      @Override
+      public CompletableFuture<Void> sendAsync(byte[] frame) {
+        return new CompletableFuture<>();
+      }
+
+      @Override
+      public void abort() {
+        aborts.incrementAndGet();
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    UsbHidRelay relay = UsbHidRelay.create(unresponsive, UsbHidRelaySize.EIGHT, UsbHidRelayOptions.builder()
+        .transferTimeout(Duration.ofMillis(20))
+        .metricsListener(metrics)
+        .build());
+
+    try {
+      relay.writeMask(0x1);
+      fail("Expected the write to time out.");
+    } catch (UsbHidRelayTimeoutException e) {
+      // Expected.
+    }
+
+    assertEquals(1, aborts.get());
+    assertEquals(1, metrics.timeoutCount(UsbHidRelayCommandType.WRITE));
+    assertEquals(1, metrics.failureCount(UsbHidRelayCommandType.WRITE));
+    relay.close();
+  }
+}
@@ -0,0 +1,115 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Queues mask updates behind a command which is still running and applies them to a
+ * {@link SimulatedRelayDevice} with transfer latency.
+ */
+public class RelayCommandQueueTest {
+  private final SimulatedRelayDevice device = SimulatedRelayDevice.create();
+  private final UsbHidRelay relay = UsbHidRelay.create(device, UsbHidRelaySize.EIGHT,
+      UsbHidRelayOptions.builder().asyncCompletionExecutor(Runnable::run).build());
+  private final List<int[]> appliedUpdates = new CopyOnWriteArrayList<>();
+  private final List<Thread> applyingThreads = new CopyOnWriteArrayList<>();
+  private final RelayCommandQueue queue = new RelayCommandQueue(16, Runnable::run, (setBits, clearBits) -> {
+    appliedUpdates.add(new int[] {setBits, clearBits});
+    applyingThreads.add(Thread.currentThread());
+    return relay.applyMaskAsync(setBits, clearBits);
+  }, RelayCommandTracer.NONE);
+
+  private final CompletableFuture<Void> running = new CompletableFuture<>();
+
+  public RelayCommandQueueTest() {
+    device.setTransferLatency(Duration.ofMillis(5));
+    queue.submit(() -> running, false);
+  }
+
+  @After
+  public void closeQueue() {
+    queue.close();
+    relay.close();
+  }
+
+  @Test
+  public void theLastChangeToEachSwitchWins() throws Exception {
+    List<CompletableFuture<Void>> updates = Arrays.asList(
+        queue.submitMaskUpdate(0x3, 0, false),
+        queue.submitMaskUpdate(0x4, 0x1, false),
+        queue.submitMaskUpdate(0x1, 0x2, false),
+        queue.submitMaskUpdate(0, 0x4, false));
+    assertTrue(appliedUpdates.isEmpty());
+
+    running.complete(null);
+    for (CompletableFuture<Void> update : updates) {
+      update.get(5, TimeUnit.SECONDS);
+    }
+
+    assertEquals("The updates are merged into a single write.", 1, appliedUpdates.size());
+    assertEquals(0x1, appliedUpdates.get(0)[0]);
+    assertEquals(0x7, appliedUpdates.get(0)[1]);
+    assertEquals(0x1, device.switchMask());
+  }
+
+  @Test
+  public void aFailedWriteFailsEveryMergedUpdate() throws Exception {
+    List<CompletableFuture<Void>> updates = Arrays.asList(
+        queue.submitMaskUpdate(0x1, 0, false),
+        queue.submitMaskUpdate(0x2, 0, false),
+        queue.submitMaskUpdate(0, 0x4, false));
+    CompletableFuture<Integer> read = queue.submit(relay::readMaskAsync, false);
+
+    device.failNextTransfers(1);
+    running.complete(null);
+
+    for (CompletableFuture<Void> update : updates) {
+      try {
+        update.get(5, TimeUnit.SECONDS);
+        fail("Expected the merged update to fail.");
+      } catch (ExecutionException e) {
+        assertEquals("Simulated transfer failure.", e.getCause().getMessage());
+      }
+    }
+    assertEquals(1, appliedUpdates.size());
+    assertEquals(1, device.failedTransfers());
+
+    assertEquals("Commands queued after the failed update still run.", Integer.valueOf(0), read.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void queuedUpdatesAreStartedByTheThreadCompletingTheRunningCommand() throws Exception {
+    CompletableFuture<Void> first = queue.submitMaskUpdate(0x1, 0, false);
+    CompletableFuture<Integer> read = queue.submit(relay::readMaskAsync, false);
+    CompletableFuture<Void> second = queue.submitMaskUpdate(0x2, 0, false);
+
+    Thread completing = new Thread(() -> running.complete(null), "completing");
+    completing.start();
+    completing.join(TimeUnit.SECONDS.toMillis(5));
+    assertFalse(completing.isAlive());
+
+    first.get(5, TimeUnit.SECONDS);
+    assertEquals(Integer.valueOf(0x1), read.get(5, TimeUnit.SECONDS));
+    second.get(5, TimeUnit.SECONDS);
+
+    assertEquals("Updates either side of a read are not merged.", 2, appliedUpdates.size());
+    for (Thread thread : applyingThreads) {
+      assertSame(completing, thread);
+    }
+    assertEquals(0x3, device.switchMask());
+  }
+}
@@ -0,0 +1,125 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/**
+ * Runs a {@link UsbHidRelay} against a {@link RelayMaskTransport} whose switches are also changed
+ * by others.
+ */
+public class RelayMaskTransportTest {
+  private final SharedRelay shared = new SharedRelay();
+
+  @Test
+  public void partialChangesAreAppliedWithoutReading() {
+    UsbHidRelay relay = UsbHidRelay.create(shared, UsbHidRelaySize.EIGHT);
+    shared.mask = 0x80;
+
+    relay.setSwitchOn(0);
+    relay.applyMask(0x2, 0x80);
+
+    assertEquals(0x3, shared.mask);
+    assertEquals(0, shared.reads);
+    assertEquals(2, shared.applies);
+  }
+
+  @Test
+  public void changesByOthersAreKept() {
+    UsbHidRelay relay = UsbHidRelay.create(shared, UsbHidRelaySize.EIGHT);
+    relay.writeMask(0x1);
+
+    shared.mask |= 0x10;
+    relay.setSwitchOn(1);
+    relay.setSwitchStateAsync(0, false).join();
+
+    assertEquals(0x12, shared.mask);
+  }
+
+  @Test
+  public void wholeMasksAreWritten() {
+    UsbHidRelay relay = UsbHidRelay.create(shared, UsbHidRelaySize.EIGHT);
+
+    relay.writeMask(0x5);
+    relay.applyMask(0xF0, 0x0F);
+
+    assertEquals(0xF0, shared.mask);
+    assertEquals(2, shared.writes);
+    assertEquals(0, shared.applies);
+  }
+
+  @Test
+  public void appliedChangesAreVerified() {
+    UsbHidRelay relay = UsbHidRelay.create(shared, UsbHidRelaySize.EIGHT, UsbHidRelayOptions.builder().verifyWrites(true).build());
+    shared.mask = 0x40;
+
+    relay.setSwitchOn(0);
+    assertEquals(0x41, shared.mask);
+
+    shared.ignoreWrites = true;
+    try {
+      relay.setSwitchOn(1);
+      fail("Expected the write to fail verification.");
+    } catch (UsbHidRelayVerificationException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void resetsAreSentAsTheyAre() {
+    UsbHidRelay relay = UsbHidRelay.create(shared, UsbHidRelaySize.EIGHT);
+
+    relay.reset();
+
+    assertEquals(1, shared.resets);
+  }
+
+  /**
+   * A relay which applies commands to a mask directly, as one shared with other processes would.
+   */
+  private static class SharedRelay implements RelayMaskTransport {
+    volatile int mask;
+    volatile boolean ignoreWrites;
+    int reads;
+    int writes;
+    int applies;
+    int resets;
+
+    @Override
+    public CompletableFuture<Integer> readMaskAsync() {
+      reads++;
+      return CompletableFuture.completedFuture(mask);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeMaskAsync(int mask) {
+      writes++;
+      if (!ignoreWrites) {
+        this.mask = mask;
+      }
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> applyMaskAsync(int setBits, int clearBits) {
+      applies++;
+      if (!ignoreWrites) {
+        this.mask = (mask & ~clearBits) | setBits;
+      }
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> resetAsync() {
+      resets++;
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
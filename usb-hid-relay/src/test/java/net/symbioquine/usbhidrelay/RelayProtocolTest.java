@@ -0,0 +1,129 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs the same commands against a {@link SimulatedRelayDevice} of every {@link RelayProtocol}, for
+ * every relay size the protocol supports, with and without transfer timeouts and write
+ * verification.
+ */
+@RunWith(Parameterized.class)
+public class RelayProtocolTest {
+  private static final UsbHidRelaySize[] RELAY_SIZES = {
+      UsbHidRelaySize.ONE, UsbHidRelaySize.TWO, UsbHidRelaySize.FOUR, UsbHidRelaySize.EIGHT, UsbHidRelaySize.SIXTEEN};
+
+  private final RelayProtocol protocol;
+  private final UsbHidRelaySize relaySize;
+  private final int switchesMask;
+  private final SimulatedRelayDevice device;
+  private final UsbHidRelay relay;
+
+  public RelayProtocolTest(RelayProtocol protocol, UsbHidRelaySize relaySize, boolean timeouts, boolean verifyWrites) {
+    this.protocol = protocol;
+    this.relaySize = relaySize;
+    this.switchesMask = (1 << relaySize.asInt()) - 1;
+    this.device = SimulatedRelayDevice.create(protocol);
+    this.relay = UsbHidRelay.create(device, protocol, relaySize, UsbHidRelayOptions.builder()
+        .transferTimeout(timeouts ? Duration.ofSeconds(5) : null)
+        .verifyWrites(verifyWrites)
+        .build());
+  }
+
+  @Parameters(name = "{0} {1} timeouts={2} verifyWrites={3}")
+  public static Collection<Object[]> configurations() {
+    List<Object[]> configurations = new ArrayList<>();
+    for (RelayProtocol protocol : RelayProtocol.values()) {
+      for (UsbHidRelaySize relaySize : RELAY_SIZES) {
+        if (relaySize.asInt() > protocol.maxRelaySize().asInt()) {
+          continue;
+        }
+        configurations.add(new Object[] {protocol, relaySize, false, false});
+        configurations.add(new Object[] {protocol, relaySize, true, false});
+        configurations.add(new Object[] {protocol, relaySize, false, true});
+      }
+    }
+    return configurations;
+  }
+
+  @After
+  public void closeRelay() {
+    relay.close();
+  }
+
+  @Test
+  public void everyMaskIsWrittenAndReadBack() {
+    int step = Math.max(1, switchesMask / 255);
+    for (int mask = 0; mask <= switchesMask; mask += step) {
+      relay.writeMask(mask);
+
+      assertEquals(describe(mask), mask, device.switchMask());
+      assertEquals(describe(mask), mask, relay.readMask());
+    }
+  }
+
+  @Test
+  public void everyMaskIsWrittenAndReadBackAsynchronously() throws Exception {
+    int step = Math.max(1, switchesMask / 255);
+    for (int mask = 0; mask <= switchesMask; mask += step) {
+      relay.writeMaskAsync(mask).get();
+
+      assertEquals(describe(mask), mask, device.switchMask());
+      assertEquals(describe(mask), (Integer) mask, relay.readMaskAsync().get());
+    }
+  }
+
+  @Test
+  public void applyingAMaskOnlyChangesTheGivenSwitches() {
+    relay.writeMask(switchesMask & 0x5555);
+
+    int setBits = switchesMask & 0x2;
+    relay.applyMask(setBits, 0x1);
+
+    assertEquals(((switchesMask & 0x5555) | setBits) & ~0x1, device.switchMask());
+  }
+
+  @Test
+  public void everySwitchIsTurnedOnAndOffOnItsOwn() {
+    for (int switchId = 0; switchId < relaySize.asInt(); switchId++) {
+      relay.setSwitchOn(switchId);
+      assertEquals("Switch " + switchId, 1 << switchId, device.switchMask());
+
+      relay.setSwitchOff(switchId);
+      assertEquals("Switch " + switchId, 0, device.switchMask());
+    }
+  }
+
+  @Test
+  public void allSwitchesAreTurnedOnAndOff() {
+    relay.setAllSwitchesOn();
+    assertEquals(switchesMask, device.switchMask());
+
+    relay.setAllSwitchesOff();
+    assertEquals(0, device.switchMask());
+  }
+
+  @Test
+  public void resetLeavesTheSwitchesAlone() throws Exception {
+    relay.writeMask(switchesMask);
+
+    relay.reset();
+    relay.resetAsync().get();
+
+    assertEquals(switchesMask, relay.readMask());
+  }
+
+  private String describe(int mask) {
+    return protocol + " " + relaySize.asInt() + " mask " + Integer.toHexString(mask);
+  }
+}
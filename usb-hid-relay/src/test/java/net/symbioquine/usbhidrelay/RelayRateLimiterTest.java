@@ -0,0 +1,104 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Runs a rate limited {@link UsbHidRelay} against a {@link SimulatedRelayDevice}.
+ */
+public class RelayRateLimiterTest {
+  private final SimulatedRelayDevice device = SimulatedRelayDevice.create();
+  private final UsbHidRelayMetrics metrics = UsbHidRelayMetrics.create();
+  private final UsbHidRelay relay = UsbHidRelay.create(device, UsbHidRelaySize.EIGHT, UsbHidRelayOptions.builder()
+      .rateLimit(UsbHidRelayRateLimit.builder().minDwell(Duration.ofMillis(1)).build())
+      .metricsListener(metrics)
+      .build());
+
+  private enum Switch implements UsbHidRelaySwitchId {
+    FIRST, SECOND;
+
+    @Override
+    public int id() {
+      return ordinal();
+    }
+  }
+
+  @After
+  public void closeRelay() {
+    relay.close();
+  }
+
+  @Test
+  public void aMaskMatchingTheLastWriteIsDropped() {
+    relay.writeMask(0x3);
+    relay.writeMask(0x3);
+
+    assertEquals(1, device.sentFrames());
+    assertEquals(1, metrics.droppedWriteCount());
+  }
+
+  @Test
+  public void retryingAFailedWriteIsNotDropped() {
+    device.failNextTransfers(1);
+    try {
+      relay.writeMask(0x3);
+      fail("Expected the write to fail.");
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+    assertEquals(0, device.switchMask());
+
+    relay.writeMask(0x3);
+
+    assertEquals(0x3, device.switchMask());
+  }
+
+  @Test
+  public void restoringTheLastWrittenMaskIsNotDropped() {
+    relay.writeMask(0x5);
+    device.setSwitchMask(0);
+    relay.forgetSwitchStates();
+
+    relay.restoreMask(relay.lastWrittenMask());
+
+    assertEquals(0x5, device.switchMask());
+  }
+
+  @Test
+  public void batchesGoThroughTheLimiter() {
+    EnumeratedUsbHidRelay<Switch> enumerated = EnumeratedUsbHidRelay.create(relay, Switch.class);
+    relay.writeMask(0x1);
+
+    assertTrue(enumerated.batch().toggle(Switch.SECOND).commit());
+    assertEquals(0x3, device.switchMask());
+
+    enumerated.batch().on(Switch.FIRST).on(Switch.SECOND).commit();
+    assertEquals(1, metrics.droppedWriteCount());
+  }
+
+  @Test
+  public void batchesExpectingSwitchStatesAreRejected() {
+    EnumeratedUsbHidRelay<Switch> enumerated = EnumeratedUsbHidRelay.create(relay, Switch.class);
+    relay.writeMask(0x1);
+
+    try {
+      enumerated.batch().expect(Switch.FIRST, true).on(Switch.SECOND).commit();
+      fail("Expected the batch to be rejected.");
+    } catch (UnsupportedOperationException e) {
+      // Expected.
+    }
+    try {
+      enumerated.batch().expectMask(0x1).on(Switch.SECOND).commit();
+      fail("Expected the batch to be rejected.");
+    } catch (UnsupportedOperationException e) {
+      // Expected.
+    }
+    assertEquals(0x1, device.switchMask());
+  }
+}
@@ -0,0 +1,174 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbInterface;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceListener;
+import javax.usb.util.DefaultUsbControlIrp;
+
+import org.junit.Test;
+
+/**
+ * Runs a {@link UsbFeatureReportTransport} against a fake USB device which answers its control
+ * transfers from a {@link SimulatedRelayDevice}, or never answers them.
+ */
+public class UsbFeatureReportTransportTest {
+  private final SimulatedRelayDevice simulated = SimulatedRelayDevice.create(RelayProtocol.USB_RELAY);
+  private final List<UsbDeviceListener> listeners = new CopyOnWriteArrayList<>();
+  private final List<UsbControlIrp> unansweredIrps = new CopyOnWriteArrayList<>();
+  private final AtomicInteger setReports = new AtomicInteger();
+  private final AtomicInteger getReports = new AtomicInteger();
+  private volatile boolean answering = true;
+
+  private final UsbDevice usbDevice = fake(UsbDevice.class, (method, args) -> {
+    switch (method) {
+      case "createUsbControlIrp":
+        return new DefaultUsbControlIrp((Byte) args[0], (Byte) args[1], (Short) args[2], (Short) args[3]);
+      case "addUsbDeviceListener":
+        listeners.add((UsbDeviceListener) args[0]);
+        return null;
+      case "removeUsbDeviceListener":
+        listeners.remove(args[0]);
+        return null;
+      case "syncSubmit":
+        answer((UsbControlIrp) args[0]);
+        return null;
+      case "asyncSubmit":
+        submitAsync((UsbControlIrp) args[0]);
+        return null;
+      default:
+        return null;
+    }
+  });
+
+  @Test
+  public void featureReportsAreTransferredAsynchronously() throws Exception {
+    try (UsbHidRelay relay = UsbHidRelay.create(usbInterface(), RelayProtocol.USB_RELAY, UsbHidRelaySize.EIGHT,
+        UsbHidRelayOptions.builder().transferTimeout(Duration.ofSeconds(5)).build())) {
+      relay.writeMaskAsync(0xA5).get(5, TimeUnit.SECONDS);
+      assertEquals(0xA5, simulated.switchMask());
+
+      relay.writeMask(0x0F);
+      assertEquals(0x0F, relay.readMask());
+    }
+    assertTrue("The transport stops listening to the device once closed.", listeners.isEmpty());
+  }
+
+  @Test
+  public void writesSendReportsWithoutReadingTheSwitchStates() throws Exception {
+    simulated.setSwitchMask(0x0F);
+
+    try (UsbHidRelay relay = UsbHidRelay.create(usbInterface(), RelayProtocol.USB_RELAY, UsbHidRelaySize.EIGHT,
+        UsbHidRelayOptions.builder().build())) {
+      relay.writeMask(0xA5);
+      assertEquals(0xA5, simulated.switchMask());
+      assertEquals("One report per switch.", 8, setReports.getAndSet(0));
+
+      relay.setSwitchOn(1);
+      relay.applyMaskAsync(0x40, 0x01).get(5, TimeUnit.SECONDS);
+      assertEquals(0xE6, simulated.switchMask());
+      assertEquals("One report per changed switch.", 3, setReports.getAndSet(0));
+
+      relay.setAllSwitchesOff();
+      assertEquals(0, simulated.switchMask());
+      assertEquals(1, setReports.get());
+    }
+    assertEquals(0, getReports.get());
+  }
+
+  @Test
+  public void transfersWhichNeverCompleteTimeOut() {
+    answering = false;
+
+    try (UsbHidRelay relay = UsbHidRelay.create(usbInterface(), RelayProtocol.USB_RELAY, UsbHidRelaySize.EIGHT,
+        UsbHidRelayOptions.builder().transferTimeout(Duration.ofMillis(50)).build())) {
+      relay.writeMask(0xFF);
+      fail("Expected the write to time out.");
+    } catch (UsbHidRelayTimeoutException e) {
+      assertEquals(0, simulated.switchMask());
+    }
+  }
+
+  @Test
+  public void abortingFailsTransfersInProgress() throws Exception {
+    answering = false;
+
+    UsbFeatureReportTransport transport = new UsbFeatureReportTransport(usbInterface(), UsbHidRelayMetricsListener.NOOP);
+    CompletableFuture<Void> transfer = transport.getFeatureReportAsync(UsbRelayFeatureReports.newReport());
+    transport.abort();
+
+    try {
+      transfer.get(5, TimeUnit.SECONDS);
+      fail("Expected the transfer to fail.");
+    } catch (ExecutionException e) {
+      // Expected.
+    }
+
+    // A completion arriving after the abort is ignored.
+    answering = true;
+    unansweredIrps.forEach(this::complete);
+    transport.close();
+  }
+
+  private UsbInterface usbInterface() {
+    UsbConfiguration configuration = fake(UsbConfiguration.class, (method, args) -> "getUsbDevice".equals(method) ? usbDevice : null);
+    return fake(UsbInterface.class, (method, args) -> "getUsbConfiguration".equals(method) ? configuration : null);
+  }
+
+  private void submitAsync(UsbControlIrp irp) {
+    if (!answering) {
+      unansweredIrps.add(irp);
+      return;
+    }
+    CompletableFuture.runAsync(() -> complete(irp));
+  }
+
+  private void complete(UsbControlIrp irp) {
+    answer(irp);
+    UsbDeviceDataEvent event = new UsbDeviceDataEvent(usbDevice, irp);
+    listeners.forEach(listener -> listener.dataEventOccurred(event));
+  }
+
+  private void answer(UsbControlIrp irp) {
+    if (irp.bmRequestType() == 0x21) {
+      setReports.incrementAndGet();
+      simulated.setFeatureReport(irp.getData());
+    } else {
+      getReports.incrementAndGet();
+      simulated.getFeatureReport(irp.getData());
+    }
+    irp.setActualLength(irp.getLength());
+  }
+
+  private interface FakeMethods {
+    Object invoke(String method, Object[] args);
+  }
+
+  private static <T> T fake(Class<T> type, FakeMethods methods) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return methods.invoke(method.getName(), args);
+      }
+    }));
+  }
+}
@@ -0,0 +1,70 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Round-trips every switch mask of every relay size through {@link UsbHidRelayBitMapping} and a
+ * {@link SimulatedRelayDevice}.
+ */
+@RunWith(Parameterized.class)
+public class UsbHidRelayBitMappingTest {
+  private final UsbHidRelaySize relaySize;
+  private final int switchesMask;
+  private final UsbHidRelayBitMapping mapping;
+
+  public UsbHidRelayBitMappingTest(UsbHidRelaySize relaySize) {
+    this.relaySize = relaySize;
+    this.switchesMask = (1 << relaySize.asInt()) - 1;
+    this.mapping = UsbHidRelayBitMapping.forSize(relaySize);
+  }
+
+  @Parameters(name = "{index}")
+  public static Collection<Object[]> relaySizes() {
+    return Arrays.asList(new Object[][] {
+        {UsbHidRelaySize.ONE}, {UsbHidRelaySize.TWO}, {UsbHidRelaySize.FOUR}, {UsbHidRelaySize.EIGHT}, {UsbHidRelaySize.SIXTEEN}});
+  }
+
+  @Test
+  public void everyMaskRoundTripsThroughTheReadBitmap() {
+    for (int mask = 0; mask <= switchesMask; mask++) {
+      assertEquals("Mask " + Integer.toHexString(mask), mask, mapping.fromReadBitmap(mapping.toReadBitmap(mask)));
+    }
+  }
+
+  @Test
+  public void everyMaskIsWrittenUnchanged() {
+    for (int mask = 0; mask <= switchesMask; mask++) {
+      assertEquals("Mask " + Integer.toHexString(mask), mask, mapping.toWriteBitmap(mask));
+    }
+  }
+
+  @Test
+  public void switchesBeyondTheRelaySizeAreIgnored() {
+    int otherSwitchesMask = ~switchesMask & 0xFFFF;
+
+    assertEquals(0, mapping.toWriteBitmap(otherSwitchesMask));
+    assertEquals(0, mapping.toReadBitmap(otherSwitchesMask));
+    assertEquals(0, mapping.fromReadBitmap(UsbHidRelayBitMapping.forSize(UsbHidRelaySize.SIXTEEN).toReadBitmap(otherSwitchesMask)));
+  }
+
+  @Test
+  public void everyMaskRoundTripsThroughASimulatedRelay() {
+    SimulatedRelayDevice device = SimulatedRelayDevice.create();
+    try (UsbHidRelay relay = UsbHidRelay.create(device, relaySize)) {
+      for (int mask = 0; mask <= switchesMask; mask++) {
+        relay.writeMask(mask);
+
+        assertEquals("Mask " + Integer.toHexString(mask), mask, device.switchMask());
+        assertEquals("Mask " + Integer.toHexString(mask), mask, relay.readMask());
+      }
+    }
+  }
+}
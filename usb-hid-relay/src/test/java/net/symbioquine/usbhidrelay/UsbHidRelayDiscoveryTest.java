@@ -0,0 +1,149 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbHub;
+import javax.usb.UsbPort;
+import javax.usb.util.DefaultUsbControlIrp;
+
+import org.junit.Test;
+
+/**
+ * Runs discovery against a fake root hub with a {@link RelayProtocol#USB_RELAY} board with eight
+ * switches at port 1 and a {@link RelayProtocol#SAINSMART} board at port 2.
+ */
+public class UsbHidRelayDiscoveryTest {
+  private final SimulatedRelayDevice simulatedUsbRelay = SimulatedRelayDevice.create(RelayProtocol.USB_RELAY);
+  private boolean sainSmartAttached = true;
+
+  private final UsbHub rootHub = fake(UsbHub.class, (method, args) -> {
+    switch (method) {
+      case "isUsbHub":
+      case "isRootUsbHub":
+        return true;
+      case "getAttachedUsbDevices":
+        return attachedDevices();
+      case "getUsbPort":
+        return port((Byte) args[0]);
+      default:
+        return null;
+    }
+  });
+
+  private final UsbDevice usbRelay = board(RelayProtocol.USB_RELAY, "USBRelay8", (byte) 1);
+  private final UsbDevice sainSmart = board(RelayProtocol.SAINSMART, null, (byte) 2);
+
+  @Test
+  public void smallerRelaysArePassedOverWhenScanning() {
+    assertEquals(RelayProtocol.SAINSMART, findFirstRelay(null, UsbHidRelaySize.SIXTEEN).get().protocol());
+    assertEquals(RelayProtocol.USB_RELAY, findFirstRelay(null, UsbHidRelaySize.EIGHT).get().protocol());
+  }
+
+  @Test
+  public void smallerKnownRelaysArePassedOverWithoutCountingAsMisses() {
+    UsbHidRelayDiscoveryCache cache = UsbHidRelayDiscoveryCache.inMemory();
+    assertEquals(RelayProtocol.USB_RELAY, findFirstRelay(cache, UsbHidRelaySize.FOUR).get().protocol());
+    assertEquals(Arrays.asList(UsbHidRelayDeviceId.of("1", "SIMUL"), UsbHidRelayDeviceId.of("2", null)), cache.knownRelays());
+
+    DiscoveredUsbHidRelay relay = findFirstRelay(cache, UsbHidRelaySize.SIXTEEN).get();
+    assertEquals(RelayProtocol.SAINSMART, relay.protocol());
+    assertEquals(UsbHidRelayDeviceId.of("2", null), relay.id());
+
+    UsbHidRelayDiscoveryTimings timings = UsbHidRelayDiscovery.lastTimings().get();
+    assertFalse(timings.scanned());
+    assertEquals(0, timings.probeMisses());
+  }
+
+  @Test
+  public void noRelayIsFoundWhenNoneIsLargeEnough() {
+    sainSmartAttached = false;
+    assertFalse(findFirstRelay(null, UsbHidRelaySize.SIXTEEN).isPresent());
+  }
+
+  private Optional<DiscoveredUsbHidRelay> findFirstRelay(UsbHidRelayDiscoveryCache cache, UsbHidRelaySize relaySize) {
+    return UsbHidRelayDiscovery.findFirstRelay(rootHub, cache, relaySize, System.nanoTime(), 0);
+  }
+
+  private List<UsbDevice> attachedDevices() {
+    return sainSmartAttached ? Arrays.asList(usbRelay, sainSmart) : Arrays.asList(usbRelay);
+  }
+
+  private UsbPort port(byte portNumber) {
+    UsbDevice device = portNumber == 1 ? usbRelay : portNumber == 2 && sainSmartAttached ? sainSmart : null;
+    return fake(UsbPort.class, (method, args) -> {
+      switch (method) {
+        case "getPortNumber":
+          return portNumber;
+        case "getUsbHub":
+          return rootHub;
+        case "isUsbDeviceAttached":
+          return device != null;
+        case "getUsbDevice":
+          return device;
+        default:
+          return null;
+      }
+    });
+  }
+
+  private UsbDevice board(RelayProtocol protocol, String product, byte portNumber) {
+    UsbDeviceDescriptor descriptor = fake(UsbDeviceDescriptor.class, (method, args) -> {
+      switch (method) {
+        case "idVendor":
+          return (short) protocol.vendorId();
+        case "idProduct":
+          return (short) protocol.productId();
+        default:
+          return (byte) 0;
+      }
+    });
+
+    return fake(UsbDevice.class, (method, args) -> {
+      switch (method) {
+        case "isUsbHub":
+          return false;
+        case "getUsbDeviceDescriptor":
+          return descriptor;
+        case "getProductString":
+          return product;
+        case "getParentUsbPort":
+          return port(portNumber);
+        case "createUsbControlIrp":
+          return new DefaultUsbControlIrp((Byte) args[0], (Byte) args[1], (Short) args[2], (Short) args[3]);
+        case "syncSubmit":
+          UsbControlIrp irp = (UsbControlIrp) args[0];
+          simulatedUsbRelay.getFeatureReport(irp.getData());
+          irp.setActualLength(irp.getLength());
+          return null;
+        default:
+          return null;
+      }
+    });
+  }
+
+  private interface FakeMethods {
+    Object invoke(String method, Object[] args);
+  }
+
+  private static <T> T fake(Class<T> type, FakeMethods methods) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return methods.invoke(method.getName(), args);
+      }
+    }));
+  }
+}
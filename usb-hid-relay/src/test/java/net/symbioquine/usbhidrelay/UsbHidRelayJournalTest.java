@@ -0,0 +1,145 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.function.IntConsumer;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Records masks to a {@link UsbHidRelayJournal} in a temporary directory, damages the file the way
+ * a crash would, and reopens it.
+ */
+public class UsbHidRelayJournalTest {
+  private static final UsbHidRelayDeviceId FIRST_ID = UsbHidRelayDeviceId.of("1", "SIMUL");
+  private static final UsbHidRelayDeviceId SECOND_ID = UsbHidRelayDeviceId.of("2", null);
+
+  /**
+   * The offset of the first mask record for {@link #FIRST_ID}, after the eight byte header and its
+   * sixteen byte device record.
+   */
+  private static final int FIRST_MASK_RECORD = 24;
+  private static final int MASK_RECORD_LENGTH = 8;
+
+  private final Path directory;
+  private final Path file;
+
+  public UsbHidRelayJournalTest() throws IOException {
+    this.directory = Files.createTempDirectory("usb-hid-relay-journal");
+    this.file = directory.resolve("journal");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    for (Path child : Files.newDirectoryStream(directory)) {
+      Files.delete(child);
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void aTornRecordAtTheTailIsDiscarded() throws IOException {
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      IntConsumer recorder = journal.recorder(FIRST_ID);
+      recorder.accept(0x1);
+      recorder.accept(0x2);
+    }
+
+    // The type byte of a mask record was written but the rest of it was not.
+    overwrite(FIRST_MASK_RECORD + 2 * MASK_RECORD_LENGTH, new byte[] {1, 0, 0, 0, 0x7F, 0, 0, 0});
+
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      assertEquals(OptionalInt.of(0x2), journal.desiredMask(FIRST_ID));
+
+      journal.recorder(FIRST_ID).accept(0x3);
+    }
+
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      assertEquals("Records made after recovering follow on from the last whole record.", OptionalInt.of(0x3), journal.desiredMask(FIRST_ID));
+    }
+  }
+
+  @Test
+  public void recordsWithABadChecksumAreRejected() throws IOException {
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      IntConsumer recorder = journal.recorder(FIRST_ID);
+      recorder.accept(0x1);
+      recorder.accept(0x2);
+      recorder.accept(0x3);
+    }
+
+    // Flip the mask of the second record without updating its check byte.
+    overwrite(FIRST_MASK_RECORD + MASK_RECORD_LENGTH + 4, new byte[] {0x6});
+
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      assertEquals("The damaged record and every record after it are discarded.", OptionalInt.of(0x1), journal.desiredMask(FIRST_ID));
+    }
+  }
+
+  @Test
+  public void compactingKeepsTheLastMaskOfEachDevice() throws IOException {
+    Map<UsbHidRelayDeviceId, Integer> expected = new LinkedHashMap<>();
+    expected.put(FIRST_ID, 0xF0);
+    expected.put(SECOND_ID, 0x0F);
+
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      IntConsumer first = journal.recorder(FIRST_ID);
+      IntConsumer second = journal.recorder(SECOND_ID);
+      for (int mask = 0; mask < 100; mask++) {
+        first.accept(mask);
+        second.accept(~mask & 0xFF);
+      }
+      first.accept(0xF0);
+      second.accept(0x0F);
+
+      journal.compact();
+
+      assertEquals(1, journal.compactionCount());
+      assertEquals(expected, journal.desiredMasks());
+    }
+
+    assertFalse(Files.exists(directory.resolve("journal.compacting")));
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      assertEquals(expected, journal.desiredMasks());
+    }
+  }
+
+  @Test
+  public void aFullJournalIsCompacted() throws IOException {
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file, 4096)) {
+      IntConsumer first = journal.recorder(FIRST_ID);
+      IntConsumer second = journal.recorder(SECOND_ID);
+      second.accept(0x5);
+      for (int mask = 0; mask < 2000; mask++) {
+        first.accept(mask);
+      }
+
+      assertTrue(journal.compactionCount() > 0);
+      assertEquals(4096, Files.size(file));
+    }
+
+    assertFalse(Files.exists(directory.resolve("journal.compacting")));
+    try (UsbHidRelayJournal journal = UsbHidRelayJournal.open(file)) {
+      assertEquals(OptionalInt.of(1999), journal.desiredMask(FIRST_ID));
+      assertEquals(OptionalInt.of(0x5), journal.desiredMask(SECOND_ID));
+    }
+  }
+
+  private void overwrite(int offset, byte[] bytes) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes), offset);
+    }
+  }
+}
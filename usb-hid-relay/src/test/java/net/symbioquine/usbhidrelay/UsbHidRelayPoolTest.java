@@ -0,0 +1,222 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbHub;
+import javax.usb.UsbInterface;
+import javax.usb.UsbPort;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceListener;
+import javax.usb.util.DefaultUsbControlIrp;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Plugs a fake {@link RelayProtocol#USB_RELAY} device, whose feature reports are answered by a
+ * {@link SimulatedRelayDevice}, in and out of a pool.
+ */
+public class UsbHidRelayPoolTest {
+  private static final UsbHidRelayDeviceId FIRST_PORT_ID = UsbHidRelayDeviceId.of("1", "SIMUL");
+  private static final UsbHidRelayDeviceId SECOND_PORT_ID = UsbHidRelayDeviceId.of("2", "SIMUL");
+
+  private final SimulatedRelayDevice simulated = SimulatedRelayDevice.create(RelayProtocol.USB_RELAY);
+  private final UsbHub rootHub = fake(UsbHub.class, (method, args) -> "isUsbHub".equals(method) || "isRootUsbHub".equals(method));
+  private final Path journalDirectory;
+  private final UsbHidRelayJournal journal;
+  private final UsbHidRelayPool pool;
+
+  public UsbHidRelayPoolTest() throws IOException {
+    this.journalDirectory = Files.createTempDirectory("usb-hid-relay-pool");
+    this.journal = UsbHidRelayJournal.open(journalDirectory.resolve("journal"));
+    this.pool = UsbHidRelayPool.create(UsbHidRelaySize.EIGHT, UsbHidRelayOptions.builder().journal(journal).build());
+  }
+
+  @After
+  public void closePool() throws IOException {
+    pool.close();
+    journal.close();
+    for (Path file : Files.newDirectoryStream(journalDirectory)) {
+      Files.delete(file);
+    }
+    Files.delete(journalDirectory);
+  }
+
+  @Test
+  public void relayPluggedBackInAtTheSamePortIsReconnected() throws Exception {
+    UsbDevice device = device((byte) 1);
+    pool.deviceAttached(device);
+    UsbHidRelay relay = pool.relay(FIRST_PORT_ID).get();
+    relay.writeMask(0x15);
+
+    pool.deviceDetached(device);
+    assertFalse(pool.isConnected(FIRST_PORT_ID));
+    simulated.setSwitchMask(0);
+
+    pool.deviceAttached(device((byte) 1));
+    awaitReconnects(1);
+
+    assertEquals(Collections.singleton(FIRST_PORT_ID), pool.ids());
+    assertTrue(pool.isConnected(FIRST_PORT_ID));
+    assertEquals("The last mask is restored.", 0x15, simulated.switchMask());
+    assertEquals(0x15, relay.readMask());
+  }
+
+  @Test
+  public void relayPluggedBackInAtAnotherPortIsKeyedByItsNewId() throws Exception {
+    UsbDevice device = device((byte) 1);
+    pool.deviceAttached(device);
+    UsbHidRelay relay = pool.relay(FIRST_PORT_ID).get();
+    relay.writeMask(0x15);
+
+    pool.deviceDetached(device);
+    simulated.setSwitchMask(0);
+
+    UsbDevice replugged = device((byte) 2);
+    pool.deviceAttached(replugged);
+    awaitReconnects(1);
+
+    assertEquals(Collections.singleton(SECOND_PORT_ID), pool.ids());
+    assertFalse(pool.relay(FIRST_PORT_ID).isPresent());
+    assertSame(relay, pool.relay(SECOND_PORT_ID).get());
+    assertTrue(pool.isConnected(SECOND_PORT_ID));
+    assertEquals("The last mask is restored.", 0x15, simulated.switchMask());
+
+    relay.writeMask(0x2A);
+    assertEquals(0x2A, journal.desiredMask(SECOND_PORT_ID).getAsInt());
+    assertEquals(0x15, journal.desiredMask(FIRST_PORT_ID).getAsInt());
+
+    // Unplugging it again is noticed under the new id.
+    pool.deviceDetached(replugged);
+    assertFalse(pool.isConnected(SECOND_PORT_ID));
+  }
+
+  private void awaitReconnects(long reconnects) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (pool.reconnectCount() < reconnects && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(reconnects, pool.reconnectCount());
+  }
+
+  /**
+   * @return a new device for the simulated relay plugged into the given port of the root hub.
+   */
+  private UsbDevice device(byte portNumber) {
+    List<UsbDeviceListener> listeners = new CopyOnWriteArrayList<>();
+    UsbDevice[] device = new UsbDevice[1];
+
+    UsbPort port = fake(UsbPort.class, (method, args) -> {
+      switch (method) {
+        case "getPortNumber":
+          return portNumber;
+        case "getUsbHub":
+          return rootHub;
+        default:
+          return null;
+      }
+    });
+    UsbDeviceDescriptor descriptor = fake(UsbDeviceDescriptor.class, (method, args) -> {
+      switch (method) {
+        case "idVendor":
+          return (short) RelayProtocol.USB_RELAY.vendorId();
+        case "idProduct":
+          return (short) RelayProtocol.USB_RELAY.productId();
+        default:
+          return (byte) 0;
+      }
+    });
+    UsbConfiguration[] configuration = new UsbConfiguration[1];
+    UsbInterface usbInterface = fake(UsbInterface.class, (method, args) -> "getUsbConfiguration".equals(method) ? configuration[0] : null);
+    configuration[0] = fake(UsbConfiguration.class, (method, args) -> {
+      switch (method) {
+        case "getUsbInterface":
+          return usbInterface;
+        case "getUsbDevice":
+          return device[0];
+        default:
+          return null;
+      }
+    });
+
+    device[0] = fake(UsbDevice.class, (method, args) -> {
+      switch (method) {
+        case "isUsbHub":
+          return false;
+        case "getUsbDeviceDescriptor":
+          return descriptor;
+        case "getProductString":
+          return "USBRelay8";
+        case "getParentUsbPort":
+          return port;
+        case "getUsbConfiguration":
+          return configuration[0];
+        case "createUsbControlIrp":
+          return new DefaultUsbControlIrp((Byte) args[0], (Byte) args[1], (Short) args[2], (Short) args[3]);
+        case "addUsbDeviceListener":
+          listeners.add((UsbDeviceListener) args[0]);
+          return null;
+        case "removeUsbDeviceListener":
+          listeners.remove(args[0]);
+          return null;
+        case "syncSubmit":
+          answer((UsbControlIrp) args[0]);
+          return null;
+        case "asyncSubmit":
+          UsbControlIrp irp = (UsbControlIrp) args[0];
+          CompletableFuture.runAsync(() -> {
+            answer(irp);
+            UsbDeviceDataEvent event = new UsbDeviceDataEvent(device[0], irp);
+            listeners.forEach(listener -> listener.dataEventOccurred(event));
+          });
+          return null;
+        default:
+          return null;
+      }
+    });
+    return device[0];
+  }
+
+  private void answer(UsbControlIrp irp) {
+    if (irp.bmRequestType() == 0x21) {
+      simulated.setFeatureReport(irp.getData());
+    } else {
+      simulated.getFeatureReport(irp.getData());
+    }
+    irp.setActualLength(irp.getLength());
+  }
+
+  private interface FakeMethods {
+    Object invoke(String method, Object[] args);
+  }
+
+  private static <T> T fake(Class<T> type, FakeMethods methods) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return methods.invoke(method.getName(), args);
+      }
+    }));
+  }
+}
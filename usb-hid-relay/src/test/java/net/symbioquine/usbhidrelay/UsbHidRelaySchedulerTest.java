@@ -0,0 +1,58 @@
+package net.symbioquine.usbhidrelay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Runs programs on a {@link UsbHidRelayScheduler} against a {@link SimulatedRelayDevice}.
+ */
+public class UsbHidRelaySchedulerTest {
+  private final SimulatedRelayDevice device = SimulatedRelayDevice.create();
+  private final UsbHidRelay relay = UsbHidRelay.create(device, UsbHidRelaySize.SIXTEEN);
+  private final UsbHidRelayScheduler scheduler = UsbHidRelayScheduler.create(relay, Duration.ZERO);
+
+  @After
+  public void closeScheduler() {
+    scheduler.close();
+    relay.close();
+  }
+
+  @Test
+  public void edgesAfterAFailedWriteAreNotAppliedToTheFailedMask() throws Exception {
+    relay.writeMask(0x1);
+
+    device.failNextTransfers(1);
+    UsbHidRelayScheduledProgram failed = scheduler.schedule(UsbHidRelayProgram.builder().on(1).build());
+    try {
+      failed.completion().get(5, TimeUnit.SECONDS);
+      fail("Expected the write to fail.");
+    } catch (ExecutionException e) {
+      assertEquals(1, scheduler.failedWriteCount());
+    }
+    assertEquals(0x1, device.switchMask());
+
+    scheduler.schedule(UsbHidRelayProgram.builder().on(2).build()).completion().get(5, TimeUnit.SECONDS);
+
+    assertEquals("Switch 1 was never turned on.", 0x5, device.switchMask());
+  }
+
+  @Test
+  public void programsStartingInThePastStartImmediately() throws Exception {
+    scheduler.schedule(UsbHidRelayProgram.builder().on(3).build(), Instant.MIN).completion().get(5, TimeUnit.SECONDS);
+
+    assertEquals(0x8, device.switchMask());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void programsStartingTooFarAheadAreRejected() {
+    scheduler.schedule(UsbHidRelayProgram.builder().on(3).build(), Instant.MAX);
+  }
+}